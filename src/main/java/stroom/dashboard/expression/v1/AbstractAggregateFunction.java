@@ -16,21 +16,36 @@
 
 package stroom.dashboard.expression.v1;
 
+import java.text.ParseException;
+
 abstract class AbstractAggregateFunction extends AbstractManyChildFunction implements AggregateFunction {
     private final Calculator calculator;
+    private boolean integral;
+    private transient TypeProfile profile;
 
     AbstractAggregateFunction(final String name, final Calculator calculator) {
         super(name, 1, Integer.MAX_VALUE);
         this.calculator = calculator;
     }
 
+    @Override
+    public void setParams(final Param[] params) throws ParseException {
+        super.setParams(params);
+        final boolean hasLongOp = calculator instanceof LongCalculator;
+        integral = hasLongOp && InferredType.allLong(params);
+        if (!integral && hasLongOp) {
+            // The type isn't known up front so see what values turn up.
+            profile = TypeProfile.create();
+        }
+    }
+
     @Override
     public Generator createGenerator() {
         // If we only have a single param then we are operating in aggregate
         // mode.
         if (isAggregate()) {
             final Generator childGenerator = functions[0].createGenerator();
-            return new AggregateGen(childGenerator, calculator);
+            return new AggregateGen(childGenerator, calculator, integral, profile);
         }
 
         return super.createGenerator();
@@ -38,7 +53,7 @@ abstract class AbstractAggregateFunction extends AbstractManyChildFunction imple
 
     @Override
     protected Generator createGenerator(final Generator[] childGenerators) {
-        return new Gen(childGenerators, calculator);
+        return new Gen(childGenerators, calculator, integral);
     }
 
     @Override
@@ -46,34 +61,148 @@ abstract class AbstractAggregateFunction extends AbstractManyChildFunction imple
         return functions.length == 1;
     }
 
+    /**
+     * @return True if all of the parameters are known to be integral and the result can be calculated exactly as a
+     * long.
+     */
+    boolean isIntegral() {
+        return integral;
+    }
+
+    /**
+     * Once the profile of the function shows that only integral values are being aggregated the generator keeps the
+     * result in a primitive long rather than creating a new value for every row. The long path gives exactly the same
+     * results as the generic path, so it is only used while the result can be held exactly by a double, and the
+     * generator goes back to the generic path as soon as it is given anything that isn't integral.
+     */
     private static class AggregateGen extends AbstractSingleChildGenerator {
         private static final long serialVersionUID = -5622353515345145314L;
 
+        // The largest magnitude of integer that a double holds exactly.
+        private static final long MAX_EXACT = 1L << 53;
+
         private final Calculator calculator;
+        // Set if the calculator can combine longs exactly.
+        private final LongCalculator longCalculator;
+        private final boolean integral;
+        private final transient TypeProfile profile;
 
+        // While specialised this caches the value of the result.
         private Val current = ValNull.INSTANCE;
+        private boolean specialised;
+        private long result;
 
-        AggregateGen(final Generator childGenerator, final Calculator calculator) {
+        AggregateGen(final Generator childGenerator,
+                     final Calculator calculator,
+                     final boolean integral,
+                     final TypeProfile profile) {
             super(childGenerator);
             this.calculator = calculator;
+            this.longCalculator = calculator instanceof LongCalculator ? (LongCalculator) calculator : null;
+            this.integral = integral;
+            this.profile = profile;
         }
 
         @Override
         public void set(final Val[] values) {
             childGenerator.set(values);
-            current = calculator.calc(current, childGenerator.eval());
+            final Val value = childGenerator.eval();
+
+            if (specialised) {
+                if (value instanceof ValLong || value instanceof ValInteger) {
+                    if (calcLong(value.toLong())) {
+                        return;
+                    }
+                } else if (value.type().isNull()) {
+                    return;
+                }
+                deoptimise();
+            } else if (profile != null) {
+                profile.observe(value);
+            }
+
+            current = calc(current, value);
+
+            if (profile != null && profile.isIntegral()) {
+                specialise();
+            }
         }
 
         @Override
         public Val eval() {
+            if (current == null) {
+                current = ValDouble.create(result);
+            }
             return current;
         }
 
         @Override
-        public void merge(final Generator generator) {
+        void mergeState(final Generator generator) {
             final AggregateGen aggregateGen = (AggregateGen) generator;
-            current = calculator.calc(current, aggregateGen.current);
-            super.merge(generator);
+            if (!specialised || !aggregateGen.specialised || !calcLong(aggregateGen.result)) {
+                if (specialised) {
+                    generalise();
+                }
+                current = calc(current, aggregateGen.eval());
+            }
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            current = ValNull.INSTANCE;
+            specialised = false;
+            result = 0;
+        }
+
+        private void specialise() {
+            // The generic path returns the first value unchanged so only specialise once values have been combined.
+            if (current instanceof ValDouble) {
+                final double d = current.toDouble();
+                if (d == Math.rint(d) && Math.abs(d) <= MAX_EXACT) {
+                    result = (long) d;
+                    specialised = true;
+                    current = null;
+                }
+            }
+        }
+
+        /**
+         * Go back to the generic path because a value that isn't integral has turned up.
+         */
+        private void deoptimise() {
+            generalise();
+            if (profile != null) {
+                profile.deoptimise();
+            }
+        }
+
+        private void generalise() {
+            current = ValDouble.create(result);
+            specialised = false;
+        }
+
+        /**
+         * @return False if the value or result can't be held exactly by a double.
+         */
+        private boolean calcLong(final long value) {
+            if (Math.abs(value) > MAX_EXACT) {
+                return false;
+            }
+            final long next = longCalculator.opLong(result, value);
+            if (Math.abs(next) > MAX_EXACT) {
+                return false;
+            }
+            result = next;
+            current = null;
+            return true;
+        }
+
+        private Val calc(final Val current, final Val value) {
+            if (integral) {
+                return longCalculator.calcLong(current, value);
+            }
+            return calculator.calc(current, value);
         }
     }
 
@@ -81,10 +210,13 @@ abstract class AbstractAggregateFunction extends AbstractManyChildFunction imple
         private static final long serialVersionUID = -5622353515345145314L;
 
         private final Calculator calculator;
+        // Only set if the values are known to be integral.
+        private final LongCalculator longCalculator;
 
-        Gen(final Generator[] childGenerators, final Calculator calculator) {
+        Gen(final Generator[] childGenerators, final Calculator calculator, final boolean integral) {
             super(childGenerators);
             this.calculator = calculator;
+            this.longCalculator = integral ? (LongCalculator) calculator : null;
         }
 
         @Override
@@ -102,7 +234,11 @@ abstract class AbstractAggregateFunction extends AbstractManyChildFunction imple
                 if (!val.type().isValue()) {
                     return val;
                 }
-                value = calculator.calc(value, val);
+                if (longCalculator != null) {
+                    value = longCalculator.calcLong(value, val);
+                } else {
+                    value = calculator.calc(value, val);
+                }
             }
             return value;
         }
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2019 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.dashboard.expression.v1;
+
+import java.text.ParseException;
+
+/**
+ * Base for aggregates that weight each row by how recent it is, halving the weight of a row for every half life, in
+ * milliseconds, that it is older than the latest time seen by the group. Rows with a null or error time are ignored,
+ * as are values that are not numbers.
+ * <p>
+ * Only the decayed sums and the time they are relative to are kept. When a later time is seen, or partial results
+ * relative to different times are merged, the sums are rescaled to the later time, so the result doesn't depend on
+ * the order rows are added or shards are merged in.
+ */
+abstract class AbstractDecayFunction extends AbstractFunction {
+    private static final long MAX_HALF_LIFE = 365L * 24 * 60 * 60 * 1000;
+
+    private final boolean rate;
+
+    private Function valueFunction;
+    private Function timeFunction;
+    private long halfLife;
+
+    /**
+     * @param rate True for a decayed rate of rows, which has no value argument, false for a decayed mean of values.
+     */
+    AbstractDecayFunction(final String name, final boolean rate) {
+        super(name, rate ? 2 : 3, rate ? 2 : 3);
+        this.rate = rate;
+    }
+
+    @Override
+    public void setParams(final Param[] params) throws ParseException {
+        super.setParams(params);
+
+        int pos = 0;
+        if (!rate) {
+            valueFunction = parseFunction(params[pos++]);
+        }
+        timeFunction = parseFunction(params[pos++]);
+
+        final Param param = params[pos];
+        final Long value = param instanceof Val ? ((Val) param).toLong() : null;
+        if (value == null || value < 1 || value > MAX_HALF_LIFE) {
+            throw new ParseException("Half life in milliseconds up to a year expected as last argument of '"
+                    + name + "' function", 0);
+        }
+        halfLife = value;
+    }
+
+    private Function parseFunction(final Param param) throws ParseException {
+        if (param instanceof Function) {
+            final Function function = (Function) param;
+            if (function.hasAggregate()) {
+                throw new ParseException(name + " cannot be applied to aggregating function", 0);
+            }
+            return function;
+        }
+        return new StaticValueFunction((Val) param);
+    }
+
+    @Override
+    public Generator createGenerator() {
+        final Generator[] childGenerators;
+        if (rate) {
+            childGenerators = new Generator[]{timeFunction.createGenerator()};
+        } else {
+            childGenerators = new Generator[]{timeFunction.createGenerator(), valueFunction.createGenerator()};
+        }
+        return new Gen(childGenerators, halfLife, rate);
+    }
+
+    @Override
+    public boolean isAggregate() {
+        return true;
+    }
+
+    @Override
+    public boolean hasAggregate() {
+        return isAggregate();
+    }
+
+    private static class Gen extends AbstractManyChildGenerator {
+        private static final long serialVersionUID = 2093185806707002218L;
+
+        private final double halfLife;
+        private final boolean rate;
+
+        // The time that the sums are relative to, i.e. the latest time seen.
+        private long reference = Long.MIN_VALUE;
+        private double weightedSum;
+        private double weight;
+
+        Gen(final Generator[] childGenerators, final long halfLife, final boolean rate) {
+            super(childGenerators);
+            this.halfLife = halfLife;
+            this.rate = rate;
+        }
+
+        @Override
+        public void set(final Val[] values) {
+            childGenerators[0].set(values);
+            final Val time = childGenerators[0].eval();
+            if (!time.type().isValue()) {
+                return;
+            }
+            final Long ms = time.toLong();
+            if (ms == null) {
+                return;
+            }
+
+            double d = 0;
+            if (!rate) {
+                childGenerators[1].set(values);
+                final Val value = childGenerators[1].eval();
+                if (!value.type().isValue()) {
+                    return;
+                }
+                final Double number = value.toDouble();
+                if (number == null || number.isNaN()) {
+                    return;
+                }
+                d = number;
+            }
+
+            rescale(ms);
+            final double w = decay(reference - ms);
+            weightedSum += w * d;
+            weight += w;
+        }
+
+        @Override
+        public Val eval() {
+            if (reference == Long.MIN_VALUE) {
+                return rate ? ValDouble.create(0) : ValNull.INSTANCE;
+            }
+            if (rate) {
+                // A steady rate of r rows per millisecond gives a weight of r * halfLife / ln(2) so this is the rate
+                // per second.
+                return ValDouble.create(weight * Math.log(2) / halfLife * 1000);
+            }
+            return ValDouble.create(weightedSum / weight);
+        }
+
+        @Override
+        void mergeState(final Generator generator) {
+            final Gen gen = (Gen) generator;
+            if (gen.reference != Long.MIN_VALUE) {
+                rescale(gen.reference);
+                final double w = decay(reference - gen.reference);
+                weightedSum += w * gen.weightedSum;
+                weight += w * gen.weight;
+            }
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            reference = Long.MIN_VALUE;
+            weightedSum = 0;
+            weight = 0;
+        }
+
+        /**
+         * Make the sums relative to a later time if the time is later than the current reference.
+         */
+        private void rescale(final long time) {
+            if (reference == Long.MIN_VALUE) {
+                reference = time;
+            } else if (time > reference) {
+                final double w = decay(time - reference);
+                weightedSum *= w;
+                weight *= w;
+                reference = time;
+            }
+        }
+
+        private double decay(final long age) {
+            return Math.pow(2, -age / halfLife);
+        }
+    }
+}
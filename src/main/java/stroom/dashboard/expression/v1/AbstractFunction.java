@@ -82,4 +82,16 @@ abstract class AbstractFunction implements Function, Appendable {
     public boolean isAggregate() {
         return false;
     }
+
+    @Override
+    public boolean isDeterministic() {
+        if (params != null) {
+            for (final Param param : params) {
+                if (param instanceof Function && !((Function) param).isDeterministic()) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
 }
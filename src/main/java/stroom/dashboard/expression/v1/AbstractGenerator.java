@@ -21,12 +21,34 @@ import java.io.Serializable;
 abstract class AbstractGenerator implements Generator, Serializable, Comparable<Generator> {
     private static final long serialVersionUID = 513621715143449935L;
 
-    private static final ValComparator COMPARATOR = new ValComparator();
+    // The sort key of the last value this generator produced, so repeated comparisons only derive it once.
+    private transient Val sortVal;
+    private transient SortKey sortKey;
 
     @Override
     public int compareTo(final Generator gen) {
-        final Val o1 = eval();
-        final Val o2 = gen.eval();
-        return COMPARATOR.compare(o1, o2);
+        final SortKey k1 = getSortKey();
+        final SortKey k2;
+        if (gen instanceof AbstractGenerator) {
+            k2 = ((AbstractGenerator) gen).getSortKey();
+        } else {
+            k2 = SortKey.create(gen.eval());
+        }
+        return k1.compareTo(k2);
+    }
+
+    @Override
+    public void reset() {
+        sortVal = null;
+        sortKey = null;
+    }
+
+    SortKey getSortKey() {
+        final Val val = eval();
+        if (sortKey == null || val != sortVal) {
+            sortKey = SortKey.create(val);
+            sortVal = val;
+        }
+        return sortKey;
     }
 }
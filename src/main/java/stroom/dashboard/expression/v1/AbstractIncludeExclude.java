@@ -18,7 +18,6 @@ package stroom.dashboard.expression.v1;
 
 import java.io.Serializable;
 import java.text.ParseException;
-import java.util.regex.Pattern;
 
 abstract class AbstractIncludeExclude extends AbstractManyChildFunction implements Serializable {
     private static final long serialVersionUID = -305845496003936297L;
@@ -26,6 +25,11 @@ abstract class AbstractIncludeExclude extends AbstractManyChildFunction implemen
     private Generator gen;
     private boolean simple;
 
+    /**
+     * If every regex is a static value then they are kept here so that generators can test them all at once.
+     */
+    private String[] regexes;
+
     AbstractIncludeExclude(final String name) {
         super(name, 2, Integer.MAX_VALUE);
     }
@@ -54,8 +58,8 @@ abstract class AbstractIncludeExclude extends AbstractManyChildFunction implemen
                     throw new ParseException("An empty regex has been defined for argument of '" + name + "' function", 0);
                 }
 
-                final Pattern pattern = PatternCache.get(regex);
-                if (pattern.matcher(value).matches()) {
+                final PatternMatcher matcher = PatternCache.get(regex);
+                if (matcher.matches(value)) {
                     found = true;
                 }
             }
@@ -71,6 +75,8 @@ abstract class AbstractIncludeExclude extends AbstractManyChildFunction implemen
             }
 
         } else {
+            final String[] staticRegexes = new String[params.length - 1];
+            boolean allStatic = true;
             for (int i = 1; i < params.length; i++) {
                 if (params[i] instanceof Val) {
                     // Test regex is valid.
@@ -79,8 +85,16 @@ abstract class AbstractIncludeExclude extends AbstractManyChildFunction implemen
                         throw new ParseException("An empty regex has been defined for argument of '" + name + "' function", 0);
                     }
                     PatternCache.get(regex);
+                    staticRegexes[i - 1] = regex;
+                } else {
+                    allStatic = false;
                 }
             }
+
+            if (allStatic) {
+                regexes = staticRegexes;
+                PatternCache.getMulti(regexes);
+            }
         }
     }
 
@@ -100,13 +114,24 @@ abstract class AbstractIncludeExclude extends AbstractManyChildFunction implemen
         return super.hasAggregate();
     }
 
+    /**
+     * @return The regexes if every regex is a static value, otherwise null.
+     */
+    String[] getRegexes() {
+        return regexes;
+    }
+
     abstract boolean inverse();
 
     abstract static class AbstractGen extends AbstractManyChildGenerator {
         private static final long serialVersionUID = 8153777070911899616L;
 
-        AbstractGen(final Generator[] childGenerators) {
+        private final String[] regexes;
+        private transient MultiPatternMatcher matcher;
+
+        AbstractGen(final Generator[] childGenerators, final String[] regexes) {
             super(childGenerators);
+            this.regexes = regexes;
         }
 
         @Override
@@ -127,14 +152,18 @@ abstract class AbstractIncludeExclude extends AbstractManyChildFunction implemen
                 final String value = val.toString();
 
                 boolean found = false;
-                for (int i = 1; i < childGenerators.length && !found; i++) {
-                    final Val v = childGenerators[i].eval();
-                    if (v.type().isValue()) {
-                        final String regex = v.toString();
-                        if (regex.length() > 0) {
-                            final Pattern pattern = PatternCache.get(regex);
-                            if (pattern.matcher(value).matches()) {
-                                found = true;
+                if (regexes != null) {
+                    found = getMatcher().firstMatch(value) != -1;
+                } else {
+                    for (int i = 1; i < childGenerators.length && !found; i++) {
+                        final Val v = childGenerators[i].eval();
+                        if (v.type().isValue()) {
+                            final String regex = v.toString();
+                            if (regex.length() > 0) {
+                                final PatternMatcher patternMatcher = PatternCache.get(regex);
+                                if (patternMatcher.matches(value)) {
+                                    found = true;
+                                }
                             }
                         }
                     }
@@ -155,6 +184,13 @@ abstract class AbstractIncludeExclude extends AbstractManyChildFunction implemen
             }
         }
 
+        private MultiPatternMatcher getMatcher() {
+            if (matcher == null) {
+                matcher = PatternCache.getMulti(regexes);
+            }
+            return matcher;
+        }
+
         abstract boolean inverse();
     }
 }
@@ -41,10 +41,38 @@ abstract class AbstractManyChildGenerator extends AbstractGenerator {
     public abstract Val eval();
 
     @Override
-    public void merge(final Generator generator) {
+    public final void merge(final Generator generator) {
+        mergeState(generator);
         addChildren((AbstractManyChildGenerator) generator);
     }
 
+    @Override
+    public final void rollUp(final Generator generator) {
+        mergeState(generator);
+        final AbstractManyChildGenerator other = (AbstractManyChildGenerator) generator;
+        for (int i = 0; i < childGenerators.length; i++) {
+            childGenerators[i].rollUp(other.childGenerators[i]);
+        }
+    }
+
+    /**
+     * Merge any state that this generator keeps itself, i.e. the state of an aggregate, from another generator of the
+     * same type. This is called by both {@link #merge(Generator)} and {@link #rollUp(Generator)}, which then merge
+     * or roll up the child generators.
+     */
+    void mergeState(final Generator generator) {
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        if (childGenerators != null) {
+            for (final Generator gen : childGenerators) {
+                gen.reset();
+            }
+        }
+    }
+
     private void addChildren(final AbstractManyChildGenerator generator) {
         for (int i = 0; i < childGenerators.length; i++) {
             childGenerators[i].merge(generator.childGenerators[i]);
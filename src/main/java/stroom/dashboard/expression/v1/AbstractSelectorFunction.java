@@ -0,0 +1,197 @@
+/*
+ * Copyright 2019 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.dashboard.expression.v1;
+
+import java.text.ParseException;
+
+/**
+ * Base for aggregates that select the value of the argument from one row of each group, e.g. the first row or the row
+ * with the latest time. Only the selected value, and its ordering key where there is one, is kept so each group uses
+ * constant memory and shards are merged by comparing their selections.
+ */
+abstract class AbstractSelectorFunction extends AbstractFunction {
+    private Function[] functions;
+
+    AbstractSelectorFunction(final String name, final int params) {
+        super(name, params, params);
+    }
+
+    @Override
+    public void setParams(final Param[] params) throws ParseException {
+        super.setParams(params);
+
+        functions = new Function[params.length];
+        for (int i = 0; i < params.length; i++) {
+            final Param param = params[i];
+            if (param instanceof Function) {
+                final Function function = (Function) param;
+                if (function.hasAggregate()) {
+                    throw new ParseException(name + " cannot be applied to aggregating function", 0);
+                }
+                functions[i] = function;
+            } else {
+                functions[i] = new StaticValueFunction((Val) param);
+            }
+        }
+    }
+
+    @Override
+    public Generator createGenerator() {
+        final Generator[] childGenerators = new Generator[functions.length];
+        for (int i = 0; i < functions.length; i++) {
+            childGenerators[i] = functions[i].createGenerator();
+        }
+        return createGenerator(childGenerators);
+    }
+
+    abstract Generator createGenerator(Generator[] childGenerators);
+
+    @Override
+    public boolean isAggregate() {
+        return true;
+    }
+
+    @Override
+    public boolean hasAggregate() {
+        return isAggregate();
+    }
+
+    /**
+     * Selects the value from the first or last row added. When merging, the generator being merged into is taken to
+     * hold the earlier rows.
+     */
+    static class ArrivalGen extends AbstractManyChildGenerator {
+        private static final long serialVersionUID = 6119327216474524383L;
+
+        private final boolean last;
+
+        private boolean selected;
+        private Val value;
+
+        ArrivalGen(final Generator[] childGenerators, final boolean last) {
+            super(childGenerators);
+            this.last = last;
+        }
+
+        @Override
+        public void set(final Val[] values) {
+            // There is no need to evaluate later rows once the first has been selected.
+            if (last || !selected) {
+                childGenerators[0].set(values);
+                value = childGenerators[0].eval();
+                selected = true;
+            }
+        }
+
+        @Override
+        public Val eval() {
+            if (!selected) {
+                return ValNull.INSTANCE;
+            }
+            return value;
+        }
+
+        @Override
+        void mergeState(final Generator generator) {
+            final ArrivalGen gen = (ArrivalGen) generator;
+            if (gen.selected && (last || !selected)) {
+                value = gen.value;
+                selected = true;
+            }
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            selected = false;
+            value = null;
+        }
+    }
+
+    /**
+     * Selects the value from the row with the highest or lowest ordering value. Rows with a null or error ordering
+     * value are ignored. Where rows tie on the ordering value the value that sorts first is selected so that the
+     * result doesn't depend on the order rows are added or shards are merged in.
+     */
+    static class OrderedGen extends AbstractManyChildGenerator {
+        private static final long serialVersionUID = -5178432207437458925L;
+
+        private final boolean max;
+
+        private SortKey order;
+        private Val value;
+
+        OrderedGen(final Generator[] childGenerators, final boolean max) {
+            super(childGenerators);
+            this.max = max;
+        }
+
+        @Override
+        public void set(final Val[] values) {
+            childGenerators[1].set(values);
+            final Val orderVal = childGenerators[1].eval();
+            if (!orderVal.type().isValue()) {
+                return;
+            }
+
+            final SortKey key = SortKey.create(orderVal);
+            final int diff = order == null ? 1 : compare(key, order);
+            if (diff >= 0) {
+                childGenerators[0].set(values);
+                select(key, childGenerators[0].eval(), diff);
+            }
+        }
+
+        @Override
+        public Val eval() {
+            if (order == null) {
+                return ValNull.INSTANCE;
+            }
+            return value;
+        }
+
+        @Override
+        void mergeState(final Generator generator) {
+            final OrderedGen gen = (OrderedGen) generator;
+            if (gen.order != null) {
+                select(gen.order, gen.value, order == null ? 1 : compare(gen.order, order));
+            }
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            order = null;
+            value = null;
+        }
+
+        /**
+         * @return A positive number if the key is better than the current one, zero if they tie.
+         */
+        private int compare(final SortKey key, final SortKey current) {
+            final int diff = key.compareTo(current);
+            return max ? diff : -diff;
+        }
+
+        private void select(final SortKey key, final Val value, final int diff) {
+            if (diff > 0 || (diff == 0 && SortKey.create(value).compareTo(SortKey.create(this.value)) < 0)) {
+                this.order = key;
+                this.value = value;
+            }
+        }
+    }
+}
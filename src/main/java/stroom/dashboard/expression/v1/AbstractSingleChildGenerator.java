@@ -37,10 +37,31 @@ abstract class AbstractSingleChildGenerator extends AbstractGenerator {
     public abstract Val eval();
 
     @Override
-    public void merge(final Generator generator) {
+    public final void merge(final Generator generator) {
+        mergeState(generator);
         addChildren((AbstractSingleChildGenerator) generator);
     }
 
+    @Override
+    public final void rollUp(final Generator generator) {
+        mergeState(generator);
+        childGenerator.rollUp(((AbstractSingleChildGenerator) generator).childGenerator);
+    }
+
+    /**
+     * Merge any state that this generator keeps itself, i.e. the state of an aggregate, from another generator of the
+     * same type. This is called by both {@link #merge(Generator)} and {@link #rollUp(Generator)}, which then merge
+     * or roll up the child generator.
+     */
+    void mergeState(final Generator generator) {
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        childGenerator.reset();
+    }
+
     private void addChildren(final AbstractSingleChildGenerator generator) {
         childGenerator.merge(generator.childGenerator);
     }
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2019 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.dashboard.expression.v1;
+
+import java.text.ParseException;
+
+/**
+ * Base for aggregates over a sliding time window, e.g. windowSum(${bytes}, ${EventTime}, 900000) for the bytes in the
+ * last 15 minutes. The window ends at the latest time seen by the group and its length is given in milliseconds.
+ * Rows with a null or error time are ignored, as are values that are not numbers.
+ * <p>
+ * As rows with later times are added, older rows drop out of the window without the group having to be aggregated
+ * again, so a live dashboard only has to add the new rows on each refresh. See {@link SlidingWindow}.
+ */
+abstract class AbstractWindowFunction extends AbstractFunction {
+    private static final long MAX_WINDOW = 365L * 24 * 60 * 60 * 1000;
+
+    private final Statistic statistic;
+    private final boolean hasValue;
+
+    private Function valueFunction;
+    private Function timeFunction;
+    private long window;
+
+    AbstractWindowFunction(final String name, final Statistic statistic) {
+        super(name, statistic == Statistic.COUNT ? 2 : 3, statistic == Statistic.COUNT ? 2 : 3);
+        this.statistic = statistic;
+        this.hasValue = statistic != Statistic.COUNT;
+    }
+
+    @Override
+    public void setParams(final Param[] params) throws ParseException {
+        super.setParams(params);
+
+        int pos = 0;
+        if (hasValue) {
+            valueFunction = parseFunction(params[pos++]);
+        }
+        timeFunction = parseFunction(params[pos++]);
+
+        final Param param = params[pos];
+        final Long value = param instanceof Val ? ((Val) param).toLong() : null;
+        if (value == null || value < 1 || value > MAX_WINDOW) {
+            throw new ParseException("Window length in milliseconds up to a year expected as last argument of '"
+                    + name + "' function", 0);
+        }
+        window = value;
+    }
+
+    private Function parseFunction(final Param param) throws ParseException {
+        if (param instanceof Function) {
+            final Function function = (Function) param;
+            if (function.hasAggregate()) {
+                throw new ParseException(name + " cannot be applied to aggregating function", 0);
+            }
+            return function;
+        }
+        return new StaticValueFunction((Val) param);
+    }
+
+    @Override
+    public Generator createGenerator() {
+        final Generator[] childGenerators;
+        if (hasValue) {
+            childGenerators = new Generator[]{timeFunction.createGenerator(), valueFunction.createGenerator()};
+        } else {
+            childGenerators = new Generator[]{timeFunction.createGenerator()};
+        }
+        return new Gen(childGenerators, new SlidingWindow(window), statistic);
+    }
+
+    @Override
+    public boolean isAggregate() {
+        return true;
+    }
+
+    @Override
+    public boolean hasAggregate() {
+        return isAggregate();
+    }
+
+    enum Statistic {
+        SUM,
+        COUNT,
+        MIN,
+        MAX,
+        AVERAGE
+    }
+
+    private static class Gen extends AbstractManyChildGenerator {
+        private static final long serialVersionUID = -1385730618520911316L;
+
+        private final SlidingWindow window;
+        private final Statistic statistic;
+
+        Gen(final Generator[] childGenerators, final SlidingWindow window, final Statistic statistic) {
+            super(childGenerators);
+            this.window = window;
+            this.statistic = statistic;
+        }
+
+        @Override
+        public void set(final Val[] values) {
+            childGenerators[0].set(values);
+            final Val time = childGenerators[0].eval();
+            if (!time.type().isValue()) {
+                return;
+            }
+            final Long ms = time.toLong();
+            if (ms == null) {
+                return;
+            }
+
+            if (childGenerators.length == 1) {
+                window.add(ms, 0);
+            } else {
+                childGenerators[1].set(values);
+                final Val value = childGenerators[1].eval();
+                if (value.type().isValue()) {
+                    final Double d = value.toDouble();
+                    if (d != null && !d.isNaN()) {
+                        window.add(ms, d);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public Val eval() {
+            if (statistic == Statistic.COUNT) {
+                return ValLong.create(window.count());
+            }
+            if (window.count() == 0) {
+                return ValNull.INSTANCE;
+            }
+
+            switch (statistic) {
+                case SUM:
+                    return ValDouble.create(window.sum());
+                case MIN:
+                    return ValDouble.create(window.min());
+                case MAX:
+                    return ValDouble.create(window.max());
+                case AVERAGE:
+                    return ValDouble.create(window.sum() / window.count());
+                default:
+                    throw new IllegalStateException("Unexpected statistic " + statistic);
+            }
+        }
+
+        @Override
+        void mergeState(final Generator generator) {
+            window.merge(((Gen) generator).window);
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            window.clear();
+        }
+    }
+}
@@ -27,7 +27,7 @@ class Add extends NumericFunction {
 
     @Override
     protected Generator createGenerator(final Generator[] childGenerators) {
-        return new Gen(childGenerators, getCalculator());
+        return new Gen(childGenerators, getCalculator(), isIntegral());
     }
 
     @Override
@@ -35,23 +35,36 @@ class Add extends NumericFunction {
         return CALC;
     }
 
-    static class Calc extends Calculator {
+    @Override
+    boolean acceptsStrings() {
+        return true;
+    }
+
+    static class Calc extends LongCalculator {
         private static final long serialVersionUID = 1099553839843710283L;
 
         @Override
         protected double op(final double cur, final double val) {
             return cur + val;
         }
+
+        @Override
+        long opLong(final long cur, final long val) {
+            return Math.addExact(cur, val);
+        }
     }
 
     private static class Gen extends AbstractManyChildGenerator {
         private static final long serialVersionUID = 217968020285584214L;
 
         private final Calculator calculator;
+        // Only set if the values are known to be integral.
+        private final LongCalculator longCalculator;
 
-        Gen(final Generator[] childGenerators, final Calculator calculator) {
+        Gen(final Generator[] childGenerators, final Calculator calculator, final boolean integral) {
             super(childGenerators);
             this.calculator = calculator;
+            this.longCalculator = integral ? (LongCalculator) calculator : null;
         }
 
         @Override
@@ -91,8 +104,14 @@ class Add extends NumericFunction {
             }
 
             Val value = ValNull.INSTANCE;
-            for (final Val val : vals) {
-                value = calculator.calc(value, val);
+            if (longCalculator != null) {
+                for (final Val val : vals) {
+                    value = longCalculator.calcLong(value, val);
+                }
+            } else {
+                for (final Val val : vals) {
+                    value = calculator.calc(value, val);
+                }
             }
             return value;
         }
@@ -0,0 +1,453 @@
+/*
+ * Copyright 2019 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.dashboard.expression.v1;
+
+import java.io.Serializable;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Splits the columns of a table into a partial aggregation, done where the rows are, and a final evaluation, done
+ * once the partials from every node have been merged, so that nodes exchange small fixed-shape {@link Partial}
+ * records rather than generator trees. For example sum(${a})/count() is split into a partial sum and count, and the
+ * division is only done at the end. Aggregates used by more than one column, or more than once in a column, are only
+ * held once.
+ * <p>
+ * Only count(), and sum(), min(), max(), average(), stDev() and variance() over a single argument, can be split.
+ * Field references outside of an aggregate take the value from the latest row of the partial, as they would from
+ * the latest row of a generator. Results are the same as evaluating the columns directly except that stDev() and
+ * variance() are calculated from a running mean so may differ in the last few bits.
+ */
+public final class AggregatePlan {
+    private static final LongCalculator SUM = new Add.Calc();
+    private static final LongCalculator MIN = new Min.Calc();
+    private static final LongCalculator MAX = new Max.Calc();
+
+    private final Expression[] finals;
+    private final Slot[] slots;
+    private final Function[] arguments;
+    // The indexes of the fields that are referenced outside of an aggregate.
+    private final int[] fields;
+    private final int fieldCount;
+    private final int valueCount;
+    private final int longCount;
+    private final int doubleCount;
+
+    private AggregatePlan(final Expression[] finals, final Builder builder) {
+        this.finals = finals;
+        this.slots = builder.slots.toArray(new Slot[0]);
+        this.arguments = builder.arguments.toArray(new Function[0]);
+        this.fieldCount = builder.fieldCount;
+        this.valueCount = builder.values;
+        this.longCount = builder.counts;
+        this.doubleCount = builder.moments;
+
+        fields = new int[builder.fields.size()];
+        int pos = 0;
+        for (final int field : builder.fields) {
+            fields[pos++] = field;
+        }
+    }
+
+    /**
+     * Create a plan for the columns of a table.
+     *
+     * @param parser        The parser to parse the columns with.
+     * @param fieldIndexMap The fields that the columns may reference.
+     * @param inputs        The expression for each column, which may be null for a column with no expression.
+     * @throws ParseException If a column can't be parsed or uses an aggregate that can't be split.
+     */
+    static AggregatePlan create(final ExpressionParser parser,
+                                final FieldIndexMap fieldIndexMap,
+                                final String[] inputs) throws ParseException {
+        // Parse every column first so that the number of fields is known.
+        final Expression[] partials = new Expression[inputs.length];
+        final Expression[] finals = new Expression[inputs.length];
+        for (int i = 0; i < inputs.length; i++) {
+            partials[i] = parser.parse(fieldIndexMap, inputs[i]);
+            finals[i] = parser.parse(fieldIndexMap, inputs[i]);
+        }
+
+        final Builder builder = new Builder(fieldIndexMap.size());
+        for (int i = 0; i < inputs.length; i++) {
+            if (partials[i] != null) {
+                builder.collect(partials[i].getFunction(), false);
+                final Function function = finals[i].getFunction();
+                final Function replacement = builder.replace(function);
+                finals[i].setParams(new Param[]{replacement != null ? replacement : function});
+            }
+        }
+        return new AggregatePlan(finals, builder);
+    }
+
+    public Partial createPartial() {
+        return new Partial(new Val[valueCount], new long[longCount], new double[doubleCount], new Val[fields.length]);
+    }
+
+    /**
+     * Add a row to a partial.
+     */
+    public void add(final Partial partial, final Val[] values) {
+        if (partial.arguments == null) {
+            partial.arguments = new Generator[arguments.length];
+            for (int i = 0; i < arguments.length; i++) {
+                if (arguments[i] != null) {
+                    partial.arguments[i] = arguments[i].createGenerator();
+                }
+            }
+        }
+
+        for (int i = 0; i < slots.length; i++) {
+            final Slot slot = slots[i];
+            if (slot.statistic == SimpleAggregate.COUNT) {
+                partial.longs[slot.count]++;
+                continue;
+            }
+
+            final Generator argument = partial.arguments[i];
+            argument.set(values);
+            final Val value = argument.eval();
+            switch (slot.statistic) {
+                case SUM:
+                case MIN:
+                case MAX:
+                    partial.values[slot.value] = calc(slot, partial.values[slot.value], value);
+                    break;
+                case AVERAGE:
+                    partial.values[slot.value] = calc(slot, partial.values[slot.value], value);
+                    partial.longs[slot.count]++;
+                    break;
+                case STDEV:
+                case VARIANCE:
+                    final Double d = value.toDouble();
+                    if (d != null) {
+                        final double[] doubles = partial.doubles;
+                        final int m = slot.moments;
+                        doubles[m]++;
+                        final double delta = d - doubles[m + 1];
+                        doubles[m + 1] += delta / doubles[m];
+                        doubles[m + 2] += delta * (d - doubles[m + 1]);
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("Unexpected statistic " + slot.statistic);
+            }
+        }
+
+        for (int i = 0; i < fields.length; i++) {
+            final Val value = values[fields[i]];
+            partial.fields[i] = value == null ? ValNull.INSTANCE : value;
+        }
+    }
+
+    /**
+     * Merge one partial into another. The partials can come from different nodes as long as they were created by
+     * plans for the same columns.
+     */
+    public void merge(final Partial partial, final Partial other) {
+        final Val[] values = partial.values;
+        for (final Slot slot : slots) {
+            if (slot.value >= 0) {
+                values[slot.value] = calc(slot, values[slot.value], other.values[slot.value]);
+            }
+        }
+
+        final long[] longs = partial.longs;
+        for (int i = 0; i < longs.length; i++) {
+            longs[i] += other.longs[i];
+        }
+
+        final double[] doubles = partial.doubles;
+        for (int m = 0; m + 2 < doubles.length; m += 3) {
+            final double n = doubles[m];
+            final double otherN = other.doubles[m];
+            if (otherN > 0) {
+                final double total = n + otherN;
+                final double delta = other.doubles[m + 1] - doubles[m + 1];
+                doubles[m + 1] += delta * otherN / total;
+                doubles[m + 2] += other.doubles[m + 2] + delta * delta * n * otherN / total;
+                doubles[m] = total;
+            }
+        }
+
+        for (int i = 0; i < partial.fields.length; i++) {
+            if (partial.fields[i] == null) {
+                partial.fields[i] = other.fields[i];
+            }
+        }
+    }
+
+    /**
+     * @return The value of each column, or null for a column with no expression.
+     */
+    public Val[] eval(final Partial partial) {
+        final Val[] row = new Val[fieldCount + slots.length];
+        for (int i = 0; i < fields.length; i++) {
+            row[fields[i]] = partial.fields[i];
+        }
+        for (int i = 0; i < slots.length; i++) {
+            row[fieldCount + i] = eval(slots[i], partial);
+        }
+
+        final Val[] result = new Val[finals.length];
+        for (int i = 0; i < finals.length; i++) {
+            if (finals[i] != null) {
+                final Generator generator = finals[i].borrowGenerator();
+                generator.set(row);
+                result[i] = generator.eval();
+                finals[i].releaseGenerator(generator);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return The number of distinct aggregates held by each partial.
+     */
+    int getAggregateCount() {
+        return slots.length;
+    }
+
+    private Val eval(final Slot slot, final Partial partial) {
+        switch (slot.statistic) {
+            case COUNT:
+                return ValLong.create(partial.longs[slot.count]);
+            case SUM:
+            case MIN:
+            case MAX:
+                final Val value = partial.values[slot.value];
+                return value == null ? ValNull.INSTANCE : value;
+            case AVERAGE: {
+                // As average() does.
+                final Val sum = partial.values[slot.value];
+                final long rows = partial.longs[slot.count];
+                if (sum == null || !sum.type().isValue() || rows == 0) {
+                    if (sum != null && sum.type().isError()) {
+                        return sum;
+                    }
+                    return ValNull.INSTANCE;
+                }
+                return ValDouble.create(sum.toDouble() / rows);
+            }
+            case STDEV:
+            case VARIANCE: {
+                final double n = partial.doubles[slot.moments];
+                if (n == 0) {
+                    return ValNull.INSTANCE;
+                }
+                final double variance = partial.doubles[slot.moments + 2] / n;
+                return ValDouble.create(slot.statistic == SimpleAggregate.STDEV ? Math.sqrt(variance) : variance);
+            }
+            default:
+                throw new IllegalStateException("Unexpected statistic " + slot.statistic);
+        }
+    }
+
+    private static Val calc(final Slot slot, final Val current, final Val value) {
+        final Val cur = current == null ? ValNull.INSTANCE : current;
+        if (value == null) {
+            return cur;
+        }
+        if (slot.integral) {
+            return slot.calculator.calcLong(cur, value);
+        }
+        return slot.calculator.calc(cur, value);
+    }
+
+    /**
+     * The state of the aggregates of a plan for one group. Partials only hold values, so they are small to send to
+     * other nodes, and must be changed through the methods of the plan that created them.
+     */
+    public static final class Partial implements Serializable {
+        private static final long serialVersionUID = 7790519564779419207L;
+
+        // The sums, mins and maxes.
+        private final Val[] values;
+        // Row counts.
+        private final long[] longs;
+        // The count, mean and sum of squared differences from the mean for each stDev() or variance().
+        private final double[] doubles;
+        // The values of the fields referenced outside of an aggregate from the latest row.
+        private final Val[] fields;
+
+        // The generators for the arguments of the aggregates, only needed where rows are added.
+        private transient Generator[] arguments;
+
+        private Partial(final Val[] values, final long[] longs, final double[] doubles, final Val[] fields) {
+            this.values = values;
+            this.longs = longs;
+            this.doubles = doubles;
+            this.fields = fields;
+        }
+    }
+
+    /**
+     * Where the state of one aggregate is held in a partial. Offsets are -1 where not used.
+     */
+    private static final class Slot {
+        private final SimpleAggregate statistic;
+        private final LongCalculator calculator;
+        private final boolean integral;
+        private final int value;
+        private final int count;
+        private final int moments;
+
+        Slot(final SimpleAggregate statistic,
+             final LongCalculator calculator,
+             final boolean integral,
+             final int value,
+             final int count,
+             final int moments) {
+            this.statistic = statistic;
+            this.calculator = calculator;
+            this.integral = integral;
+            this.value = value;
+            this.count = count;
+            this.moments = moments;
+        }
+    }
+
+    /**
+     * Finds the aggregates in the columns and replaces them in the final expressions.
+     */
+    private static final class Builder {
+        private final int fieldCount;
+        private final Map<String, Integer> indexes = new LinkedHashMap<>();
+        private final List<Slot> slots = new ArrayList<>();
+        private final List<Function> arguments = new ArrayList<>();
+        private final TreeSet<Integer> fields = new TreeSet<>();
+        private int values;
+        private int counts;
+        private int moments;
+
+        Builder(final int fieldCount) {
+            this.fieldCount = fieldCount;
+        }
+
+        void collect(final Param param, final boolean inAggregate) throws ParseException {
+            if (param instanceof Ref) {
+                if (!inAggregate) {
+                    fields.add(((Ref) param).getFieldIndex());
+                }
+            } else if (param instanceof Function && ((Function) param).isAggregate()) {
+                add((Function) param);
+            } else if (param instanceof AbstractFunction && ((AbstractFunction) param).params != null) {
+                for (final Param child : ((AbstractFunction) param).params) {
+                    collect(child, inAggregate);
+                }
+            }
+        }
+
+        private void add(final Function function) throws ParseException {
+            final String key = function.toString();
+            if (indexes.containsKey(key)) {
+                return;
+            }
+
+            final SimpleAggregate statistic = SimpleAggregate.of(function);
+            if (statistic == null) {
+                throw new ParseException("'" + key + "' can't be split into partial and final aggregates", 0);
+            }
+
+            indexes.put(key, slots.size());
+            if (statistic == SimpleAggregate.COUNT) {
+                slots.add(new Slot(statistic, null, false, -1, counts++, -1));
+                arguments.add(null);
+                return;
+            }
+
+            final Function argument = SimpleAggregate.argumentOf(function);
+            collect(argument, true);
+            arguments.add(argument);
+            switch (statistic) {
+                case SUM:
+                    slots.add(new Slot(statistic, SUM, isIntegral(function), values++, -1, -1));
+                    break;
+                case MIN:
+                    slots.add(new Slot(statistic, MIN, isIntegral(function), values++, -1, -1));
+                    break;
+                case MAX:
+                    slots.add(new Slot(statistic, MAX, isIntegral(function), values++, -1, -1));
+                    break;
+                case AVERAGE:
+                    slots.add(new Slot(statistic, SUM, false, values++, counts++, -1));
+                    break;
+                default:
+                    slots.add(new Slot(statistic, null, false, -1, -1, moments));
+                    moments += 3;
+                    break;
+            }
+        }
+
+        private boolean isIntegral(final Function function) {
+            return ((AbstractAggregateFunction) function).isIntegral();
+        }
+
+        /**
+         * Replace the aggregates in a function with references to their results.
+         *
+         * @return The replacement if the function itself is an aggregate, otherwise null.
+         */
+        Function replace(final Function function) throws ParseException {
+            if (function.isAggregate()) {
+                final String key = function.toString();
+                return new AggregateRef(key, fieldCount + indexes.get(key),
+                        InferredType.of(function) == InferredType.LONG);
+            }
+
+            if (function instanceof AbstractFunction && !(function instanceof Ref)) {
+                final AbstractFunction parent = (AbstractFunction) function;
+                if (parent.params != null && parent.hasAggregate()) {
+                    for (int i = 0; i < parent.params.length; i++) {
+                        if (parent.params[i] instanceof Function) {
+                            final Function replacement = replace((Function) parent.params[i]);
+                            if (replacement != null) {
+                                parent.params[i] = replacement;
+                            }
+                        }
+                    }
+                    // Derive everything that depends on the parameters again.
+                    parent.setParams(parent.params);
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * A reference to the result of an aggregate in the row given to the final expressions. It has the type of the
+     * aggregate it replaces, so integral arithmetic on it is still exact, but reads the result unconverted as an
+     * integral sum that has overflowed will have widened to a double.
+     */
+    private static final class AggregateRef extends Ref {
+        private final Ref untyped;
+
+        AggregateRef(final String text, final int fieldIndex, final boolean integral) {
+            super(text, fieldIndex, integral ? FieldType.LONG : null);
+            untyped = new Ref(text, fieldIndex);
+        }
+
+        @Override
+        public Generator createGenerator() {
+            return untyped.createGenerator();
+        }
+    }
+}
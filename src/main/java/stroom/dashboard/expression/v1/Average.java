@@ -80,12 +80,17 @@ class Average extends AbstractManyChildFunction implements AggregateFunction {
         }
 
         @Override
-        public void merge(final Generator generator) {
+        void mergeState(final Generator generator) {
             final AggregateGen aggregateGen = (AggregateGen) generator;
             current = calculator.calc(current, aggregateGen.current);
             count += aggregateGen.count;
+        }
 
-            super.merge(generator);
+        @Override
+        public void reset() {
+            super.reset();
+            current = ValNull.INSTANCE;
+            count = 0;
         }
     }
 
@@ -42,5 +42,17 @@ abstract class Calculator implements Serializable {
         }
     }
 
+    /**
+     * As {@link #calc(Val, Val)} for a value that is known not to be an error and has already been converted to a
+     * double.
+     */
+    Val calc(final Val current, final Val value, final double val) {
+        final Double cur = current.toDouble();
+        if (cur == null) {
+            return value;
+        }
+        return ValDouble.create(op(cur, val));
+    }
+
     protected abstract double op(final double cur, final double val);
 }
@@ -59,5 +59,11 @@ class Count extends AbstractFunction {
             count += countGen.count;
             super.merge(generator);
         }
+
+        @Override
+        public void reset() {
+            super.reset();
+            count = 0;
+        }
     }
 }
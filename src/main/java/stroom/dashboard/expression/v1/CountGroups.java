@@ -73,5 +73,17 @@ class CountGroups extends AbstractFunction {
             childGroups.addAll(countGen.childGroups);
             super.merge(generator);
         }
+
+        @Override
+        public void rollUp(final Generator generator) {
+            // The child keys of a child group are the keys of grandchildren so aren't counted.
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            childGroups.clear();
+            nonGroupedChildCount = 0;
+        }
     }
 }
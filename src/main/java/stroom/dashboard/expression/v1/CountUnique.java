@@ -71,10 +71,17 @@ class CountUnique extends AbstractFunction {
         return isAggregate();
     }
 
+    /**
+     * Integral values are held in compressed bitmaps, with a separate bitmap for each type of value as values of
+     * different types are never equal. Anything else is held in a hash set.
+     */
     private static class Gen extends AbstractSingleChildGenerator {
         private static final long serialVersionUID = -6770724151493320673L;
 
-        private final Set<Val> uniqueValues = new HashSet<>();
+        private RoaringBitmap integers;
+        private RoaringBitmap longs;
+        private RoaringBitmap doubles;
+        private Set<Val> uniqueValues;
 
         Gen(final Generator childGenerator) {
             super(childGenerator);
@@ -85,20 +92,94 @@ class CountUnique extends AbstractFunction {
             childGenerator.set(values);
             final Val value = childGenerator.eval();
             if (value.type().isValue()) {
-                uniqueValues.add(value);
+                add(value);
             }
         }
 
         @Override
         public Val eval() {
-            return ValInteger.create(uniqueValues.size());
+            long count = 0;
+            if (integers != null) {
+                count += integers.cardinality();
+            }
+            if (longs != null) {
+                count += longs.cardinality();
+            }
+            if (doubles != null) {
+                count += doubles.cardinality();
+            }
+            if (uniqueValues != null) {
+                count += uniqueValues.size();
+            }
+            return ValInteger.create((int) count);
         }
 
         @Override
-        public void merge(final Generator generator) {
+        void mergeState(final Generator generator) {
             final Gen gen = (Gen) generator;
-            uniqueValues.addAll(gen.uniqueValues);
-            super.merge(generator);
+            integers = or(integers, gen.integers);
+            longs = or(longs, gen.longs);
+            doubles = or(doubles, gen.doubles);
+            if (gen.uniqueValues != null) {
+                if (uniqueValues == null) {
+                    uniqueValues = new HashSet<>(gen.uniqueValues);
+                } else {
+                    uniqueValues.addAll(gen.uniqueValues);
+                }
+            }
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            integers = null;
+            longs = null;
+            doubles = null;
+            uniqueValues = null;
+        }
+
+        private void add(final Val value) {
+            if (value instanceof ValInteger) {
+                if (integers == null) {
+                    integers = new RoaringBitmap();
+                }
+                integers.add(value.toLong());
+            } else if (value instanceof ValLong) {
+                if (longs == null) {
+                    longs = new RoaringBitmap();
+                }
+                longs.add(value.toLong());
+            } else if (value instanceof ValDouble && isIntegral(value.toDouble())) {
+                if (doubles == null) {
+                    doubles = new RoaringBitmap();
+                }
+                doubles.add(value.toDouble().longValue());
+            } else {
+                if (uniqueValues == null) {
+                    uniqueValues = new HashSet<>();
+                }
+                uniqueValues.add(value);
+            }
+        }
+
+        /**
+         * @return True if the double is a whole number that is exactly represented by a long. Negative zero is not
+         * equal to zero so is left to the hash set.
+         */
+        private static boolean isIntegral(final double d) {
+            return d == Math.rint(d)
+                    && d >= Long.MIN_VALUE
+                    && d < 0x1p63
+                    && !(d == 0 && Double.doubleToRawLongBits(d) != 0);
+        }
+
+        private static RoaringBitmap or(final RoaringBitmap bitmap, final RoaringBitmap other) {
+            if (other == null) {
+                return bitmap;
+            }
+            final RoaringBitmap result = bitmap == null ? new RoaringBitmap() : bitmap;
+            result.or(other);
+            return result;
         }
     }
 }
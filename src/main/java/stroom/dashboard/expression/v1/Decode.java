@@ -18,13 +18,13 @@ package stroom.dashboard.expression.v1;
 
 import java.io.Serializable;
 import java.text.ParseException;
-import java.util.regex.Pattern;
 
 class Decode extends AbstractManyChildFunction implements Serializable {
     static final String NAME = "decode";
     private static final long serialVersionUID = -305845496003936297L;
     private Generator gen;
     private boolean simple;
+    private String[] regexes;
 
     public Decode(final String name) {
         super(name, 4, Integer.MAX_VALUE);
@@ -58,8 +58,8 @@ class Decode extends AbstractManyChildFunction implements Serializable {
                     throw new ParseException("An empty regex has been defined for argument of '" + name + "' function", 0);
                 }
 
-                final Pattern pattern = PatternCache.get(regex);
-                if (pattern.matcher(value).matches()) {
+                final PatternMatcher matcher = PatternCache.get(regex);
+                if (matcher.matches(value)) {
                     newValue = params[i + 1].toString();
                     break;
                 }
@@ -68,6 +68,8 @@ class Decode extends AbstractManyChildFunction implements Serializable {
             gen = new StaticValueFunction(ValString.create(newValue)).createGenerator();
 
         } else {
+            final String[] staticRegexes = new String[(params.length - 2) / 2];
+            boolean allStatic = true;
             for (int i = 1; i < params.length - 1; i += 2) {
                 if (params[i] instanceof Val) {
                     // Test regex is valid.
@@ -76,8 +78,17 @@ class Decode extends AbstractManyChildFunction implements Serializable {
                         throw new ParseException("An empty regex has been defined for argument of '" + name + "' function", 0);
                     }
                     PatternCache.get(regex);
+                    staticRegexes[i / 2] = regex;
+                } else {
+                    allStatic = false;
                 }
             }
+
+            // If every regex is static then generators can test them all at once.
+            if (allStatic) {
+                regexes = staticRegexes;
+                PatternCache.getMulti(regexes);
+            }
         }
     }
 
@@ -91,7 +102,7 @@ class Decode extends AbstractManyChildFunction implements Serializable {
 
     @Override
     protected Generator createGenerator(final Generator[] childGenerators) {
-        return new Gen(childGenerators);
+        return new Gen(childGenerators, regexes);
     }
 
     @Override
@@ -105,8 +116,12 @@ class Decode extends AbstractManyChildFunction implements Serializable {
     private static class Gen extends AbstractManyChildGenerator {
         private static final long serialVersionUID = 8153777070911899616L;
 
-        Gen(final Generator[] childGenerators) {
+        private final String[] regexes;
+        private transient MultiPatternMatcher matcher;
+
+        Gen(final Generator[] childGenerators, final String[] regexes) {
             super(childGenerators);
+            this.regexes = regexes;
         }
 
         @Override
@@ -131,25 +146,36 @@ class Decode extends AbstractManyChildFunction implements Serializable {
                 }
                 String newValue = newVal.toString();
 
-                for (int i = 1; i < childGenerators.length - 1; i += 2) {
-                    final Val valRegex = childGenerators[i].eval();
-                    if (!valRegex.type().isValue()) {
-                        return ValErr.wrap(valRegex);
-                    }
-
-                    final String regex = valRegex.toString();
-                    if (regex.length() == 0) {
-                        return ValErr.create("Empty regex");
-                    }
-
-                    final Pattern pattern = PatternCache.get(regex);
-                    if (pattern.matcher(value).matches()) {
-                        newVal = childGenerators[i + 1].eval();
+                if (regexes != null) {
+                    final int index = getMatcher().firstMatch(value);
+                    if (index != -1) {
+                        newVal = childGenerators[index * 2 + 2].eval();
                         if (!newVal.type().isValue()) {
                             return ValErr.wrap(newVal);
                         }
                         newValue = newVal.toString();
-                        break;
+                    }
+                } else {
+                    for (int i = 1; i < childGenerators.length - 1; i += 2) {
+                        final Val valRegex = childGenerators[i].eval();
+                        if (!valRegex.type().isValue()) {
+                            return ValErr.wrap(valRegex);
+                        }
+
+                        final String regex = valRegex.toString();
+                        if (regex.length() == 0) {
+                            return ValErr.create("Empty regex");
+                        }
+
+                        final PatternMatcher patternMatcher = PatternCache.get(regex);
+                        if (patternMatcher.matches(value)) {
+                            newVal = childGenerators[i + 1].eval();
+                            if (!newVal.type().isValue()) {
+                                return ValErr.wrap(newVal);
+                            }
+                            newValue = newVal.toString();
+                            break;
+                        }
                     }
                 }
 
@@ -163,5 +189,12 @@ class Decode extends AbstractManyChildFunction implements Serializable {
                 return ValErr.create(e.getMessage());
             }
         }
+
+        private MultiPatternMatcher getMatcher() {
+            if (matcher == null) {
+                matcher = PatternCache.getMulti(regexes);
+            }
+            return matcher;
+        }
     }
 }
@@ -19,6 +19,7 @@ package stroom.dashboard.expression.v1;
 public class Expression implements Function {
     private Function function;
     private boolean hasAggregate;
+    private transient GeneratorPool pool;
 
     @Override
     public void setParams(final Param[] params) {
@@ -34,7 +35,33 @@ public class Expression implements Function {
 
     @Override
     public Generator createGenerator() {
-        return function.createGenerator();
+        return MemoisingGenerator.wrap(function.createGenerator());
+    }
+
+    /**
+     * Get a generator from this expression's pool of released generators, creating a new one if the pool is empty.
+     */
+    public Generator borrowGenerator() {
+        return getPool().borrow();
+    }
+
+    /**
+     * Reset a generator created by this expression and return it to the pool so it can be borrowed again, or drop it
+     * if it can't be reset. The generator must not be used by the caller afterwards.
+     */
+    public void releaseGenerator(final Generator generator) {
+        getPool().release(generator);
+    }
+
+    private synchronized GeneratorPool getPool() {
+        if (pool == null) {
+            pool = new GeneratorPool(this::createGenerator, GeneratorPool.DEFAULT_MAX_SIZE);
+        }
+        return pool;
+    }
+
+    Function getFunction() {
+        return function;
     }
 
     @Override
@@ -55,4 +82,9 @@ public class Expression implements Function {
     public boolean hasAggregate() {
         return hasAggregate;
     }
+
+    @Override
+    public boolean isDeterministic() {
+        return function == null || function.isDeterministic();
+    }
 }
@@ -51,6 +51,40 @@ public class ExpressionParser {
     }
 
     public Expression parse(final FieldIndexMap fieldIndexMap, final String input) throws ParseException {
+        return parse(fieldIndexMap, input, null);
+    }
+
+    /**
+     * Parse the expressions for all of the columns of a table into a single plan in which subexpressions that
+     * appear more than once, in one or more columns, are only evaluated once per row.
+     *
+     * @param fieldIndexMap The field index map shared by all of the columns.
+     * @param inputs        The expression for each column. A column with no expression has a null expression.
+     * @return A plan for the table.
+     * @throws ParseException If any of the expressions can't be parsed.
+     */
+    public TablePlan parseTable(final FieldIndexMap fieldIndexMap, final String[] inputs) throws ParseException {
+        final FunctionInterner interner = new FunctionInterner();
+        final Expression[] expressions = new Expression[inputs.length];
+        for (int i = 0; i < inputs.length; i++) {
+            expressions[i] = parse(fieldIndexMap, inputs[i], interner);
+        }
+        return new TablePlan(expressions, interner.size(), interner.getSharedCount());
+    }
+
+    /**
+     * Parse the expressions for the columns of a table into a plan that splits their aggregates into partial
+     * aggregates and a final evaluation so that partial results can be merged across nodes.
+     *
+     * @throws ParseException If an expression can't be parsed or uses an aggregate that can't be split.
+     */
+    public AggregatePlan parsePlan(final FieldIndexMap fieldIndexMap, final String[] inputs) throws ParseException {
+        return AggregatePlan.create(this, fieldIndexMap, inputs);
+    }
+
+    private Expression parse(final FieldIndexMap fieldIndexMap,
+                             final String input,
+                             final FunctionInterner interner) throws ParseException {
         if (input == null || input.trim().length() == 0) {
             return null;
         }
@@ -73,7 +107,7 @@ public class ExpressionParser {
         int lastSize = 0;
         while (objects.size() != lastSize) {
             lastSize = objects.size();
-            objects = processObjects(objects, fieldIndexMap);
+            objects = processObjects(objects, fieldIndexMap, interner);
         }
 
         // We should have a single object.
@@ -88,7 +122,7 @@ public class ExpressionParser {
         return expression;
     }
 
-    private List<Param> processObjects(final List<Param> objects, final FieldIndexMap fieldIndexMap) throws ParseException {
+    private List<Param> processObjects(final List<Param> objects, final FieldIndexMap fieldIndexMap, final FunctionInterner interner) throws ParseException {
         Token functionStart = null;
         int start = -1;
         int end;
@@ -106,7 +140,7 @@ public class ExpressionParser {
                     }
 
                     end = i;
-                    final Function function = getFunction(objects, start, end, fieldIndexMap);
+                    final Function function = getFunction(objects, start, end, fieldIndexMap, interner);
 
                     // Create a new list of objects to sandwich this function.
                     return sandwich(objects, function, start, end);
@@ -131,12 +165,12 @@ public class ExpressionParser {
         }
 
         // Any content that remains must be a parameter or parameter expression.
-        final Param param = getParam(copyList(objects, 0, objects.size() - 1), fieldIndexMap);
+        final Param param = getParam(copyList(objects, 0, objects.size() - 1), fieldIndexMap, interner);
         return Collections.singletonList(param);
 
     }
 
-    private Function getFunction(final List<Param> objects, final int start, final int end, final FieldIndexMap fieldIndexMap) throws ParseException {
+    private Function getFunction(final List<Param> objects, final int start, final int end, final FieldIndexMap fieldIndexMap, final FunctionInterner interner) throws ParseException {
         // Get the function.
         final Token functionToken = (Token) objects.get(start);
 
@@ -162,7 +196,7 @@ public class ExpressionParser {
                         }
 
                         final int paramEnd = i - 1;
-                        final Param param = getParam(copyList(objects, paramStart, paramEnd), fieldIndexMap);
+                        final Param param = getParam(copyList(objects, paramStart, paramEnd), fieldIndexMap, interner);
                         paramList.add(param);
 
                         paramStart = -1;
@@ -176,7 +210,7 @@ public class ExpressionParser {
 
             // Capture last param if there is one.
             if (paramStart != -1) {
-                final Param param = getParam(copyList(objects, paramStart, functionEnd), fieldIndexMap);
+                final Param param = getParam(copyList(objects, paramStart, functionEnd), fieldIndexMap, interner);
                 paramList.add(param);
             }
 
@@ -212,10 +246,10 @@ public class ExpressionParser {
         function.setParams(params);
 
         // Return the function.
-        return function;
+        return intern(function, interner);
     }
 
-    private Param getParam(final List<Param> objects, final FieldIndexMap fieldIndexMap) throws ParseException {
+    private Param getParam(final List<Param> objects, final FieldIndexMap fieldIndexMap, final FunctionInterner interner) throws ParseException {
         List<Param> newObjects = objects;
 
         // If no objects are included to create this param then return null.
@@ -237,14 +271,14 @@ public class ExpressionParser {
         int lastSize = 0;
         while (newObjects.size() > 1 && newObjects.size() != lastSize) {
             lastSize = newObjects.size();
-            newObjects = applyBODMAS(newObjects, fieldIndexMap);
+            newObjects = applyBODMAS(newObjects, fieldIndexMap, interner);
         }
 
         // Repeatedly try and apply equality operators.
         lastSize = 0;
         while (newObjects.size() > 1 && newObjects.size() != lastSize) {
             lastSize = newObjects.size();
-            newObjects = applyEquality(newObjects, fieldIndexMap);
+            newObjects = applyEquality(newObjects, fieldIndexMap, interner);
         }
 
         // If there is only a single object then turn it into a parameter if necessary and return.
@@ -267,7 +301,7 @@ public class ExpressionParser {
         throw new ParseException("Unexpected '" + object.toString() + "'", -1);
     }
 
-    private List<Param> applyBODMAS(final List<Param> objects, final FieldIndexMap fieldIndexMap) throws ParseException {
+    private List<Param> applyBODMAS(final List<Param> objects, final FieldIndexMap fieldIndexMap, final FunctionInterner interner) throws ParseException {
         // If there is more than one object then apply BODMAS rules.
         for (final Type type : BODMAS) {
             for (int i = 0; i < objects.size(); i++) {
@@ -279,9 +313,9 @@ public class ExpressionParser {
                         int rightParamIndex = i + 1;
 
                         // Get left param.
-                        final Param leftParam = getParam(copyList(objects, leftParamIndex, leftParamIndex), fieldIndexMap);
+                        final Param leftParam = getParam(copyList(objects, leftParamIndex, leftParamIndex), fieldIndexMap, interner);
                         // Get right param.
-                        final Param rightParam = getParam(copyList(objects, rightParamIndex, rightParamIndex), fieldIndexMap);
+                        final Param rightParam = getParam(copyList(objects, rightParamIndex, rightParamIndex), fieldIndexMap, interner);
 
                         // Addition and subtraction without a preceding param are allowed. In this form plus can be
                         // ignored and minus will negate right param.
@@ -303,12 +337,12 @@ public class ExpressionParser {
                             if (Type.SUBTRACTION.equals(type)) {
                                 final Negate negate = new Negate(token.toString());
                                 negate.setParams(new Param[]{rightParam});
-                                param = negate;
+                                param = intern(negate, interner);
                             }
                         } else {
                             final Function function = functionFactory.create(token.toString());
                             function.setParams(new Param[]{leftParam, rightParam});
-                            param = function;
+                            param = intern(function, interner);
                         }
 
                         // Return a new object list that sandwiches the new object.
@@ -321,7 +355,7 @@ public class ExpressionParser {
         return objects;
     }
 
-    private List<Param> applyEquality(final List<Param> objects, final FieldIndexMap fieldIndexMap) throws ParseException {
+    private List<Param> applyEquality(final List<Param> objects, final FieldIndexMap fieldIndexMap, final FunctionInterner interner) throws ParseException {
         // If there is more than one object then apply equality rules.
         for (final Type type : EQUALITY) {
             for (int i = 0; i < objects.size(); i++) {
@@ -330,9 +364,9 @@ public class ExpressionParser {
                     final Token token = (Token) object;
                     if (type.equals(token.getType())) {
                         // Get before param.
-                        final Param leftParam = getParam(copyList(objects, 0, i - 1), fieldIndexMap);
+                        final Param leftParam = getParam(copyList(objects, 0, i - 1), fieldIndexMap, interner);
                         // Get after param.
-                        final Param rightParam = getParam(copyList(objects, i + 1, objects.size() - 1), fieldIndexMap);
+                        final Param rightParam = getParam(copyList(objects, i + 1, objects.size() - 1), fieldIndexMap, interner);
 
                         if (leftParam == null) {
                             throw new ParseException("No parameter before operator", token.getStart());
@@ -343,7 +377,7 @@ public class ExpressionParser {
 
                         final Function function = functionFactory.create(token.toString());
                         function.setParams(new Param[]{leftParam, rightParam});
-                        return Collections.singletonList(function);
+                        return Collections.singletonList(intern(function, interner));
                     }
                 }
             }
@@ -352,6 +386,13 @@ public class ExpressionParser {
         return objects;
     }
 
+    private Function intern(final Function function, final FunctionInterner interner) {
+        if (interner == null) {
+            return function;
+        }
+        return interner.intern(function);
+    }
+
     private List<Param> copyList(final List<Param> list, final int startIndex, final int endIndex) {
         if (endIndex < startIndex) {
             return Collections.emptyList();
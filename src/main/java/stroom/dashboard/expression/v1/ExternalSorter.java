@@ -0,0 +1,493 @@
+/*
+ * Copyright 2019 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.dashboard.expression.v1;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts result rows that may not fit in memory. Rows are buffered until the buffer is full, then sorted and written
+ * to a run file in the temp directory as (sort keys, key, generator state) records. Reading merges the runs and any
+ * rows still in memory so sorted pages can be streamed back without holding the whole result. If there are more runs
+ * than can be merged at once they are first merged in batches into longer runs so only a bounded number of run files
+ * are ever open together.
+ * <p>
+ * Rows are ordered per column by {@link SortKey}, the same order as {@link Generator#compareTo(Object)}. Keys and
+ * generators are written with Java serialisation so they must be serialisable.
+ */
+public final class ExternalSorter implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ExternalSorter.class);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int DEFAULT_MERGE_FAN_IN = 64;
+
+    private final Path tempDir;
+    private final int[] sortColumns;
+    private final boolean[] descending;
+    private final int maxRowsInMemory;
+    private final int mergeFanIn;
+
+    private final List<Record> buffer = new ArrayList<>();
+    private final List<Path> runs = new ArrayList<>();
+    private final List<RunReader> readers = new ArrayList<>();
+    private boolean reading;
+
+    /**
+     * @param tempDir         The directory to write run files to.
+     * @param sortColumns     The indexes of the generators to sort by in order of precedence.
+     * @param descending      Whether each sort column is sorted in descending order.
+     * @param maxRowsInMemory The number of rows to buffer before writing a run.
+     */
+    public ExternalSorter(final Path tempDir,
+                          final int[] sortColumns,
+                          final boolean[] descending,
+                          final int maxRowsInMemory) {
+        this(tempDir, sortColumns, descending, maxRowsInMemory, DEFAULT_MERGE_FAN_IN);
+    }
+
+    /**
+     * @param mergeFanIn The maximum number of runs to open and merge at once.
+     */
+    ExternalSorter(final Path tempDir,
+                   final int[] sortColumns,
+                   final boolean[] descending,
+                   final int maxRowsInMemory,
+                   final int mergeFanIn) {
+        if (sortColumns.length != descending.length) {
+            throw new IllegalArgumentException("A sort direction is required for each sort column");
+        }
+        if (maxRowsInMemory < 1) {
+            throw new IllegalArgumentException("At least one row must be held in memory");
+        }
+        if (mergeFanIn < 2) {
+            throw new IllegalArgumentException("At least two runs must be merged at once");
+        }
+
+        this.tempDir = tempDir;
+        this.sortColumns = sortColumns.clone();
+        this.descending = descending.clone();
+        this.maxRowsInMemory = maxRowsInMemory;
+        this.mergeFanIn = mergeFanIn;
+    }
+
+    public void add(final Key key, final Generator[] generators) throws IOException {
+        if (reading) {
+            throw new IllegalStateException("Rows can't be added once reading has started");
+        }
+
+        final SortKey[] sortKeys = new SortKey[sortColumns.length];
+        for (int i = 0; i < sortColumns.length; i++) {
+            sortKeys[i] = SortKey.create(generators[sortColumns[i]].eval());
+        }
+        buffer.add(new Record(sortKeys, key, generators, null));
+
+        if (buffer.size() >= maxRowsInMemory) {
+            writeRun();
+        }
+    }
+
+    /**
+     * @return The number of runs that have been written to disk.
+     */
+    int getRunCount() {
+        return runs.size();
+    }
+
+    /**
+     * Stream the sorted rows in pages. No more rows can be added once this has been called.
+     *
+     * @param pageSize The maximum number of rows in each page.
+     */
+    public Iterator<List<Row>> pages(final int pageSize) throws IOException {
+        if (reading) {
+            throw new IllegalStateException("The rows can only be read once");
+        }
+        reading = true;
+        mergeRuns();
+
+        final PriorityQueue<Source> queue = new PriorityQueue<>((s1, s2) -> compare(s1.current, s2.current));
+        buffer.sort(this::compare);
+        final Source memory = new MemorySource(buffer.iterator());
+        if (memory.current != null) {
+            queue.add(memory);
+        }
+        for (final Path run : runs) {
+            final RunReader reader = new RunReader(run, sortColumns.length);
+            readers.add(reader);
+            if (reader.current != null) {
+                queue.add(reader);
+            }
+        }
+
+        return new Iterator<List<Row>>() {
+            @Override
+            public boolean hasNext() {
+                return !queue.isEmpty();
+            }
+
+            @Override
+            public List<Row> next() {
+                if (queue.isEmpty()) {
+                    throw new NoSuchElementException();
+                }
+
+                final List<Row> page = new ArrayList<>(pageSize);
+                try {
+                    while (page.size() < pageSize && !queue.isEmpty()) {
+                        final Source source = queue.poll();
+                        page.add(source.current.toRow());
+                        source.advance();
+                        if (source.current != null) {
+                            queue.add(source);
+                        }
+                    }
+                } catch (final IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return page;
+            }
+        };
+    }
+
+    /**
+     * Delete any run files.
+     */
+    @Override
+    public void close() throws IOException {
+        for (final RunReader reader : readers) {
+            reader.close();
+        }
+        readers.clear();
+        for (final Path run : runs) {
+            Files.deleteIfExists(run);
+        }
+        runs.clear();
+        buffer.clear();
+    }
+
+    private void writeRun() throws IOException {
+        buffer.sort(this::compare);
+
+        final Path run = Files.createTempFile(tempDir, "sort", ".run");
+        runs.add(run);
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Writing " + buffer.size() + " rows to " + run);
+        }
+
+        try (final RunWriter writer = new RunWriter(run)) {
+            for (final Record record : buffer) {
+                writer.write(record);
+            }
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Merge the oldest runs in batches into new runs until no more than the fan in remain to be read together.
+     */
+    private void mergeRuns() throws IOException {
+        while (runs.size() > mergeFanIn) {
+            final List<Path> batch = new ArrayList<>(runs.subList(0, mergeFanIn));
+            runs.subList(0, mergeFanIn).clear();
+
+            final Path run = Files.createTempFile(tempDir, "sort", ".run");
+            runs.add(run);
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Merging " + batch.size() + " runs into " + run);
+            }
+
+            final List<RunReader> batchReaders = new ArrayList<>(batch.size());
+            try (final RunWriter writer = new RunWriter(run)) {
+                final PriorityQueue<Source> queue = new PriorityQueue<>((s1, s2) -> compare(s1.current, s2.current));
+                for (final Path path : batch) {
+                    final RunReader reader = new RunReader(path, sortColumns.length);
+                    batchReaders.add(reader);
+                    if (reader.current != null) {
+                        queue.add(reader);
+                    }
+                }
+
+                while (!queue.isEmpty()) {
+                    final Source source = queue.poll();
+                    writer.write(source.current);
+                    source.advance();
+                    if (source.current != null) {
+                        queue.add(source);
+                    }
+                }
+            } finally {
+                for (final RunReader reader : batchReaders) {
+                    reader.close();
+                }
+                for (final Path path : batch) {
+                    Files.deleteIfExists(path);
+                }
+            }
+        }
+    }
+
+    private int compare(final Record r1, final Record r2) {
+        for (int i = 0; i < sortColumns.length; i++) {
+            int diff = r1.sortKeys[i].compareTo(r2.sortKeys[i]);
+            if (diff != 0) {
+                if (descending[i]) {
+                    diff = -diff;
+                }
+                return diff;
+            }
+        }
+        return 0;
+    }
+
+    public static final class Row {
+        private final Key key;
+        private final Generator[] generators;
+
+        private Row(final Key key, final Generator[] generators) {
+            this.key = key;
+            this.generators = generators;
+        }
+
+        public Key getKey() {
+            return key;
+        }
+
+        public Generator[] getGenerators() {
+            return generators;
+        }
+    }
+
+    /**
+     * A row held either as objects or, once read back from a run, as serialised state that is only deserialised if
+     * the row is returned.
+     */
+    private static class Record {
+        private final SortKey[] sortKeys;
+        private final Key key;
+        private final Generator[] generators;
+        private final byte[] state;
+
+        Record(final SortKey[] sortKeys, final Key key, final Generator[] generators, final byte[] state) {
+            this.sortKeys = sortKeys;
+            this.key = key;
+            this.generators = generators;
+            this.state = state;
+        }
+
+        byte[] serialise() throws IOException {
+            if (state != null) {
+                return state;
+            }
+
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            try (final ObjectOutputStream oos = new ObjectOutputStream(baos)) {
+                oos.writeObject(key);
+                oos.writeObject(generators);
+            }
+            return baos.toByteArray();
+        }
+
+        Row toRow() throws IOException {
+            if (state == null) {
+                return new Row(key, generators);
+            }
+
+            try (final ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(state))) {
+                final Key key = (Key) ois.readObject();
+                final Generator[] generators = (Generator[]) ois.readObject();
+                return new Row(key, generators);
+            } catch (final ClassNotFoundException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+        }
+    }
+
+    private abstract static class Source {
+        Record current;
+
+        abstract void advance() throws IOException;
+    }
+
+    private static class MemorySource extends Source {
+        private final Iterator<Record> iterator;
+
+        MemorySource(final Iterator<Record> iterator) {
+            this.iterator = iterator;
+            advance();
+        }
+
+        @Override
+        void advance() {
+            if (iterator.hasNext()) {
+                current = iterator.next();
+            } else {
+                current = null;
+            }
+        }
+    }
+
+    /**
+     * Writes records sequentially through a single buffer. Each record is the length and bytes of each sort key
+     * followed by the length and bytes of the serialised key and generators.
+     */
+    private static class RunWriter implements Closeable {
+        private final FileChannel channel;
+        private final ByteBuffer byteBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        RunWriter(final Path path) throws IOException {
+            channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        void write(final Record record) throws IOException {
+            for (final SortKey sortKey : record.sortKeys) {
+                writeBytes(sortKey.getBytes());
+            }
+            writeBytes(record.serialise());
+        }
+
+        private void writeBytes(final byte[] bytes) throws IOException {
+            ensure(Integer.BYTES);
+            byteBuffer.putInt(bytes.length);
+
+            int offset = 0;
+            while (offset < bytes.length) {
+                ensure(1);
+                final int length = Math.min(byteBuffer.remaining(), bytes.length - offset);
+                byteBuffer.put(bytes, offset, length);
+                offset += length;
+            }
+        }
+
+        private void ensure(final int bytes) throws IOException {
+            if (byteBuffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            byteBuffer.flip();
+            while (byteBuffer.hasRemaining()) {
+                channel.write(byteBuffer);
+            }
+            byteBuffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    private static class RunReader extends Source implements Closeable {
+        private final FileChannel channel;
+        private final ByteBuffer byteBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final int sortKeyCount;
+        private boolean closed;
+
+        RunReader(final Path path, final int sortKeyCount) throws IOException {
+            this.channel = FileChannel.open(path, StandardOpenOption.READ);
+            this.sortKeyCount = sortKeyCount;
+            byteBuffer.flip();
+            advance();
+        }
+
+        @Override
+        void advance() throws IOException {
+            if (!fill(1)) {
+                current = null;
+                close();
+                return;
+            }
+
+            final SortKey[] sortKeys = new SortKey[sortKeyCount];
+            for (int i = 0; i < sortKeyCount; i++) {
+                sortKeys[i] = SortKey.fromBytes(readBytes());
+            }
+            current = new Record(sortKeys, null, null, readBytes());
+        }
+
+        private byte[] readBytes() throws IOException {
+            if (!fill(Integer.BYTES)) {
+                throw new EOFException("Unexpected end of run");
+            }
+            final byte[] bytes = new byte[byteBuffer.getInt()];
+
+            int offset = 0;
+            while (offset < bytes.length) {
+                if (!fill(1)) {
+                    throw new EOFException("Unexpected end of run");
+                }
+                final int length = Math.min(byteBuffer.remaining(), bytes.length - offset);
+                byteBuffer.get(bytes, offset, length);
+                offset += length;
+            }
+            return bytes;
+        }
+
+        /**
+         * @return False if the end of the file is reached before the number of bytes are available.
+         */
+        private boolean fill(final int bytes) throws IOException {
+            if (byteBuffer.remaining() >= bytes) {
+                return true;
+            }
+            if (closed) {
+                return false;
+            }
+
+            byteBuffer.compact();
+            while (byteBuffer.position() < bytes) {
+                if (channel.read(byteBuffer) == -1) {
+                    break;
+                }
+            }
+            byteBuffer.flip();
+            return byteBuffer.remaining() >= bytes;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                channel.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2019 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.dashboard.expression.v1;
+
+/**
+ * Non cryptographic hash functions for bucketing and sampling. These are much cheaper than a message digest but must
+ * not be used where the hash needs to be hard to reverse.
+ */
+final class FastHash {
+    private static final int MURMUR3_C1 = 0xcc9e2d51;
+    private static final int MURMUR3_C2 = 0x1b873593;
+
+    private static final long XXHASH_PRIME_1 = 0x9E3779B185EBCA87L;
+    private static final long XXHASH_PRIME_2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long XXHASH_PRIME_3 = 0x165667B19E3779F9L;
+    private static final long XXHASH_PRIME_4 = 0x85EBCA77C2B2AE63L;
+    private static final long XXHASH_PRIME_5 = 0x27D4EB2F165667C5L;
+
+    private FastHash() {
+        // Utility
+    }
+
+    /**
+     * MurmurHash3 x86 32 bit.
+     */
+    static int murmur3(final byte[] data, final int seed) {
+        final int length = data.length;
+        final int blocks = length >>> 2;
+        int h = seed;
+
+        for (int i = 0; i < blocks; i++) {
+            int k = readInt(data, i << 2);
+            k *= MURMUR3_C1;
+            k = Integer.rotateLeft(k, 15);
+            k *= MURMUR3_C2;
+
+            h ^= k;
+            h = Integer.rotateLeft(h, 13);
+            h = h * 5 + 0xe6546b64;
+        }
+
+        final int tail = blocks << 2;
+        final int remaining = length & 3;
+        if (remaining > 0) {
+            int k = 0;
+            if (remaining == 3) {
+                k ^= (data[tail + 2] & 0xff) << 16;
+            }
+            if (remaining >= 2) {
+                k ^= (data[tail + 1] & 0xff) << 8;
+            }
+            k ^= data[tail] & 0xff;
+            k *= MURMUR3_C1;
+            k = Integer.rotateLeft(k, 15);
+            k *= MURMUR3_C2;
+            h ^= k;
+        }
+
+        h ^= length;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * xxHash 64 bit.
+     */
+    static long xxHash64(final byte[] data, final long seed) {
+        final int length = data.length;
+        int pos = 0;
+        long h;
+
+        if (length >= 32) {
+            long v1 = seed + XXHASH_PRIME_1 + XXHASH_PRIME_2;
+            long v2 = seed + XXHASH_PRIME_2;
+            long v3 = seed;
+            long v4 = seed - XXHASH_PRIME_1;
+
+            final int limit = length - 32;
+            while (pos <= limit) {
+                v1 = xxRound(v1, readLong(data, pos));
+                v2 = xxRound(v2, readLong(data, pos + 8));
+                v3 = xxRound(v3, readLong(data, pos + 16));
+                v4 = xxRound(v4, readLong(data, pos + 24));
+                pos += 32;
+            }
+
+            h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            h = xxMergeRound(h, v1);
+            h = xxMergeRound(h, v2);
+            h = xxMergeRound(h, v3);
+            h = xxMergeRound(h, v4);
+        } else {
+            h = seed + XXHASH_PRIME_5;
+        }
+
+        h += length;
+
+        while (pos + 8 <= length) {
+            h ^= xxRound(0, readLong(data, pos));
+            h = Long.rotateLeft(h, 27) * XXHASH_PRIME_1 + XXHASH_PRIME_4;
+            pos += 8;
+        }
+
+        if (pos + 4 <= length) {
+            h ^= (readInt(data, pos) & 0xFFFFFFFFL) * XXHASH_PRIME_1;
+            h = Long.rotateLeft(h, 23) * XXHASH_PRIME_2 + XXHASH_PRIME_3;
+            pos += 4;
+        }
+
+        while (pos < length) {
+            h ^= (data[pos] & 0xff) * XXHASH_PRIME_5;
+            h = Long.rotateLeft(h, 11) * XXHASH_PRIME_1;
+            pos++;
+        }
+
+        h ^= h >>> 33;
+        h *= XXHASH_PRIME_2;
+        h ^= h >>> 29;
+        h *= XXHASH_PRIME_3;
+        h ^= h >>> 32;
+        return h;
+    }
+
+    private static long xxRound(final long acc, final long input) {
+        long result = acc + input * XXHASH_PRIME_2;
+        result = Long.rotateLeft(result, 31);
+        return result * XXHASH_PRIME_1;
+    }
+
+    private static long xxMergeRound(final long acc, final long val) {
+        final long result = acc ^ xxRound(0, val);
+        return result * XXHASH_PRIME_1 + XXHASH_PRIME_4;
+    }
+
+    private static int readInt(final byte[] data, final int pos) {
+        return (data[pos] & 0xff)
+                | (data[pos + 1] & 0xff) << 8
+                | (data[pos + 2] & 0xff) << 16
+                | (data[pos + 3] & 0xff) << 24;
+    }
+
+    private static long readLong(final byte[] data, final int pos) {
+        return (readInt(data, pos) & 0xFFFFFFFFL) | ((long) readInt(data, pos + 4)) << 32;
+    }
+}
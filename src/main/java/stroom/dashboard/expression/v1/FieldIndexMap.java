@@ -23,6 +23,7 @@ import java.util.Map;
 
 public class FieldIndexMap {
     private final Map<String, Integer> fieldToPos = new HashMap<>();
+    private final Map<String, FieldType> fieldTypes = new HashMap<>();
     private final boolean autoCreate;
     private int index;
 
@@ -57,6 +58,31 @@ public class FieldIndexMap {
         return currentIndex;
     }
 
+    /**
+     * Create a field, if it doesn't already exist, and declare the type of values it holds. References to the field
+     * will convert values to this type.
+     *
+     * @param fieldName The name of the field.
+     * @param fieldType The type of the field or null if it isn't known.
+     * @return The index of the field.
+     */
+    public int create(final String fieldName, final FieldType fieldType) {
+        final int index = create(fieldName, true);
+        if (fieldType == null) {
+            fieldTypes.remove(fieldName);
+        } else {
+            fieldTypes.put(fieldName, fieldType);
+        }
+        return index;
+    }
+
+    /**
+     * @return The declared type of the field or null if no type has been declared.
+     */
+    public FieldType getType(final String fieldName) {
+        return fieldTypes.get(fieldName);
+    }
+
     public int get(final String fieldName) {
         final Integer currentIndex = fieldToPos.get(fieldName);
         if (currentIndex == null) {
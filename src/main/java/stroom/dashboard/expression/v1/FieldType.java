@@ -0,0 +1,109 @@
+/*
+ * Copyright 2019 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.dashboard.expression.v1;
+
+/**
+ * The type of values a field holds, declared on a {@link FieldIndexMap} so that references to the field produce
+ * values of that type and expressions using the field can be checked and specialised when they are parsed.
+ */
+public enum FieldType {
+    LONG,
+    DOUBLE,
+    /**
+     * Milliseconds since the epoch. Date strings are converted as they are read.
+     */
+    TIMESTAMP,
+    STRING,
+    BOOLEAN;
+
+    /**
+     * Convert a value to this type. Nulls and errors are returned unchanged and values that can't be converted
+     * become errors. Numbers with a fractional part, e.g. 12.7 or '12.7', can't be converted to a long or timestamp.
+     */
+    Val convert(final Val val) {
+        if (!val.type().isValue()) {
+            return val;
+        }
+
+        switch (this) {
+            case LONG:
+            case TIMESTAMP: {
+                if (val instanceof ValLong) {
+                    return val;
+                }
+                final Long value = toIntegral(val);
+                if (value != null) {
+                    return ValLong.create(value);
+                }
+                break;
+            }
+            case DOUBLE: {
+                if (val instanceof ValDouble) {
+                    return val;
+                }
+                final Double value = val.toDouble();
+                if (value != null) {
+                    return ValDouble.create(value);
+                }
+                break;
+            }
+            case STRING: {
+                if (val instanceof ValString) {
+                    return val;
+                }
+                return ValString.create(val.toString());
+            }
+            case BOOLEAN: {
+                if (val instanceof ValBoolean) {
+                    return val;
+                }
+                final Boolean value = val.toBoolean();
+                if (value != null) {
+                    return ValBoolean.create(value);
+                }
+                break;
+            }
+            default:
+                break;
+        }
+
+        return ValErr.create("Unable to convert '" + val + "' to a " + toString().toLowerCase());
+    }
+
+    /**
+     * @return The value as a long, or null if it isn't an integral number or date.
+     */
+    private static Long toIntegral(final Val val) {
+        if (val instanceof ValDouble) {
+            return toIntegral(val.toDouble());
+        }
+        final Long value = val.toLong();
+        if (value == null) {
+            // Strings such as '12.0' only convert as a double.
+            final Double d = val.toDouble();
+            return d == null ? null : toIntegral(d);
+        }
+        return value;
+    }
+
+    private static Long toIntegral(final double d) {
+        if (d != Math.rint(d) || Math.abs(d) >= 0x1p63) {
+            return null;
+        }
+        return (long) d;
+    }
+}
@@ -54,4 +54,16 @@ public interface Function extends Param, Serializable {
      * parameters used will aggregate data.
      */
     boolean hasAggregate();
+
+    /**
+     * Does this function and all of its child parameters always produce the
+     * same value for the same cell data. Functions such as random() don't, so
+     * each occurrence of them must be evaluated separately.
+     *
+     * @return True if this function and all of its child parameters are
+     * deterministic.
+     */
+    default boolean isDeterministic() {
+        return true;
+    }
 }
@@ -87,6 +87,22 @@ public class FunctionFactory {
         add(Count.class, Count.NAME);
         add(CountGroups.class, CountGroups.NAME);
         add(CountUnique.class, CountUnique.NAME);
+        add(TopValues.class, TopValues.NAME);
+        add(Sample.class, Sample.NAME);
+        add(First.class, First.NAME);
+        add(Last.class, Last.NAME);
+        add(ValueAtMax.class, ValueAtMax.NAME);
+        add(ValueAtMin.class, ValueAtMin.NAME);
+        add(Histogram.class, Histogram.NAME);
+        add(LogHistogram.class, LogHistogram.NAME);
+        add(WindowSum.class, WindowSum.NAME);
+        add(WindowCount.class, WindowCount.NAME);
+        add(WindowMin.class, WindowMin.NAME);
+        add(WindowMax.class, WindowMax.NAME);
+        add(WindowAverage.class, WindowAverage.NAME);
+        add(Ewma.class, Ewma.NAME);
+        add(DecayedRate.class, DecayedRate.NAME);
+        add(Joining.class, Joining.NAME, Joining.ALIAS);
 
         add(Power.class, Power.NAME, Power.ALIAS);
         add(Divide.class, Divide.NAME, Divide.ALIAS);
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2019 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.dashboard.expression.v1;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Used while parsing the columns of a table to make every occurrence of the same subexpression the same
+ * {@link SharedFunction}. Subexpressions are the same if they are written the same way.
+ * <p>
+ * Field references and literals are cheap enough to evaluate that they are left alone, as is anything that isn't
+ * {@link Function#isDeterministic() deterministic}, e.g. random(), as each occurrence of it is expected to give a
+ * different value.
+ */
+final class FunctionInterner {
+    private final Map<String, SharedFunction> functions = new HashMap<>();
+
+    Function intern(final Function function) {
+        if (function instanceof SharedFunction
+                || function instanceof Ref
+                || function instanceof StaticValueFunction
+                || !function.isDeterministic()) {
+            return function;
+        }
+
+        final String key = function.toString();
+        final SharedFunction existing = functions.get(key);
+        if (existing != null) {
+            existing.addUse();
+            return existing;
+        }
+
+        final SharedFunction shared = new SharedFunction(function, functions.size());
+        functions.put(key, shared);
+        return shared;
+    }
+
+    /**
+     * @return The number of distinct subexpressions, which is also one more than the highest index given to a
+     * {@link SharedFunction}.
+     */
+    int size() {
+        return functions.size();
+    }
+
+    /**
+     * @return The number of subexpressions that occur more than once.
+     */
+    int getSharedCount() {
+        int count = 0;
+        for (final SharedFunction function : functions.values()) {
+            if (function.isShared()) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
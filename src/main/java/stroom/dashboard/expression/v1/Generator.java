@@ -50,4 +50,29 @@ public interface Generator extends Serializable, Comparable<Generator> {
      * @param generator The generator to merge with this one.
      */
     void merge(Generator generator);
+
+    /**
+     * Merge the generator of a child group into this generator of its parent
+     * group, where a coarser grouping is being derived from a finer one. This
+     * is the same as {@link #merge(Generator)} except that countGroups() does
+     * not take the child keys of the child group, as they are the keys of its
+     * grandchildren. The caller adds the key of the child group itself.
+     *
+     * @param generator The generator of the child group.
+     */
+    default void rollUp(final Generator generator) {
+        merge(generator);
+    }
+
+    /**
+     * Return this generator and its children to the state they were in when
+     * created so that the generator can be reused for another group.
+     * <p>
+     * Generators that don't support being reused throw
+     * {@link UnsupportedOperationException}, in which case a new generator
+     * should be created instead.
+     */
+    default void reset() {
+        throw new UnsupportedOperationException("Generator " + getClass().getName() + " can't be reset");
+    }
 }
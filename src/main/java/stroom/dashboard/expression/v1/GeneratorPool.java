@@ -0,0 +1,73 @@
+/*
+ * Copyright 2019 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.dashboard.expression.v1;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.function.Supplier;
+
+/**
+ * Keeps generator trees that are no longer needed so they can be reset and handed out again rather than building a
+ * new tree for every group.
+ */
+final class GeneratorPool {
+    static final int DEFAULT_MAX_SIZE = 1000;
+
+    private final Supplier<Generator> supplier;
+    private final int maxSize;
+    private final Deque<Generator> free = new ArrayDeque<>();
+
+    GeneratorPool(final Supplier<Generator> supplier, final int maxSize) {
+        this.supplier = supplier;
+        this.maxSize = maxSize;
+    }
+
+    Generator borrow() {
+        Generator generator;
+        synchronized (free) {
+            generator = free.pollFirst();
+        }
+        if (generator == null) {
+            generator = supplier.get();
+        }
+        return generator;
+    }
+
+    /**
+     * Reset a generator and keep it for reuse. Generators that can't be reset are dropped. The generator must not be
+     * used by the caller afterwards.
+     */
+    void release(final Generator generator) {
+        try {
+            generator.reset();
+        } catch (final UnsupportedOperationException e) {
+            // Part of the tree can't be reset so let it go and create a new tree when one is next needed.
+            return;
+        }
+        synchronized (free) {
+            if (free.size() < maxSize) {
+                free.addFirst(generator);
+            }
+        }
+    }
+
+    int size() {
+        synchronized (free) {
+            return free.size();
+        }
+    }
+}
@@ -17,7 +17,7 @@
 package stroom.dashboard.expression.v1;
 
 import java.io.Serializable;
-import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.ParseException;
@@ -27,6 +27,13 @@ class Hash extends AbstractFunction implements Serializable {
     private static final long serialVersionUID = -305845496003936297L;
     private static final String DEFAULT_ALGORITHM = "SHA-256";
 
+    /**
+     * Non cryptographic algorithms that are cheap enough for bucketing and sampling.
+     */
+    static final String MURMUR3 = "murmur3";
+    static final String XXHASH64 = "xxhash64";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
     private String algorithm = DEFAULT_ALGORITHM;
     private String salt;
 
@@ -37,16 +44,79 @@ class Hash extends AbstractFunction implements Serializable {
         super(name, 1, 3);
     }
 
-    private static String hash(final String value, final String algorithm, final String salt) throws NoSuchAlgorithmException {
-        // Create MessageDigest object.
-        final MessageDigest digest = MessageDigest.getInstance(algorithm);
+    /**
+     * @return A digest for the algorithm or null if the algorithm is one of the non cryptographic hashes.
+     */
+    private static MessageDigest createDigest(final String algorithm) throws NoSuchAlgorithmException {
+        if (MURMUR3.equalsIgnoreCase(algorithm) || XXHASH64.equalsIgnoreCase(algorithm)) {
+            return null;
+        }
+        return MessageDigest.getInstance(algorithm);
+    }
+
+    private static byte[] getBytes(final String salt) {
+        if (salt == null) {
+            return null;
+        }
+        return salt.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String hash(final String value,
+                               final String algorithm,
+                               final byte[] salt,
+                               final MessageDigest digest) {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (digest == null) {
+            byte[] input = bytes;
+            if (salt != null) {
+                input = new byte[salt.length + bytes.length];
+                System.arraycopy(salt, 0, input, 0, salt.length);
+                System.arraycopy(bytes, 0, input, salt.length, bytes.length);
+            }
+            if (MURMUR3.equalsIgnoreCase(algorithm)) {
+                return toHex(FastHash.murmur3(input, 0), 4);
+            }
+            return toHex(FastHash.xxHash64(input, 0), 8);
+        }
+
+        digest.reset();
         if (salt != null) {
-            digest.update(salt.getBytes());
+            digest.update(salt);
+        }
+        return toHex(digest.digest(bytes));
+    }
+
+    /**
+     * Converts the low bytes of a value to base 16, keeping leading zeros so that the output of the non cryptographic
+     * hashes always has the same width and can be used for bucketing and prefixes.
+     *
+     * @param length The number of bytes of the value to convert.
+     */
+    private static String toHex(final long value, final int length) {
+        final char[] chars = new char[length * 2];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = HEX[(int) (value >>> ((chars.length - 1 - i) * 4)) & 0x0f];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Converts bytes to base 16. Leading zeros are dropped to give the same output as {@code new BigInteger(1,
+     * arr).toString(16)}, which earlier versions used, so existing hashes don't change.
+     */
+    private static String toHex(final byte[] arr) {
+        final char[] chars = new char[arr.length * 2];
+        for (int i = 0; i < arr.length; i++) {
+            final int b = arr[i] & 0xff;
+            chars[i * 2] = HEX[b >>> 4];
+            chars[i * 2 + 1] = HEX[b & 0x0f];
         }
 
-        final byte[] arr = digest.digest(value.getBytes());
-        // Converts message digest value in base 16 (hex)
-        return new BigInteger(1, arr).toString(16);
+        int start = 0;
+        while (start < chars.length - 1 && chars[start] == '0') {
+            start++;
+        }
+        return new String(chars, start, chars.length - start);
     }
 
     @Override
@@ -62,7 +132,7 @@ class Hash extends AbstractFunction implements Serializable {
 
         try {
             // Test that the algorithm is a valid one.
-            MessageDigest.getInstance(algorithm);
+            final MessageDigest digest = createDigest(algorithm);
 
             final Param param = params[0];
             if (param instanceof Function) {
@@ -75,7 +145,7 @@ class Hash extends AbstractFunction implements Serializable {
                 if (string == null) {
                     throw new ParseException("Unable to convert first argument of '" + name + "' function to string", 0);
                 }
-                gen = new StaticValueFunction(ValString.create(hash(string, algorithm, salt))).createGenerator();
+                gen = new StaticValueFunction(ValString.create(hash(string, algorithm, getBytes(salt), digest))).createGenerator();
             }
         } catch (final NoSuchAlgorithmException e) {
             throw new ParseException(e.getMessage(), 0);
@@ -110,6 +180,11 @@ class Hash extends AbstractFunction implements Serializable {
         private final String algorithm;
         private final String salt;
 
+        // Created on first use so that the generator stays serializable.
+        private transient boolean initialised;
+        private transient MessageDigest digest;
+        private transient byte[] saltBytes;
+
         Gen(final Generator childGenerator, final String algorithm, final String salt) {
             super(childGenerator);
             this.algorithm = algorithm;
@@ -129,7 +204,12 @@ class Hash extends AbstractFunction implements Serializable {
             }
 
             try {
-                return ValString.create(hash(val.toString(), algorithm, salt));
+                if (!initialised) {
+                    digest = createDigest(algorithm);
+                    saltBytes = getBytes(salt);
+                    initialised = true;
+                }
+                return ValString.create(hash(val.toString(), algorithm, saltBytes, digest));
             } catch (final NoSuchAlgorithmException | RuntimeException e) {
                 return ValErr.create(e.getMessage());
             }
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2019 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.dashboard.expression.v1;
+
+import java.text.ParseException;
+import java.util.Arrays;
+
+/**
+ * Counts the numeric values of the argument in each group into equal width buckets, e.g.
+ * histogram(${latency}, 0, 1000, 20), so that a distribution can be shown per group without grouping on a bucketing
+ * expression. Each group holds one array of counts and merging adds the arrays together.
+ * <p>
+ * The result lists the count in each bucket from lowest to highest, e.g. "5,3,0,1". Values below the minimum or at
+ * or above the maximum are counted separately and are shown after the buckets if there are any, e.g.
+ * "5,3,0,1 (2 below, 1 above)". Values that are not numbers are ignored.
+ */
+class Histogram extends AbstractFunction {
+    static final String NAME = "histogram";
+
+    private static final int MAX_BUCKETS = 10000;
+
+    private final boolean log;
+
+    private Function function;
+    private double min;
+    private double max;
+    private int buckets;
+
+    public Histogram(final String name) {
+        this(name, false);
+    }
+
+    Histogram(final String name, final boolean log) {
+        super(name, 4, 4);
+        this.log = log;
+    }
+
+    @Override
+    public void setParams(final Param[] params) throws ParseException {
+        super.setParams(params);
+
+        min = parseNumber(params[1], "second");
+        max = parseNumber(params[2], "third");
+        if (max <= min) {
+            throw new ParseException("The maximum of '" + name + "' must be greater than the minimum", 0);
+        }
+        if (log && min <= 0) {
+            throw new ParseException("The minimum of '" + name + "' must be greater than zero", 0);
+        }
+
+        final Integer value = params[3] instanceof Val ? ((Val) params[3]).toInteger() : null;
+        if (value == null || value < 1 || value > MAX_BUCKETS) {
+            throw new ParseException("Number between 1 and " + MAX_BUCKETS + " expected as fourth argument of '"
+                    + name + "' function", 0);
+        }
+        buckets = value;
+
+        final Param param = params[0];
+        if (param instanceof Function) {
+            function = (Function) param;
+            if (function.hasAggregate()) {
+                throw new ParseException(name + " cannot be applied to aggregating function", 0);
+            }
+        } else {
+            function = new StaticValueFunction((Val) param);
+        }
+    }
+
+    private double parseNumber(final Param param, final String paramPos) throws ParseException {
+        final Double value = param instanceof Val ? ((Val) param).toDouble() : null;
+        if (value == null || value.isNaN() || value.isInfinite()) {
+            throw new ParseException("Number expected as " + paramPos + " argument of '" + name + "' function", 0);
+        }
+        return value;
+    }
+
+    @Override
+    public Generator createGenerator() {
+        return new Gen(function.createGenerator(), min, max, buckets, log);
+    }
+
+    @Override
+    public boolean isAggregate() {
+        return true;
+    }
+
+    @Override
+    public boolean hasAggregate() {
+        return isAggregate();
+    }
+
+    private static class Gen extends AbstractSingleChildGenerator {
+        private static final long serialVersionUID = 4418205093441693862L;
+
+        private final double min;
+        private final double max;
+        private final boolean log;
+        // Converts the distance of a value from the minimum to a bucket index.
+        private final double scale;
+
+        private final long[] counts;
+        private long below;
+        private long above;
+
+        Gen(final Generator childGenerator,
+            final double min,
+            final double max,
+            final int buckets,
+            final boolean log) {
+            super(childGenerator);
+            this.min = min;
+            this.max = max;
+            this.log = log;
+            if (log) {
+                scale = buckets / Math.log(max / min);
+            } else {
+                scale = buckets / (max - min);
+            }
+            counts = new long[buckets];
+        }
+
+        @Override
+        public void set(final Val[] values) {
+            childGenerator.set(values);
+            final Val value = childGenerator.eval();
+            if (!value.type().isValue()) {
+                return;
+            }
+
+            final Double d = value.toDouble();
+            if (d == null || d.isNaN()) {
+                return;
+            }
+
+            if (d < min) {
+                below++;
+            } else if (d >= max) {
+                above++;
+            } else {
+                final double offset = log ? Math.log(d / min) : d - min;
+                // Rounding can put values just below the maximum into the bucket after the last.
+                counts[Math.min((int) (offset * scale), counts.length - 1)]++;
+            }
+        }
+
+        @Override
+        public Val eval() {
+            final StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < counts.length; i++) {
+                if (i > 0) {
+                    sb.append(",");
+                }
+                sb.append(counts[i]);
+            }
+            if (below > 0 || above > 0) {
+                sb.append(" (");
+                sb.append(below);
+                sb.append(" below, ");
+                sb.append(above);
+                sb.append(" above)");
+            }
+            return ValString.create(sb.toString());
+        }
+
+        @Override
+        void mergeState(final Generator generator) {
+            final Gen gen = (Gen) generator;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += gen.counts[i];
+            }
+            below += gen.below;
+            above += gen.above;
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            Arrays.fill(counts, 0);
+            below = 0;
+            above = 0;
+        }
+    }
+}
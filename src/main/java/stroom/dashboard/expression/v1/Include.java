@@ -33,12 +33,12 @@ class Include extends AbstractIncludeExclude implements Serializable {
 
     @Override
     protected Generator createGenerator(final Generator[] childGenerators) {
-        return new Gen(childGenerators);
+        return new Gen(childGenerators, getRegexes());
     }
 
     private static class Gen extends AbstractGen {
-        Gen(final Generator[] childGenerators) {
-            super(childGenerators);
+        Gen(final Generator[] childGenerators, final String[] regexes) {
+            super(childGenerators, regexes);
         }
 
         @Override
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2019 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.dashboard.expression.v1;
+
+/**
+ * The type of value that a parameter is known to produce before any data is seen, worked out from literals, casts,
+ * declared field types and the functions that always produce a given type. Nulls and errors can still be produced
+ * whatever the type.
+ * <p>
+ * Functions work out their own type as their parameters are set so this pass happens as an expression is parsed,
+ * from the innermost functions outwards. Functions that are known to combine only integral values use generators
+ * that keep the values as longs.
+ */
+enum InferredType {
+    LONG,
+    DOUBLE,
+    STRING,
+    BOOLEAN,
+    UNKNOWN;
+
+    static InferredType of(final Param param) {
+        if (param instanceof ValLong || param instanceof ValInteger) {
+            return LONG;
+        } else if (param instanceof ValDouble) {
+            return DOUBLE;
+        } else if (param instanceof ValString) {
+            return STRING;
+        } else if (param instanceof ValBoolean) {
+            return BOOLEAN;
+        } else if (param instanceof Expression) {
+            return of(((Expression) param).getFunction());
+        } else if (param instanceof SharedFunction) {
+            return of(((SharedFunction) param).getFunction());
+        } else if (param instanceof Brackets) {
+            return of(((Brackets) param).params[0]);
+        } else if (param instanceof Ref) {
+            return of(((Ref) param).getFieldType());
+        } else if (param instanceof NumericFunction) {
+            return ((NumericFunction) param).isIntegral() ? LONG : UNKNOWN;
+        } else if (param instanceof AbstractAggregateFunction) {
+            return ((AbstractAggregateFunction) param).isIntegral() ? LONG : UNKNOWN;
+        } else if (param instanceof ToLong
+                || param instanceof ToInteger
+                || param instanceof Count
+                || param instanceof CountGroups
+                || param instanceof CountUnique
+                || param instanceof StringLength
+                || param instanceof IndexOf
+                || param instanceof LastIndexOf) {
+            return LONG;
+        } else if (param instanceof ToDouble) {
+            return DOUBLE;
+        } else if (param instanceof ToString) {
+            return STRING;
+        } else if (param instanceof ToBoolean) {
+            return BOOLEAN;
+        }
+        return UNKNOWN;
+    }
+
+    static InferredType of(final FieldType fieldType) {
+        if (fieldType == null) {
+            return UNKNOWN;
+        }
+        switch (fieldType) {
+            case LONG:
+            case TIMESTAMP:
+                return LONG;
+            case DOUBLE:
+                return DOUBLE;
+            case STRING:
+                return STRING;
+            case BOOLEAN:
+                return BOOLEAN;
+            default:
+                return UNKNOWN;
+        }
+    }
+
+    /**
+     * @return True if all of the parameters are known to produce integral values.
+     */
+    static boolean allLong(final Param[] params) {
+        if (params == null || params.length == 0) {
+            return false;
+        }
+        for (final Param param : params) {
+            if (of(param) != LONG) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
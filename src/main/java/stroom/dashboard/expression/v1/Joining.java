@@ -0,0 +1,173 @@
+/*
+ * Copyright 2019 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.dashboard.expression.v1;
+
+import java.text.ParseException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Joins the distinct values of the argument in each group into one string, e.g. joining(${user}, ', ', 20), in the
+ * order that they were first seen. At most the given number of distinct values is kept, 10 by default, so that the
+ * result stays small on high cardinality data. Values are compared by their string form and null and error values are
+ * ignored.
+ * <p>
+ * Once the limit is reached the rows with values that weren't kept are only counted. The count is of rows rather than
+ * distinct values, as a value that wasn't kept may turn up many times, and is appended to the result, e.g.
+ * "alice, bob (+12 more rows)". When groups are merged the rows of values that don't fit are added to the count, but
+ * rows that one group had already counted are not taken back if the other group kept their value.
+ */
+class Joining extends AbstractFunction {
+    static final String NAME = "joining";
+    static final String ALIAS = "distinctValues";
+
+    private static final String DEFAULT_DELIMITER = ", ";
+    private static final int DEFAULT_LIMIT = 10;
+    private static final int MAX_LIMIT = 10000;
+
+    private Function function;
+    private String delimiter = DEFAULT_DELIMITER;
+    private int limit = DEFAULT_LIMIT;
+
+    public Joining(final String name) {
+        super(name, 1, 3);
+    }
+
+    @Override
+    public void setParams(final Param[] params) throws ParseException {
+        super.setParams(params);
+
+        if (params.length > 1) {
+            if (!(params[1] instanceof Val) || params[1].toString() == null) {
+                throw new ParseException("String expected as second argument of '" + name + "' function", 0);
+            }
+            delimiter = params[1].toString();
+        }
+
+        if (params.length > 2) {
+            final Param param = params[2];
+            final Integer value = param instanceof Val ? ((Val) param).toInteger() : null;
+            if (value == null || value < 1 || value > MAX_LIMIT) {
+                throw new ParseException("Number between 1 and " + MAX_LIMIT + " expected as third argument of '"
+                        + name + "' function", 0);
+            }
+            limit = value;
+        }
+
+        final Param param = params[0];
+        if (param instanceof Function) {
+            function = (Function) param;
+            if (function.hasAggregate()) {
+                throw new ParseException(name + " cannot be applied to aggregating function", 0);
+            }
+        } else {
+            function = new StaticValueFunction((Val) param);
+        }
+    }
+
+    @Override
+    public Generator createGenerator() {
+        return new Gen(function.createGenerator(), delimiter, limit);
+    }
+
+    @Override
+    public boolean isAggregate() {
+        return true;
+    }
+
+    @Override
+    public boolean hasAggregate() {
+        return isAggregate();
+    }
+
+    private static class Gen extends AbstractSingleChildGenerator {
+        private static final long serialVersionUID = -8790385218451227462L;
+
+        private final String delimiter;
+        private final int limit;
+
+        // The number of rows of each kept value, so that they can be counted if the value is dropped by a merge.
+        private final Map<String, Long> values = new LinkedHashMap<>();
+        // The number of rows whose values were not kept because the limit had been reached.
+        private long overflow;
+
+        Gen(final Generator childGenerator, final String delimiter, final int limit) {
+            super(childGenerator);
+            this.delimiter = delimiter;
+            this.limit = limit;
+        }
+
+        @Override
+        public void set(final Val[] values) {
+            childGenerator.set(values);
+            final Val value = childGenerator.eval();
+            if (value.type().isValue()) {
+                add(value.toString(), 1);
+            }
+        }
+
+        private void add(final String value, final long rows) {
+            final Long existing = values.get(value);
+            if (existing != null) {
+                values.put(value, existing + rows);
+            } else if (values.size() < limit) {
+                values.put(value, rows);
+            } else {
+                overflow += rows;
+            }
+        }
+
+        @Override
+        public Val eval() {
+            if (values.isEmpty()) {
+                return ValNull.INSTANCE;
+            }
+
+            final StringBuilder sb = new StringBuilder();
+            boolean first = true;
+            for (final String value : values.keySet()) {
+                if (!first) {
+                    sb.append(delimiter);
+                }
+                sb.append(value);
+                first = false;
+            }
+            if (overflow > 0) {
+                sb.append(" (+");
+                sb.append(overflow);
+                sb.append(" more rows)");
+            }
+            return ValString.create(sb.toString());
+        }
+
+        @Override
+        void mergeState(final Generator generator) {
+            final Gen gen = (Gen) generator;
+            for (final Map.Entry<String, Long> entry : gen.values.entrySet()) {
+                add(entry.getKey(), entry.getValue());
+            }
+            overflow += gen.overflow;
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            values.clear();
+            overflow = 0;
+        }
+    }
+}
@@ -0,0 +1,1021 @@
+/*
+ * Copyright 2019 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.dashboard.expression.v1;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A regular expression engine that simulates all possible paths through the pattern at once (a Pike VM), so the time
+ * taken is proportional to the length of the input multiplied by the size of the pattern whatever the pattern is.
+ * <p>
+ * Only a subset of {@link java.util.regex.Pattern} syntax is supported: literals, '.', character classes without
+ * nesting or intersection, the predefined classes \d \s \w and their negations, groups, non capturing groups,
+ * alternation, '^', '$' and greedy or lazy quantifiers. {@link #compile(String)} returns null for anything else so
+ * the caller can fall back to {@link java.util.regex.Pattern}. The pattern must already have been validated by
+ * compiling it with {@link java.util.regex.Pattern}.
+ */
+final class LinearRegex {
+    private static final int MAX_PROGRAM_SIZE = 10000;
+
+    private static final int CHAR = 0;
+    private static final int ANY = 1;
+    private static final int CLASS = 2;
+    private static final int SPLIT = 3;
+    private static final int JMP = 4;
+    private static final int SAVE = 5;
+    private static final int BOL = 6;
+    private static final int EOL = 7;
+    private static final int MATCH = 8;
+
+    private final int[] ops;
+    private final int[] args1;
+    private final int[] args2;
+    private final CharClass[] classes;
+    private final int groupCount;
+
+    private LinearRegex(final Program program, final int groupCount) {
+        final int size = program.size();
+        ops = new int[size];
+        args1 = new int[size];
+        args2 = new int[size];
+        for (int i = 0; i < size; i++) {
+            final int[] inst = program.instructions.get(i);
+            ops[i] = inst[0];
+            args1[i] = inst[1];
+            args2[i] = inst[2];
+        }
+        classes = program.classes.toArray(new CharClass[0]);
+        this.groupCount = groupCount;
+    }
+
+    /**
+     * @return A compiled regex or null if the regex uses syntax that is not supported.
+     */
+    static LinearRegex compile(final String regex) {
+        try {
+            final Parser parser = new Parser(regex);
+            final Node node = parser.parse();
+            if (node == null) {
+                return null;
+            }
+
+            final Program program = new Program();
+            program.emit(SAVE, 0, 0);
+            if (!node.emit(program)) {
+                return null;
+            }
+            program.emit(SAVE, 1, 0);
+            program.emit(MATCH, 0, 0);
+            if (program.size() > MAX_PROGRAM_SIZE) {
+                return null;
+            }
+            return new LinearRegex(program, parser.groupCount);
+        } catch (final RuntimeException e) {
+            return null;
+        }
+    }
+
+    int groupCount() {
+        return groupCount;
+    }
+
+    /**
+     * Equivalent to {@code pattern.matcher(value).matches()}.
+     */
+    boolean matches(final String value) {
+        final int length = value.length();
+        ThreadList current = new ThreadList(ops.length);
+        ThreadList next = new ThreadList(ops.length);
+        addThread(current, 0, 0, value, null);
+
+        int pos = 0;
+        while (current.size > 0) {
+            if (pos >= length) {
+                for (int i = 0; i < current.size; i++) {
+                    if (ops[current.pcs[i]] == MATCH) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            final int c = value.codePointAt(pos);
+            final int nextPos = pos + Character.charCount(c);
+            next.clear();
+            for (int i = 0; i < current.size; i++) {
+                final int pc = current.pcs[i];
+                if (step(pc, c)) {
+                    addThread(next, pc + 1, nextPos, value, null);
+                }
+            }
+
+            final ThreadList tmp = current;
+            current = next;
+            next = tmp;
+            pos = nextPos;
+        }
+        return false;
+    }
+
+    /**
+     * Find the leftmost match starting the search at the supplied position, preferring the same match that a
+     * backtracking engine would.
+     *
+     * @return The start and end positions of the match and its groups or null if there is no match.
+     */
+    int[] find(final String value, final int from) {
+        final int length = value.length();
+        final int slots = (groupCount + 1) * 2;
+        ThreadList current = new ThreadList(ops.length);
+        ThreadList next = new ThreadList(ops.length);
+        int[] matched = null;
+
+        int pos = from;
+        while (true) {
+            if (matched == null) {
+                // Try a new match at this position with the lowest priority.
+                final int[] caps = new int[slots];
+                Arrays.fill(caps, -1);
+                addThread(current, 0, pos, value, caps);
+            }
+            if (current.size == 0) {
+                break;
+            }
+
+            final int c = pos < length ? value.codePointAt(pos) : -1;
+            final int nextPos = pos < length ? pos + Character.charCount(c) : pos;
+            next.clear();
+            for (int i = 0; i < current.size; i++) {
+                final int pc = current.pcs[i];
+                if (ops[pc] == MATCH) {
+                    // Lower priority threads can't produce a preferred match.
+                    matched = current.caps[i];
+                    break;
+                }
+                if (c != -1 && step(pc, c)) {
+                    addThread(next, pc + 1, nextPos, value, current.caps[i]);
+                }
+            }
+
+            if (pos >= length) {
+                break;
+            }
+
+            final ThreadList tmp = current;
+            current = next;
+            next = tmp;
+            pos = nextPos;
+        }
+        return matched;
+    }
+
+    /**
+     * Equivalent to {@code pattern.matcher(value).replaceAll(replacement)} for replacements that do not use named
+     * group references.
+     */
+    String replaceAll(final String value, final String replacement) {
+        final int length = value.length();
+        StringBuilder sb = null;
+        int lastAppend = 0;
+        int searchFrom = 0;
+        while (searchFrom <= length) {
+            final int[] caps = find(value, searchFrom);
+            if (caps == null) {
+                break;
+            }
+            if (sb == null) {
+                sb = new StringBuilder(length + 16);
+            }
+            sb.append(value, lastAppend, caps[0]);
+            appendReplacement(sb, value, replacement, caps);
+            lastAppend = caps[1];
+
+            searchFrom = caps[1];
+            if (caps[1] == caps[0]) {
+                searchFrom++;
+            }
+        }
+
+        if (sb == null) {
+            return value;
+        }
+        sb.append(value, lastAppend, length);
+        return sb.toString();
+    }
+
+    /**
+     * Mirrors the handling of '\' and '$' in {@link java.util.regex.Matcher#appendReplacement}.
+     */
+    private void appendReplacement(final StringBuilder sb, final String value, final String replacement, final int[] caps) {
+        int cursor = 0;
+        while (cursor < replacement.length()) {
+            char c = replacement.charAt(cursor);
+            if (c == '\\') {
+                cursor++;
+                if (cursor == replacement.length()) {
+                    throw new IllegalArgumentException("character to be escaped is missing");
+                }
+                sb.append(replacement.charAt(cursor));
+                cursor++;
+            } else if (c == '$') {
+                cursor++;
+                if (cursor == replacement.length()) {
+                    throw new IllegalArgumentException("Illegal group reference: group index is missing");
+                }
+                c = replacement.charAt(cursor);
+                int refNum = c - '0';
+                if (refNum < 0 || refNum > 9) {
+                    throw new IllegalArgumentException("Illegal group reference");
+                }
+                cursor++;
+                while (cursor < replacement.length()) {
+                    final int nextDigit = replacement.charAt(cursor) - '0';
+                    if (nextDigit < 0 || nextDigit > 9) {
+                        break;
+                    }
+                    final int newRefNum = refNum * 10 + nextDigit;
+                    if (groupCount < newRefNum) {
+                        break;
+                    }
+                    refNum = newRefNum;
+                    cursor++;
+                }
+                if (refNum > groupCount) {
+                    throw new IndexOutOfBoundsException("No group " + refNum);
+                }
+                final int start = caps[refNum * 2];
+                final int end = caps[refNum * 2 + 1];
+                if (start != -1 && end != -1) {
+                    sb.append(value, start, end);
+                }
+            } else {
+                sb.append(c);
+                cursor++;
+            }
+        }
+    }
+
+    private boolean step(final int pc, final int c) {
+        switch (ops[pc]) {
+            case CHAR:
+                return args1[pc] == c;
+            case ANY:
+                return !isLineTerminator(c);
+            case CLASS:
+                return classes[args1[pc]].matches(c);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Add a thread and follow all of the instructions that don't consume input. Higher priority paths are added
+     * first.
+     */
+    private void addThread(final ThreadList list, final int startPc, final int pos, final String value, final int[] startCaps) {
+        final int[] pcStack = list.pcStack;
+        final int[][] capsStack = list.capsStack;
+        int top = 0;
+        pcStack[top] = startPc;
+        capsStack[top] = startCaps;
+        top++;
+
+        while (top > 0) {
+            top--;
+            int pc = pcStack[top];
+            int[] caps = capsStack[top];
+
+            boolean following = true;
+            while (following) {
+                if (list.contains(pc)) {
+                    break;
+                }
+                list.mark(pc);
+
+                switch (ops[pc]) {
+                    case JMP:
+                        pc = args1[pc];
+                        break;
+                    case SPLIT:
+                        // Remember the lower priority branch and follow the preferred one.
+                        pcStack[top] = args2[pc];
+                        capsStack[top] = caps;
+                        top++;
+                        pc = args1[pc];
+                        break;
+                    case SAVE:
+                        if (caps != null) {
+                            caps = caps.clone();
+                            caps[args1[pc]] = pos;
+                        }
+                        pc++;
+                        break;
+                    case BOL:
+                        if (pos != 0) {
+                            following = false;
+                        } else {
+                            pc++;
+                        }
+                        break;
+                    case EOL:
+                        if (!isEndOfLine(value, pos)) {
+                            following = false;
+                        } else {
+                            pc++;
+                        }
+                        break;
+                    default:
+                        list.add(pc, caps);
+                        following = false;
+                        break;
+                }
+            }
+        }
+    }
+
+    /**
+     * '$' without MULTILINE matches at the end of the input or before a line terminator at the end of the input.
+     */
+    private static boolean isEndOfLine(final String value, final int pos) {
+        final int end = value.length();
+        if (pos == end) {
+            return true;
+        }
+        if (pos == end - 2) {
+            return value.charAt(pos) == '\r' && value.charAt(pos + 1) == '\n';
+        }
+        if (pos == end - 1) {
+            final char c = value.charAt(pos);
+            if (c == '\n') {
+                return pos == 0 || value.charAt(pos - 1) != '\r';
+            }
+            return isLineTerminator(c);
+        }
+        return false;
+    }
+
+    private static boolean isLineTerminator(final int c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    private static class ThreadList {
+        private final int[] pcs;
+        private final int[][] caps;
+        private final int[] marks;
+        private final int[] pcStack;
+        private final int[][] capsStack;
+        private int generation = 1;
+        private int size;
+
+        ThreadList(final int programSize) {
+            pcs = new int[programSize];
+            caps = new int[programSize][];
+            marks = new int[programSize];
+            pcStack = new int[programSize + 1];
+            capsStack = new int[programSize + 1][];
+        }
+
+        boolean contains(final int pc) {
+            return marks[pc] == generation;
+        }
+
+        void mark(final int pc) {
+            marks[pc] = generation;
+        }
+
+        void add(final int pc, final int[] threadCaps) {
+            pcs[size] = pc;
+            caps[size] = threadCaps;
+            size++;
+        }
+
+        void clear() {
+            size = 0;
+            generation++;
+        }
+    }
+
+    private static class Program {
+        private final List<int[]> instructions = new ArrayList<>();
+        private final List<CharClass> classes = new ArrayList<>();
+
+        int emit(final int op, final int arg1, final int arg2) {
+            instructions.add(new int[]{op, arg1, arg2});
+            return instructions.size() - 1;
+        }
+
+        void patch(final int pc, final int arg1, final int arg2) {
+            final int[] inst = instructions.get(pc);
+            inst[1] = arg1;
+            inst[2] = arg2;
+        }
+
+        int size() {
+            return instructions.size();
+        }
+    }
+
+    private static class CharClass {
+        private final int[] ranges;
+        private final boolean negated;
+
+        CharClass(final int[] ranges, final boolean negated) {
+            this.ranges = ranges;
+            this.negated = negated;
+        }
+
+        boolean matches(final int c) {
+            boolean found = false;
+            for (int i = 0; i < ranges.length && !found; i += 2) {
+                found = c >= ranges[i] && c <= ranges[i + 1];
+            }
+            return found != negated;
+        }
+    }
+
+    private abstract static class Node {
+        /**
+         * @return False if the program has grown too large.
+         */
+        abstract boolean emit(Program program);
+
+        abstract boolean nullable();
+    }
+
+    private static class CharNode extends Node {
+        private final int c;
+
+        CharNode(final int c) {
+            this.c = c;
+        }
+
+        @Override
+        boolean emit(final Program program) {
+            program.emit(CHAR, c, 0);
+            return program.size() <= MAX_PROGRAM_SIZE;
+        }
+
+        @Override
+        boolean nullable() {
+            return false;
+        }
+    }
+
+    private static class AnyNode extends Node {
+        @Override
+        boolean emit(final Program program) {
+            program.emit(ANY, 0, 0);
+            return program.size() <= MAX_PROGRAM_SIZE;
+        }
+
+        @Override
+        boolean nullable() {
+            return false;
+        }
+    }
+
+    private static class ClassNode extends Node {
+        private final CharClass charClass;
+
+        ClassNode(final CharClass charClass) {
+            this.charClass = charClass;
+        }
+
+        @Override
+        boolean emit(final Program program) {
+            program.classes.add(charClass);
+            program.emit(CLASS, program.classes.size() - 1, 0);
+            return program.size() <= MAX_PROGRAM_SIZE;
+        }
+
+        @Override
+        boolean nullable() {
+            return false;
+        }
+    }
+
+    private static class AssertNode extends Node {
+        private final int op;
+
+        AssertNode(final int op) {
+            this.op = op;
+        }
+
+        @Override
+        boolean emit(final Program program) {
+            program.emit(op, 0, 0);
+            return program.size() <= MAX_PROGRAM_SIZE;
+        }
+
+        @Override
+        boolean nullable() {
+            return true;
+        }
+    }
+
+    private static class ConcatNode extends Node {
+        private final List<Node> nodes;
+
+        ConcatNode(final List<Node> nodes) {
+            this.nodes = nodes;
+        }
+
+        @Override
+        boolean emit(final Program program) {
+            for (final Node node : nodes) {
+                if (!node.emit(program)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        boolean nullable() {
+            for (final Node node : nodes) {
+                if (!node.nullable()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static class AltNode extends Node {
+        private final List<Node> nodes;
+
+        AltNode(final List<Node> nodes) {
+            this.nodes = nodes;
+        }
+
+        @Override
+        boolean emit(final Program program) {
+            final List<Integer> jumps = new ArrayList<>();
+            for (int i = 0; i < nodes.size(); i++) {
+                if (i < nodes.size() - 1) {
+                    final int split = program.emit(SPLIT, 0, 0);
+                    if (!nodes.get(i).emit(program)) {
+                        return false;
+                    }
+                    jumps.add(program.emit(JMP, 0, 0));
+                    program.patch(split, split + 1, program.size());
+                } else if (!nodes.get(i).emit(program)) {
+                    return false;
+                }
+            }
+            for (final int jump : jumps) {
+                program.patch(jump, program.size(), 0);
+            }
+            return program.size() <= MAX_PROGRAM_SIZE;
+        }
+
+        @Override
+        boolean nullable() {
+            for (final Node node : nodes) {
+                if (node.nullable()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static class GroupNode extends Node {
+        private final Node node;
+        private final int index;
+
+        GroupNode(final Node node, final int index) {
+            this.node = node;
+            this.index = index;
+        }
+
+        @Override
+        boolean emit(final Program program) {
+            program.emit(SAVE, index * 2, 0);
+            if (!node.emit(program)) {
+                return false;
+            }
+            program.emit(SAVE, index * 2 + 1, 0);
+            return program.size() <= MAX_PROGRAM_SIZE;
+        }
+
+        @Override
+        boolean nullable() {
+            return node.nullable();
+        }
+    }
+
+    private static class RepeatNode extends Node {
+        private final Node node;
+        private final int min;
+        private final int max;
+        private final boolean greedy;
+
+        /**
+         * @param max The maximum number of repetitions or -1 if unbounded.
+         */
+        RepeatNode(final Node node, final int min, final int max, final boolean greedy) {
+            this.node = node;
+            this.min = min;
+            this.max = max;
+            this.greedy = greedy;
+        }
+
+        @Override
+        boolean emit(final Program program) {
+            for (int i = 0; i < min; i++) {
+                if (!node.emit(program)) {
+                    return false;
+                }
+            }
+
+            if (max == -1) {
+                final int split = program.emit(SPLIT, 0, 0);
+                if (!node.emit(program)) {
+                    return false;
+                }
+                program.emit(JMP, split, 0);
+                patchSplit(program, split, split + 1, program.size());
+            } else {
+                final List<Integer> splits = new ArrayList<>();
+                for (int i = min; i < max; i++) {
+                    splits.add(program.emit(SPLIT, 0, 0));
+                    if (!node.emit(program)) {
+                        return false;
+                    }
+                }
+                for (final int split : splits) {
+                    patchSplit(program, split, split + 1, program.size());
+                }
+            }
+            return program.size() <= MAX_PROGRAM_SIZE;
+        }
+
+        private void patchSplit(final Program program, final int split, final int body, final int out) {
+            if (greedy) {
+                program.patch(split, body, out);
+            } else {
+                program.patch(split, out, body);
+            }
+        }
+
+        @Override
+        boolean nullable() {
+            return min == 0 || node.nullable();
+        }
+    }
+
+    private static class Parser {
+        private final String regex;
+        private int pos;
+        private int groupCount;
+
+        Parser(final String regex) {
+            this.regex = regex;
+        }
+
+        /**
+         * @return The parsed node or null if the regex is not supported.
+         */
+        Node parse() {
+            final Node node = parseAlternation();
+            if (node == null || pos != regex.length()) {
+                return null;
+            }
+            return node;
+        }
+
+        private Node parseAlternation() {
+            final List<Node> nodes = new ArrayList<>();
+            Node node = parseConcatenation();
+            if (node == null) {
+                return null;
+            }
+            nodes.add(node);
+            while (pos < regex.length() && regex.charAt(pos) == '|') {
+                pos++;
+                node = parseConcatenation();
+                if (node == null) {
+                    return null;
+                }
+                nodes.add(node);
+            }
+            if (nodes.size() == 1) {
+                return nodes.get(0);
+            }
+            return new AltNode(nodes);
+        }
+
+        private Node parseConcatenation() {
+            final List<Node> nodes = new ArrayList<>();
+            while (pos < regex.length() && regex.charAt(pos) != '|' && regex.charAt(pos) != ')') {
+                final Node node = parseRepetition();
+                if (node == null) {
+                    return null;
+                }
+                nodes.add(node);
+            }
+            return new ConcatNode(nodes);
+        }
+
+        private Node parseRepetition() {
+            final Node atom = parseAtom();
+            if (atom == null || pos >= regex.length()) {
+                return atom;
+            }
+
+            final char c = regex.charAt(pos);
+            int min;
+            int max;
+            if (c == '*') {
+                min = 0;
+                max = -1;
+                pos++;
+            } else if (c == '+') {
+                min = 1;
+                max = -1;
+                pos++;
+            } else if (c == '?') {
+                min = 0;
+                max = 1;
+                pos++;
+            } else if (c == '{') {
+                final int end = regex.indexOf('}', pos);
+                if (end == -1) {
+                    return null;
+                }
+                final String bounds = regex.substring(pos + 1, end);
+                final int comma = bounds.indexOf(',');
+                if (comma == -1) {
+                    min = Integer.parseInt(bounds.trim());
+                    max = min;
+                } else {
+                    min = Integer.parseInt(bounds.substring(0, comma).trim());
+                    final String upper = bounds.substring(comma + 1).trim();
+                    max = upper.length() == 0 ? -1 : Integer.parseInt(upper);
+                }
+                if (min > MAX_PROGRAM_SIZE || max > MAX_PROGRAM_SIZE) {
+                    return null;
+                }
+                pos = end + 1;
+            } else {
+                return atom;
+            }
+
+            boolean greedy = true;
+            if (pos < regex.length()) {
+                final char modifier = regex.charAt(pos);
+                if (modifier == '?') {
+                    greedy = false;
+                    pos++;
+                } else if (modifier == '+') {
+                    // Possessive quantifiers can't be expressed without backtracking.
+                    return null;
+                }
+            }
+
+            // Stacked quantifiers are not supported.
+            if (pos < regex.length() && "*+?{".indexOf(regex.charAt(pos)) != -1) {
+                return null;
+            }
+
+            // Repeating something that can match nothing gives captures that differ from the backtracking engine.
+            if ((max == -1 || max > 1) && atom.nullable()) {
+                return null;
+            }
+
+            return new RepeatNode(atom, min, max, greedy);
+        }
+
+        private Node parseAtom() {
+            final int c = regex.codePointAt(pos);
+            switch (c) {
+                case '(': {
+                    pos++;
+                    int index = -1;
+                    if (pos < regex.length() && regex.charAt(pos) == '?') {
+                        if (pos + 1 < regex.length() && regex.charAt(pos + 1) == ':') {
+                            pos += 2;
+                        } else {
+                            // Look around, named groups and flags are not supported.
+                            return null;
+                        }
+                    } else {
+                        groupCount++;
+                        index = groupCount;
+                    }
+                    final Node node = parseAlternation();
+                    if (node == null || pos >= regex.length() || regex.charAt(pos) != ')') {
+                        return null;
+                    }
+                    pos++;
+                    if (index == -1) {
+                        return node;
+                    }
+                    return new GroupNode(node, index);
+                }
+                case '[':
+                    return parseClass();
+                case '.':
+                    pos++;
+                    return new AnyNode();
+                case '^':
+                    pos++;
+                    return new AssertNode(BOL);
+                case '$':
+                    pos++;
+                    return new AssertNode(EOL);
+                case '\\':
+                    return parseEscape();
+                case '*':
+                case '+':
+                case '?':
+                case '{':
+                    return null;
+                default:
+                    pos += Character.charCount(c);
+                    return new CharNode(c);
+            }
+        }
+
+        private Node parseEscape() {
+            pos++;
+            if (pos >= regex.length()) {
+                return null;
+            }
+            final int c = regex.codePointAt(pos);
+            if (c == 'Q') {
+                int end = regex.indexOf("\\E", pos + 1);
+                if (end == -1) {
+                    end = regex.length();
+                }
+                final List<Node> nodes = new ArrayList<>();
+                int i = pos + 1;
+                while (i < end) {
+                    final int cp = regex.codePointAt(i);
+                    nodes.add(new CharNode(cp));
+                    i += Character.charCount(cp);
+                }
+                pos = Math.min(end + 2, regex.length());
+                return new ConcatNode(nodes);
+            }
+
+            final CharClass predefined = predefined(c);
+            if (predefined != null) {
+                pos++;
+                return new ClassNode(predefined);
+            }
+
+            final int literal = escapedLiteral(c);
+            if (literal == -1) {
+                return null;
+            }
+            pos += Character.charCount(c);
+            return new CharNode(literal);
+        }
+
+        private Node parseClass() {
+            pos++;
+            boolean negated = false;
+            if (pos < regex.length() && regex.charAt(pos) == '^') {
+                negated = true;
+                pos++;
+            }
+
+            final List<Integer> ranges = new ArrayList<>();
+            boolean first = true;
+            while (pos < regex.length()) {
+                final int c = regex.codePointAt(pos);
+                if (c == ']' && !first) {
+                    pos++;
+                    final int[] arr = new int[ranges.size()];
+                    for (int i = 0; i < arr.length; i++) {
+                        arr[i] = ranges.get(i);
+                    }
+                    return new ClassNode(new CharClass(arr, negated));
+                }
+                first = false;
+
+                if (c == '[' || (c == '&' && pos + 1 < regex.length() && regex.charAt(pos + 1) == '&')) {
+                    // Nested classes and intersections are not supported.
+                    return null;
+                }
+
+                int low;
+                if (c == '\\') {
+                    pos++;
+                    if (pos >= regex.length()) {
+                        return null;
+                    }
+                    final int escaped = regex.codePointAt(pos);
+                    final CharClass predefined = predefined(escaped);
+                    if (predefined != null) {
+                        if (predefined.negated) {
+                            return null;
+                        }
+                        for (final int bound : predefined.ranges) {
+                            ranges.add(bound);
+                        }
+                        pos++;
+                        continue;
+                    }
+                    low = escapedLiteral(escaped);
+                    if (low == -1) {
+                        return null;
+                    }
+                    pos += Character.charCount(escaped);
+                } else {
+                    low = c;
+                    pos += Character.charCount(c);
+                }
+
+                int high = low;
+                if (pos + 1 < regex.length() && regex.charAt(pos) == '-' && regex.charAt(pos + 1) != ']') {
+                    pos++;
+                    final int upper = regex.codePointAt(pos);
+                    if (upper == '\\') {
+                        pos++;
+                        if (pos >= regex.length()) {
+                            return null;
+                        }
+                        final int escaped = regex.codePointAt(pos);
+                        high = escapedLiteral(escaped);
+                        if (high == -1) {
+                            return null;
+                        }
+                        pos += Character.charCount(escaped);
+                    } else if (upper == '[') {
+                        return null;
+                    } else {
+                        high = upper;
+                        pos += Character.charCount(upper);
+                    }
+                }
+
+                ranges.add(low);
+                ranges.add(high);
+            }
+            return null;
+        }
+
+        private static CharClass predefined(final int c) {
+            switch (c) {
+                case 'd':
+                    return new CharClass(new int[]{'0', '9'}, false);
+                case 'D':
+                    return new CharClass(new int[]{'0', '9'}, true);
+                case 'w':
+                    return new CharClass(new int[]{'a', 'z', 'A', 'Z', '_', '_', '0', '9'}, false);
+                case 'W':
+                    return new CharClass(new int[]{'a', 'z', 'A', 'Z', '_', '_', '0', '9'}, true);
+                case 's':
+                    return new CharClass(new int[]{' ', ' ', '\t', '\r'}, false);
+                case 'S':
+                    return new CharClass(new int[]{' ', ' ', '\t', '\r'}, true);
+                default:
+                    return null;
+            }
+        }
+
+        /**
+         * @return The character that an escape represents or -1 if it is not a simple literal escape.
+         */
+        private static int escapedLiteral(final int c) {
+            switch (c) {
+                case 't':
+                    return '\t';
+                case 'n':
+                    return '\n';
+                case 'r':
+                    return '\r';
+                case 'f':
+                    return '\f';
+                case 'a':
+                    return '\u0007';
+                case 'e':
+                    return '\u001B';
+                default:
+                    if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')) {
+                        return -1;
+                    }
+                    return c;
+            }
+        }
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright 2019 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.dashboard.expression.v1;
+
+/**
+ * As {@link Histogram} but with buckets that grow exponentially from the minimum, which must be greater than zero, to
+ * the maximum, e.g. logHistogram(${latency}, 1, 100000, 5) has buckets of 1-10, 10-100 and so on. This suits values
+ * such as latencies and sizes that range over several orders of magnitude.
+ */
+class LogHistogram extends Histogram {
+    static final String NAME = "logHistogram";
+
+    public LogHistogram(final String name) {
+        super(name, true);
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2019 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.dashboard.expression.v1;
+
+/**
+ * A {@link Calculator} whose operation can also be applied exactly to longs, so that integral values can be combined
+ * without losing precision.
+ */
+abstract class LongCalculator extends Calculator {
+    private static final long serialVersionUID = -1934872257350167265L;
+
+    /**
+     * As {@link #calc(Val, Val)} but integral values are combined with {@link #opLong(long, long)} so they don't lose
+     * precision. Widens to double if either value isn't integral or the result doesn't fit in a long.
+     */
+    Val calcLong(final Val current, final Val value) {
+        if (isIntegral(current) && isIntegral(value)) {
+            try {
+                return ValLong.create(opLong(current.toLong(), value.toLong()));
+            } catch (final ArithmeticException e) {
+                // Overflow so widen.
+            }
+        }
+        return calc(current, value);
+    }
+
+    /**
+     * Apply the operation to longs exactly.
+     *
+     * @throws ArithmeticException If the result doesn't fit in a long.
+     */
+    abstract long opLong(long cur, long val);
+
+    private static boolean isIntegral(final Val val) {
+        return val instanceof ValLong || val instanceof ValInteger;
+    }
+}
@@ -18,7 +18,6 @@ package stroom.dashboard.expression.v1;
 
 import java.io.Serializable;
 import java.text.ParseException;
-import java.util.regex.Pattern;
 
 class Match extends AbstractManyChildFunction implements Serializable {
     static final String NAME = "match";
@@ -52,8 +51,8 @@ class Match extends AbstractManyChildFunction implements Serializable {
                 throw new ParseException("An empty regex has been defined for second argument of '" + name + "' function", 0);
             }
 
-            final Pattern pattern = PatternCache.get(regex);
-            final boolean matches = pattern.matcher(value).matches();
+            final PatternMatcher matcher = PatternCache.get(regex);
+            final boolean matches = matcher.matches(value);
             gen = new StaticValueFunction(ValBoolean.create(matches)).createGenerator();
 
         } else {
@@ -117,8 +116,8 @@ class Match extends AbstractManyChildFunction implements Serializable {
             try {
                 final String value = val.toString();
                 final String regex = valRegex.toString();
-                final Pattern pattern = PatternCache.get(regex);
-                return ValBoolean.create(pattern.matcher(value).matches());
+                final PatternMatcher matcher = PatternCache.get(regex);
+                return ValBoolean.create(matcher.matches(value));
 
             } catch (final RuntimeException e) {
                 return ValErr.create(e.getMessage());
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2019 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.dashboard.expression.v1;
+
+/**
+ * Wraps the root generator of an expression and remembers the result of {@link #eval()} until the generator is
+ * changed. Child generators can only be changed through the root so calls to {@link #set(Val[])},
+ * {@link #merge(Generator)} and {@link #addChildKey(Key)} on the root are the only things that need to clear the
+ * remembered value.
+ */
+final class MemoisingGenerator extends AbstractGenerator {
+    private static final long serialVersionUID = -1702307311745423046L;
+
+    private final Generator generator;
+
+    // Not serialised so a deserialised generator evaluates afresh.
+    private transient Val val;
+
+    private MemoisingGenerator(final Generator generator) {
+        this.generator = generator;
+    }
+
+    static Generator wrap(final Generator generator) {
+        if (generator instanceof MemoisingGenerator) {
+            return generator;
+        }
+        return new MemoisingGenerator(generator);
+    }
+
+    @Override
+    public void addChildKey(final Key key) {
+        generator.addChildKey(key);
+        val = null;
+    }
+
+    @Override
+    public void set(final Val[] values) {
+        generator.set(values);
+        val = null;
+    }
+
+    @Override
+    public Val eval() {
+        if (val == null) {
+            val = generator.eval();
+        }
+        return val;
+    }
+
+    @Override
+    public void merge(final Generator generator) {
+        if (generator instanceof MemoisingGenerator) {
+            this.generator.merge(((MemoisingGenerator) generator).generator);
+        } else {
+            this.generator.merge(generator);
+        }
+        val = null;
+    }
+
+    @Override
+    public void rollUp(final Generator generator) {
+        if (generator instanceof MemoisingGenerator) {
+            this.generator.rollUp(((MemoisingGenerator) generator).generator);
+        } else {
+            this.generator.rollUp(generator);
+        }
+        val = null;
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        generator.reset();
+        val = null;
+    }
+}
@@ -23,7 +23,7 @@ class Min extends AbstractAggregateFunction {
         super(name, new Calc());
     }
 
-    static class Calc extends Calculator {
+    static class Calc extends LongCalculator {
         private static final long serialVersionUID = 1099553839843710283L;
 
         @Override
@@ -33,5 +33,10 @@ class Min extends AbstractAggregateFunction {
             }
             return cur;
         }
+
+        @Override
+        long opLong(final long cur, final long val) {
+            return Math.min(cur, val);
+        }
     }
 }
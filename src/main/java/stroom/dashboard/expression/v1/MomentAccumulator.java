@@ -0,0 +1,182 @@
+/*
+ * Copyright 2019 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.dashboard.expression.v1;
+
+import java.io.Serializable;
+
+/**
+ * Running state for all of the simple aggregates over one argument so that the argument is only evaluated and
+ * converted once per row however many of sum(), min(), max(), average(), stDev(), variance() and count() read it.
+ * <p>
+ * Sum, min and max follow {@link Calculator} exactly so they give the same values, including errors, as the
+ * individual aggregate functions, and are kept as longs where the argument is known to be integral. Variance is kept
+ * as a running mean and sum of squared differences from the mean (Welford) rather than a raw sum of squares as that
+ * does not lose precision when the variance is small compared to the mean.
+ */
+final class MomentAccumulator implements Serializable {
+    private static final long serialVersionUID = -4196357870478316455L;
+
+    private static final LongCalculator SUM = new Add.Calc();
+    private static final LongCalculator MIN = new Min.Calc();
+    private static final LongCalculator MAX = new Max.Calc();
+
+    private final Generator childGenerator;
+    private final boolean integral;
+
+    // The number of rows added, as count() and average() count them.
+    private long rows;
+    private Val sum = ValNull.INSTANCE;
+    private Val min = ValNull.INSTANCE;
+    private Val max = ValNull.INSTANCE;
+
+    // The number of numeric values added, as stDev() and variance() count them.
+    private long n;
+    private double mean;
+    private double m2;
+
+    MomentAccumulator(final Generator childGenerator, final boolean integral) {
+        this.childGenerator = childGenerator;
+        this.integral = integral;
+    }
+
+    void add(final Val[] values) {
+        childGenerator.set(values);
+        final Val value = childGenerator.eval();
+        rows++;
+
+        if (value.type().isError()) {
+            setAll(value);
+            return;
+        }
+
+        final Double d;
+        try {
+            d = value.toDouble();
+        } catch (final RuntimeException e) {
+            setAll(ValErr.create(e.getMessage()));
+            return;
+        }
+        if (d == null) {
+            return;
+        }
+
+        if (integral) {
+            sum = SUM.calcLong(sum, value);
+            min = MIN.calcLong(min, value);
+            max = MAX.calcLong(max, value);
+        } else {
+            sum = SUM.calc(sum, value, d);
+            min = MIN.calc(min, value, d);
+            max = MAX.calc(max, value, d);
+        }
+
+        n++;
+        final double delta = d - mean;
+        mean += delta / n;
+        m2 += delta * (d - mean);
+    }
+
+    void merge(final MomentAccumulator other) {
+        rows += other.rows;
+        if (integral) {
+            sum = SUM.calcLong(sum, other.sum);
+            min = MIN.calcLong(min, other.min);
+            max = MAX.calcLong(max, other.max);
+        } else {
+            sum = SUM.calc(sum, other.sum);
+            min = MIN.calc(min, other.min);
+            max = MAX.calc(max, other.max);
+        }
+
+        if (other.n > 0) {
+            if (n == 0) {
+                n = other.n;
+                mean = other.mean;
+                m2 = other.m2;
+            } else {
+                final long total = n + other.n;
+                final double delta = other.mean - mean;
+                mean += delta * other.n / total;
+                m2 += other.m2 + delta * delta * n * other.n / total;
+                n = total;
+            }
+        }
+
+        childGenerator.merge(other.childGenerator);
+    }
+
+    void addChildKey(final Key key) {
+        childGenerator.addChildKey(key);
+    }
+
+    void reset() {
+        childGenerator.reset();
+        rows = 0;
+        sum = ValNull.INSTANCE;
+        min = ValNull.INSTANCE;
+        max = ValNull.INSTANCE;
+        n = 0;
+        mean = 0;
+        m2 = 0;
+    }
+
+    Val count() {
+        return ValLong.create(rows);
+    }
+
+    Val sum() {
+        return sum;
+    }
+
+    Val min() {
+        return min;
+    }
+
+    Val max() {
+        return max;
+    }
+
+    Val average() {
+        if (!sum.type().isValue() || rows == 0) {
+            if (sum.type().isError()) {
+                return sum;
+            }
+            return ValNull.INSTANCE;
+        }
+        return ValDouble.create(sum.toDouble() / rows);
+    }
+
+    Val variance() {
+        if (n == 0) {
+            return ValNull.INSTANCE;
+        }
+        return ValDouble.create(m2 / n);
+    }
+
+    Val stDev() {
+        if (n == 0) {
+            return ValNull.INSTANCE;
+        }
+        return ValDouble.create(Math.sqrt(m2 / n));
+    }
+
+    private void setAll(final Val value) {
+        sum = value;
+        min = value;
+        max = value;
+    }
+}
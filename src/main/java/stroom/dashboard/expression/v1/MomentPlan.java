@@ -0,0 +1,203 @@
+/*
+ * Copyright 2019 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.dashboard.expression.v1;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Creates the generators for a row of columns so that columns which are simply sum(), min(), max(), average(),
+ * stDev() or variance() of the same argument, along with any count() columns, share one {@link MomentAccumulator}.
+ * The first column of each group owns the accumulator and the others are views that read from it.
+ * <p>
+ * The generators of a row must be used together, i.e. {@link Generator#set(Val[])}, {@link Generator#merge(Generator)}
+ * and {@link Generator#reset()} must be called on every generator in the row as they would be for separate columns.
+ * Only the owning column does the work, so calling these on a view alone has no effect.
+ */
+public final class MomentPlan {
+    private final Expression[] expressions;
+    // For each column the index of its group or -1 if the column is not shared.
+    private final int[] groups;
+    private final Function[] arguments;
+    private final SimpleAggregate[] statistics;
+
+    private MomentPlan(final Expression[] expressions,
+                       final int[] groups,
+                       final Function[] arguments,
+                       final SimpleAggregate[] statistics) {
+        this.expressions = expressions;
+        this.groups = groups;
+        this.arguments = arguments;
+        this.statistics = statistics;
+    }
+
+    /**
+     * Find the columns that can share an accumulator. A group is only formed where at least two columns would share
+     * it.
+     */
+    public static MomentPlan create(final Expression[] expressions) {
+        final SimpleAggregate[] statistics = new SimpleAggregate[expressions.length];
+        final Map<String, List<Integer>> byArgument = new LinkedHashMap<>();
+        final List<Integer> counts = new ArrayList<>();
+        final Map<String, Function> argumentFunctions = new LinkedHashMap<>();
+
+        for (int i = 0; i < expressions.length; i++) {
+            if (expressions[i] == null) {
+                continue;
+            }
+            final Function function = expressions[i].getFunction();
+            final SimpleAggregate statistic = SimpleAggregate.of(function);
+            if (statistic == SimpleAggregate.COUNT) {
+                statistics[i] = statistic;
+                counts.add(i);
+            } else if (statistic != null) {
+                statistics[i] = statistic;
+                final Function argument = SimpleAggregate.argumentOf(function);
+                final String key = argument.toString();
+                byArgument.computeIfAbsent(key, k -> new ArrayList<>()).add(i);
+                argumentFunctions.putIfAbsent(key, argument);
+            }
+        }
+
+        // count() doesn't need an argument so attach count columns to the largest group.
+        String countKey = null;
+        int largest = 0;
+        for (final Map.Entry<String, List<Integer>> entry : byArgument.entrySet()) {
+            if (entry.getValue().size() > largest) {
+                countKey = entry.getKey();
+                largest = entry.getValue().size();
+            }
+        }
+        if (countKey != null) {
+            final List<Integer> columns = byArgument.get(countKey);
+            columns.addAll(counts);
+            columns.sort(Integer::compareTo);
+        }
+
+        final int[] groups = new int[expressions.length];
+        Arrays.fill(groups, -1);
+        final List<Function> arguments = new ArrayList<>();
+        for (final Map.Entry<String, List<Integer>> entry : byArgument.entrySet()) {
+            if (entry.getValue().size() > 1) {
+                for (final int column : entry.getValue()) {
+                    groups[column] = arguments.size();
+                }
+                arguments.add(argumentFunctions.get(entry.getKey()));
+            }
+        }
+
+        return new MomentPlan(expressions.clone(), groups, arguments.toArray(new Function[0]), statistics);
+    }
+
+    /**
+     * @return The generators for a new row, one per column, or null for a column with no expression.
+     */
+    public Generator[] createGenerators() {
+        final MomentAccumulator[] accumulators = new MomentAccumulator[arguments.length];
+        final Generator[] generators = new Generator[expressions.length];
+        for (int i = 0; i < expressions.length; i++) {
+            final int group = groups[i];
+            if (expressions[i] == null) {
+                generators[i] = null;
+            } else if (group == -1) {
+                generators[i] = expressions[i].createGenerator();
+            } else if (accumulators[group] == null) {
+                final boolean integral = InferredType.of(arguments[group]) == InferredType.LONG;
+                accumulators[group] = new MomentAccumulator(arguments[group].createGenerator(), integral);
+                generators[i] = new View(accumulators[group], statistics[i], true);
+            } else {
+                generators[i] = new View(accumulators[group], statistics[i], false);
+            }
+        }
+        return generators;
+    }
+
+    /**
+     * @return The number of accumulators that are shared between columns.
+     */
+    int getSharedCount() {
+        return arguments.length;
+    }
+
+    private static class View extends AbstractGenerator {
+        private static final long serialVersionUID = 2409315823307417315L;
+
+        private final MomentAccumulator accumulator;
+        private final SimpleAggregate statistic;
+        private final boolean owner;
+
+        View(final MomentAccumulator accumulator, final SimpleAggregate statistic, final boolean owner) {
+            this.accumulator = accumulator;
+            this.statistic = statistic;
+            this.owner = owner;
+        }
+
+        @Override
+        public void addChildKey(final Key key) {
+            if (owner) {
+                accumulator.addChildKey(key);
+            }
+        }
+
+        @Override
+        public void set(final Val[] values) {
+            if (owner) {
+                accumulator.add(values);
+            }
+        }
+
+        @Override
+        public Val eval() {
+            switch (statistic) {
+                case COUNT:
+                    return accumulator.count();
+                case SUM:
+                    return accumulator.sum();
+                case MIN:
+                    return accumulator.min();
+                case MAX:
+                    return accumulator.max();
+                case AVERAGE:
+                    return accumulator.average();
+                case STDEV:
+                    return accumulator.stDev();
+                case VARIANCE:
+                    return accumulator.variance();
+                default:
+                    throw new IllegalStateException("Unexpected statistic " + statistic);
+            }
+        }
+
+        @Override
+        public void merge(final Generator generator) {
+            if (owner) {
+                accumulator.merge(((View) generator).accumulator);
+            }
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            if (owner) {
+                accumulator.reset();
+            }
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2019 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.dashboard.expression.v1;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Tests a value against a list of patterns in one go and reports the index of the first pattern that matches the
+ * whole value.
+ * <p>
+ * Literal patterns are looked up in a hash map. The literals of prefix, suffix and contains patterns and the required
+ * literals of general patterns are compiled into a single Aho-Corasick automaton so one scan of the value finds every
+ * pattern that could possibly match. Only those candidates, in pattern order, are then confirmed with their own
+ * {@link PatternMatcher}.
+ */
+final class MultiPatternMatcher {
+    // The candidates for the value being tested, shared by every matcher used on a thread so that testing a value
+    // doesn't allocate and matchers evicted from the pattern cache don't leave anything behind on the thread.
+    private static final ThreadLocal<BitSet> CANDIDATES = ThreadLocal.withInitial(BitSet::new);
+
+    private final PatternMatcher[] matchers;
+    private final Map<String, Integer> literals = new HashMap<>();
+    private final BitSet alwaysTest = new BitSet();
+
+    // Aho-Corasick automaton. Node 0 is the root.
+    private final char[][] keys;
+    private final int[][] targets;
+    private final int[] fail;
+    private final int[][] outputs;
+
+    MultiPatternMatcher(final PatternMatcher[] matchers) {
+        this.matchers = matchers;
+
+        final List<Map<Character, Integer>> trie = new ArrayList<>();
+        final List<List<Integer>> nodeOutputs = new ArrayList<>();
+        trie.add(new TreeMap<>());
+        nodeOutputs.add(new ArrayList<>());
+
+        for (int i = 0; i < matchers.length; i++) {
+            final PatternMatcher matcher = matchers[i];
+            final String literal = matcher.getLiteral();
+            if (matcher.getKind() == PatternMatcher.Kind.LITERAL) {
+                literals.putIfAbsent(literal, i);
+            } else if (literal == null || literal.length() == 0) {
+                alwaysTest.set(i);
+            } else {
+                int node = 0;
+                for (int j = 0; j < literal.length(); j++) {
+                    final char c = literal.charAt(j);
+                    Integer next = trie.get(node).get(c);
+                    if (next == null) {
+                        next = trie.size();
+                        trie.add(new TreeMap<>());
+                        nodeOutputs.add(new ArrayList<>());
+                        trie.get(node).put(c, next);
+                    }
+                    node = next;
+                }
+                nodeOutputs.get(node).add(i);
+            }
+        }
+
+        final int size = trie.size();
+        keys = new char[size][];
+        targets = new int[size][];
+        fail = new int[size];
+        outputs = new int[size][];
+
+        for (int node = 0; node < size; node++) {
+            final Map<Character, Integer> transitions = trie.get(node);
+            keys[node] = new char[transitions.size()];
+            targets[node] = new int[transitions.size()];
+            int j = 0;
+            for (final Map.Entry<Character, Integer> entry : transitions.entrySet()) {
+                keys[node][j] = entry.getKey();
+                targets[node][j] = entry.getValue();
+                j++;
+            }
+        }
+
+        // Breadth first so that the failure link of a parent is known before its children.
+        final Deque<Integer> queue = new ArrayDeque<>();
+        outputs[0] = toArray(nodeOutputs.get(0));
+        for (final int child : targets[0]) {
+            fail[child] = 0;
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            final int node = queue.poll();
+            final List<Integer> out = nodeOutputs.get(node);
+            for (final int i : outputs[fail[node]]) {
+                out.add(i);
+            }
+            outputs[node] = toArray(out);
+
+            for (int j = 0; j < keys[node].length; j++) {
+                final char c = keys[node][j];
+                final int child = targets[node][j];
+                int f = fail[node];
+                while (f != 0 && next(f, c) == -1) {
+                    f = fail[f];
+                }
+                final int target = next(f, c);
+                fail[child] = target == -1 ? 0 : target;
+                queue.add(child);
+            }
+        }
+    }
+
+    /**
+     * @return The index of the first pattern that matches the whole value or -1 if none match.
+     */
+    int firstMatch(final String value) {
+        int best = matchers.length;
+        final Integer literalIndex = literals.get(value);
+        if (literalIndex != null) {
+            best = literalIndex;
+        }
+
+        final BitSet candidates = CANDIDATES.get();
+        candidates.clear();
+        candidates.or(alwaysTest);
+        if (keys[0].length > 0) {
+            int node = 0;
+            for (int i = 0; i < value.length(); i++) {
+                final char c = value.charAt(i);
+                int next = next(node, c);
+                while (next == -1 && node != 0) {
+                    node = fail[node];
+                    next = next(node, c);
+                }
+                node = next == -1 ? 0 : next;
+                for (final int index : outputs[node]) {
+                    candidates.set(index);
+                }
+            }
+        }
+
+        for (int i = candidates.nextSetBit(0); i >= 0 && i < best; i = candidates.nextSetBit(i + 1)) {
+            if (matchers[i].matches(value)) {
+                return i;
+            }
+        }
+
+        if (best < matchers.length) {
+            return best;
+        }
+        return -1;
+    }
+
+    private int next(final int node, final char c) {
+        final char[] nodeKeys = keys[node];
+        int low = 0;
+        int high = nodeKeys.length - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final char key = nodeKeys[mid];
+            if (key < c) {
+                low = mid + 1;
+            } else if (key > c) {
+                high = mid - 1;
+            } else {
+                return targets[node][mid];
+            }
+        }
+        return -1;
+    }
+
+    private static int[] toArray(final List<Integer> list) {
+        final int[] arr = new int[list.size()];
+        for (int i = 0; i < arr.length; i++) {
+            arr[i] = list.get(i);
+        }
+        return arr;
+    }
+}
@@ -16,21 +16,54 @@
 
 package stroom.dashboard.expression.v1;
 
+import java.text.ParseException;
+
 public abstract class NumericFunction extends AbstractManyChildFunction {
     private final boolean usingOperator;
+    private boolean integral;
 
     public NumericFunction(final String name, final int minParams, final int maxParams) {
         super(name, minParams, maxParams);
         usingOperator = name.length() == 1;
     }
 
+    @Override
+    public void setParams(final Param[] params) throws ParseException {
+        super.setParams(params);
+
+        for (final Param param : params) {
+            final InferredType type = InferredType.of(param);
+            if (type == InferredType.BOOLEAN || (type == InferredType.STRING && !acceptsStrings())) {
+                throw new ParseException("'" + param + "' is a " + type.toString().toLowerCase()
+                        + " so can't be used with '" + name + "'", 0);
+            }
+        }
+
+        integral = getCalculator() instanceof LongCalculator && InferredType.allLong(params);
+    }
+
+    /**
+     * @return True if string values are combined rather than causing an error.
+     */
+    boolean acceptsStrings() {
+        return false;
+    }
+
     @Override
     protected Generator createGenerator(final Generator[] childGenerators) {
-        return new Gen(childGenerators, getCalculator());
+        return new Gen(childGenerators, getCalculator(), integral);
     }
 
     protected abstract Calculator getCalculator();
 
+    /**
+     * @return True if all of the parameters are known to be integral and the result can be calculated exactly as a
+     * long.
+     */
+    boolean isIntegral() {
+        return integral;
+    }
+
     @Override
     public void appendString(final StringBuilder sb) {
         if (usingOperator) {
@@ -61,10 +94,13 @@ public abstract class NumericFunction extends AbstractManyChildFunction {
         private static final long serialVersionUID = 217968020285584214L;
 
         private final Calculator calculator;
+        // Only set if the values are known to be integral.
+        private final LongCalculator longCalculator;
 
-        Gen(final Generator[] childGenerators, final Calculator calculator) {
+        Gen(final Generator[] childGenerators, final Calculator calculator, final boolean integral) {
             super(childGenerators);
             this.calculator = calculator;
+            this.longCalculator = integral ? (LongCalculator) calculator : null;
         }
 
         @Override
@@ -90,8 +126,14 @@ public abstract class NumericFunction extends AbstractManyChildFunction {
             }
 
             Val value = ValNull.INSTANCE;
-            for (final Val val : vals) {
-                value = calculator.calc(value, val);
+            if (longCalculator != null) {
+                for (final Val val : vals) {
+                    value = longCalculator.calcLong(value, val);
+                }
+            } else {
+                for (final Val val : vals) {
+                    value = calculator.calc(value, val);
+                }
             }
             return value;
         }
@@ -35,7 +35,7 @@ public class ParamFactory {
             case FIELD:
                 final String fieldName = value.substring(2, value.length() - 1);
                 final int fieldIndex = fieldIndexMap.create(fieldName);
-                return new Ref(value, fieldIndex);
+                return new Ref(value, fieldIndex, fieldIndexMap.getType(fieldName));
 
             default:
                 throw new ParseException("Unexpected token type '" + token.getType() + "'", token.getStart());
@@ -0,0 +1,450 @@
+/*
+ * Copyright 2019 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.dashboard.expression.v1;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Looks at the source of a regex to find out if it is really a literal, a prefix, a suffix or a contains test, and if
+ * not, whether there is a literal that every match must contain. Anything that isn't understood is treated as a
+ * general pattern with no required literal so the compiled pattern is always the fallback.
+ */
+final class PatternAnalyser {
+    private PatternAnalyser() {
+        // Utility
+    }
+
+    static PatternMatcher analyse(final Pattern pattern) {
+        final String regex = pattern.pattern();
+        if (pattern.flags() != 0) {
+            return general(pattern);
+        }
+
+        final List<Atom> atoms = tokenise(regex);
+        if (atoms == null) {
+            return general(pattern);
+        }
+
+        // Leading '^' and trailing '$' make no difference to a full match.
+        boolean anchored = false;
+        int start = 0;
+        int end = atoms.size();
+        if (start < end && atoms.get(start).type == AtomType.START && atoms.get(start).quantifier == 0) {
+            anchored = true;
+            start++;
+        }
+        if (start < end && atoms.get(end - 1).type == AtomType.END && atoms.get(end - 1).quantifier == 0) {
+            anchored = true;
+            end--;
+        }
+
+        final PatternMatcher simple = simple(pattern, atoms, start, end, anchored);
+        if (simple != null) {
+            return simple;
+        }
+
+        return new PatternMatcher(pattern, PatternMatcher.Kind.GENERAL, requiredLiteral(atoms), 0, anchored);
+    }
+
+    private static PatternMatcher general(final Pattern pattern) {
+        return new PatternMatcher(pattern, PatternMatcher.Kind.GENERAL, null, 0, false);
+    }
+
+    private static PatternMatcher simple(final Pattern pattern,
+                                         final List<Atom> atoms,
+                                         final int start,
+                                         final int end,
+                                         final boolean anchored) {
+        int literalStart = start;
+        int literalEnd = end;
+
+        final boolean leadingWildcard = literalStart < literalEnd && atoms.get(literalStart).isWildcard();
+        if (leadingWildcard) {
+            literalStart++;
+        }
+        final boolean trailingWildcard = literalStart < literalEnd && atoms.get(literalEnd - 1).isWildcard();
+        if (trailingWildcard) {
+            literalEnd--;
+        }
+
+        final StringBuilder sb = new StringBuilder();
+        for (int i = literalStart; i < literalEnd; i++) {
+            final Atom atom = atoms.get(i);
+            if (atom.type != AtomType.LITERAL || atom.quantifier != 0) {
+                return null;
+            }
+            sb.append(atom.c);
+        }
+        final String literal = sb.toString();
+
+        if (!leadingWildcard && !trailingWildcard) {
+            return new PatternMatcher(pattern, PatternMatcher.Kind.LITERAL, literal, 0, anchored);
+        }
+
+        // The wildcard kinds rely on the literal never containing a line terminator.
+        for (int i = 0; i < literal.length(); i++) {
+            if (isLineTerminator(literal.charAt(i))) {
+                return null;
+            }
+        }
+
+        if (leadingWildcard && trailingWildcard) {
+            if (atoms.get(start).quantifier == '*' && atoms.get(end - 1).quantifier == '*') {
+                return new PatternMatcher(pattern, PatternMatcher.Kind.CONTAINS, literal, 0, anchored);
+            }
+            return null;
+        } else if (trailingWildcard) {
+            final int minExtra = atoms.get(end - 1).quantifier == '+' ? 1 : 0;
+            return new PatternMatcher(pattern, PatternMatcher.Kind.PREFIX, literal, minExtra, anchored);
+        } else {
+            final int minExtra = atoms.get(start).quantifier == '+' ? 1 : 0;
+            return new PatternMatcher(pattern, PatternMatcher.Kind.SUFFIX, literal, minExtra, anchored);
+        }
+    }
+
+    /**
+     * Find the longest run of unquantified literal characters at the top level of the pattern. Any match of the
+     * pattern must contain this run.
+     */
+    private static String requiredLiteral(final List<Atom> atoms) {
+        String longest = null;
+        final StringBuilder sb = new StringBuilder();
+        for (final Atom atom : atoms) {
+            if (atom.type == AtomType.ALTERNATION) {
+                return null;
+            }
+
+            if (atom.type == AtomType.LITERAL && atom.quantifier == 0) {
+                sb.append(atom.c);
+            } else {
+                longest = longest(longest, sb);
+                sb.setLength(0);
+            }
+        }
+        return longest(longest, sb);
+    }
+
+    private static String longest(final String current, final StringBuilder sb) {
+        if (sb.length() > 0 && (current == null || sb.length() > current.length())) {
+            return sb.toString();
+        }
+        return current;
+    }
+
+    /**
+     * Split the pattern into top level atoms. Groups and character classes are treated as single opaque atoms.
+     *
+     * @return The atoms or null if the pattern uses a construct that we don't attempt to understand.
+     */
+    private static List<Atom> tokenise(final String regex) {
+        final List<Atom> atoms = new ArrayList<>();
+        final int length = regex.length();
+        int i = 0;
+        while (i < length) {
+            final char c = regex.charAt(i);
+            if (Character.isSurrogate(c)) {
+                // Patterns match code points so leave supplementary characters to the regex engine.
+                return null;
+            }
+
+            switch (c) {
+                case '\\': {
+                    if (i + 1 >= length) {
+                        return null;
+                    }
+                    final char next = regex.charAt(i + 1);
+                    if (next == 'Q') {
+                        final int quoteEnd = quoteEnd(regex, i + 2);
+                        final int contentEnd = Math.min(quoteEnd, length);
+                        for (int j = i + 2; j < contentEnd; j++) {
+                            if (Character.isSurrogate(regex.charAt(j))) {
+                                return null;
+                            }
+                            atoms.add(new Atom(AtomType.LITERAL, regex.charAt(j)));
+                        }
+                        i = Math.min(quoteEnd + 2, length);
+                    } else {
+                        final Atom atom = escape(next);
+                        if (atom == null) {
+                            return null;
+                        }
+                        atoms.add(atom);
+                        i += 2;
+                    }
+                    break;
+                }
+                case '[': {
+                    final int classEnd = classEnd(regex, i);
+                    if (classEnd == -1) {
+                        return null;
+                    }
+                    atoms.add(new Atom(AtomType.OTHER, c));
+                    i = classEnd + 1;
+                    break;
+                }
+                case '(': {
+                    if (isInlineFlags(regex, i)) {
+                        // Flags change the meaning of everything that follows.
+                        return null;
+                    }
+                    final int groupEnd = groupEnd(regex, i);
+                    if (groupEnd == -1) {
+                        return null;
+                    }
+                    atoms.add(new Atom(AtomType.OTHER, c));
+                    i = groupEnd + 1;
+                    break;
+                }
+                case ')':
+                    return null;
+                case '.':
+                    atoms.add(new Atom(AtomType.ANY, c));
+                    i++;
+                    break;
+                case '^':
+                    atoms.add(new Atom(AtomType.START, c));
+                    i++;
+                    break;
+                case '$':
+                    atoms.add(new Atom(AtomType.END, c));
+                    i++;
+                    break;
+                case '|':
+                    atoms.add(new Atom(AtomType.ALTERNATION, c));
+                    i++;
+                    break;
+                case '*':
+                case '+':
+                case '?':
+                case '{': {
+                    if (atoms.size() == 0) {
+                        return null;
+                    }
+                    final Atom atom = atoms.get(atoms.size() - 1);
+                    if (atom.quantifier != 0) {
+                        return null;
+                    }
+
+                    if (c == '{') {
+                        final int braceEnd = regex.indexOf('}', i);
+                        if (braceEnd == -1) {
+                            return null;
+                        }
+                        atom.quantifier = 'n';
+                        i = braceEnd + 1;
+                    } else {
+                        atom.quantifier = c;
+                        i++;
+                    }
+
+                    // Lazy and possessive modifiers.
+                    if (i < length) {
+                        final char modifier = regex.charAt(i);
+                        if (modifier == '?') {
+                            i++;
+                        } else if (modifier == '+') {
+                            atom.quantifier = 'p';
+                            i++;
+                        }
+                    }
+                    break;
+                }
+                default:
+                    atoms.add(new Atom(AtomType.LITERAL, c));
+                    i++;
+                    break;
+            }
+        }
+        return atoms;
+    }
+
+    private static Atom escape(final char c) {
+        switch (c) {
+            case 't':
+                return new Atom(AtomType.LITERAL, '\t');
+            case 'n':
+                return new Atom(AtomType.LITERAL, '\n');
+            case 'r':
+                return new Atom(AtomType.LITERAL, '\r');
+            case 'f':
+                return new Atom(AtomType.LITERAL, '\f');
+            case 'a':
+                return new Atom(AtomType.LITERAL, '\u0007');
+            case 'e':
+                return new Atom(AtomType.LITERAL, '\u001B');
+            case 'd':
+            case 'D':
+            case 's':
+            case 'S':
+            case 'w':
+            case 'W':
+            case 'h':
+            case 'H':
+            case 'v':
+            case 'V':
+            case 'R':
+            case 'X':
+            case 'b':
+            case 'B':
+            case 'A':
+            case 'z':
+            case 'Z':
+            case 'G':
+                return new Atom(AtomType.OTHER, c);
+            default:
+                if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')) {
+                    // Back references, hex, octal, unicode and property escapes.
+                    return null;
+                }
+                return new Atom(AtomType.LITERAL, c);
+        }
+    }
+
+    /**
+     * @return The index of the '\E' that ends a quote that starts at the supplied index or the length of the regex if
+     * the quote is not terminated.
+     */
+    private static int quoteEnd(final String regex, final int start) {
+        final int index = regex.indexOf("\\E", start);
+        if (index == -1) {
+            return regex.length();
+        }
+        return index;
+    }
+
+    private static int classEnd(final String regex, final int start) {
+        int depth = 0;
+        int i = start;
+        while (i < regex.length()) {
+            final char c = regex.charAt(i);
+            if (c == '\\') {
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == 'Q') {
+                    i = quoteEnd(regex, i + 2) + 2;
+                } else {
+                    i += 2;
+                }
+            } else if (c == '[') {
+                depth++;
+                i++;
+                // A closing bracket straight after the opening bracket (or negation) is a literal.
+                if (i < regex.length() && regex.charAt(i) == '^') {
+                    i++;
+                }
+                if (i < regex.length() && regex.charAt(i) == ']') {
+                    i++;
+                }
+            } else if (c == ']') {
+                depth--;
+                if (depth == 0) {
+                    return i;
+                }
+                i++;
+            } else {
+                i++;
+            }
+        }
+        return -1;
+    }
+
+    private static int groupEnd(final String regex, final int start) {
+        int depth = 0;
+        int i = start;
+        while (i < regex.length()) {
+            final char c = regex.charAt(i);
+            if (c == '\\') {
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == 'Q') {
+                    i = quoteEnd(regex, i + 2) + 2;
+                } else {
+                    i += 2;
+                }
+            } else if (c == '[') {
+                final int classEnd = classEnd(regex, i);
+                if (classEnd == -1) {
+                    return -1;
+                }
+                i = classEnd + 1;
+            } else if (c == '(') {
+                depth++;
+                i++;
+            } else if (c == ')') {
+                depth--;
+                if (depth == 0) {
+                    return i;
+                }
+                i++;
+            } else {
+                i++;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Test for constructs such as '(?i)' that set flags for the rest of the pattern.
+     */
+    private static boolean isInlineFlags(final String regex, final int start) {
+        if (start + 1 >= regex.length() || regex.charAt(start + 1) != '?') {
+            return false;
+        }
+        int i = start + 2;
+        while (i < regex.length()) {
+            final char c = regex.charAt(i);
+            if (c == ')') {
+                return true;
+            }
+            if (!Character.isLetter(c) && c != '-') {
+                return false;
+            }
+            i++;
+        }
+        return false;
+    }
+
+    static boolean isLineTerminator(final char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    private enum AtomType {
+        LITERAL,
+        ANY,
+        START,
+        END,
+        ALTERNATION,
+        OTHER
+    }
+
+    private static class Atom {
+        private final AtomType type;
+        private final char c;
+        /**
+         * 0 if unquantified, '*', '+' or '?' for those quantifiers, 'n' for a bounded quantifier and 'p' for any
+         * possessive quantifier.
+         */
+        private char quantifier;
+
+        Atom(final AtomType type, final char c) {
+            this.type = type;
+            this.c = c;
+        }
+
+        boolean isWildcard() {
+            return type == AtomType.ANY && (quantifier == '*' || quantifier == '+');
+        }
+    }
+}
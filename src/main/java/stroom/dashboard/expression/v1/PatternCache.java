@@ -3,8 +3,11 @@ package stroom.dashboard.expression.v1;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.regex.Pattern;
@@ -28,18 +31,33 @@ final class PatternCache {
         }
     });
 
+    private static final Map<List<String>, MultiPatternMatcher> MULTI_MAP = Collections.synchronizedMap(new LinkedHashMap<List<String>, MultiPatternMatcher>(MAX_ENTRIES + 1, .75F, true) {
+        // This method is called just after a new entry has been added
+        public boolean removeEldestEntry(Map.Entry eldest) {
+            if (size() > MAX_ENTRIES) {
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("Evicting old pattern list: " + eldest.getKey());
+                }
+                return true;
+            }
+            return false;
+        }
+    });
+
+    private static volatile RegexEngine engine = readEngine();
+
     private PatternCache() {
         // Utility
     }
 
-    static Pattern get(final String regex) {
+    static PatternMatcher get(final String regex) {
         Objects.requireNonNull(regex, "Null regex");
         final CachedPattern cachedPattern = MAP.computeIfAbsent(regex, k -> {
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug("Compiling pattern: " + k);
             }
             try {
-                return new CachedPattern(Pattern.compile(k));
+                return new CachedPattern(create(k));
             } catch (final RuntimeException e) {
                 return new CachedPattern(e);
             }
@@ -47,20 +65,83 @@ final class PatternCache {
         if (cachedPattern.exception != null) {
             throw cachedPattern.exception;
         }
-        return cachedPattern.pattern;
+        return cachedPattern.matcher;
+    }
+
+    /**
+     * Get a matcher that tests all of the supplied patterns at once. Any invalid pattern will cause an exception to be
+     * thrown in the same way as {@link #get(String)}.
+     */
+    static MultiPatternMatcher getMulti(final String[] regexes) {
+        final List<String> key = Collections.unmodifiableList(Arrays.asList(regexes.clone()));
+        return MULTI_MAP.computeIfAbsent(key, k -> {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Compiling pattern list: " + k);
+            }
+            final PatternMatcher[] matchers = new PatternMatcher[k.size()];
+            for (int i = 0; i < matchers.length; i++) {
+                matchers[i] = get(k.get(i));
+            }
+            return new MultiPatternMatcher(matchers);
+        });
+    }
+
+    /**
+     * Change the engine used for patterns compiled from now on. Any cached patterns are discarded.
+     */
+    static void setEngine(final RegexEngine engine) {
+        Objects.requireNonNull(engine, "Null engine");
+        PatternCache.engine = engine;
+        MAP.clear();
+        MULTI_MAP.clear();
+    }
+
+    /**
+     * @return The engine that is actually used for the supplied regex, which will be {@link RegexEngine#JAVA} if the
+     * linear engine has been chosen but can't handle the regex.
+     */
+    static RegexEngine getEngine(final String regex) {
+        return get(regex).getEngine();
+    }
+
+    private static PatternMatcher create(final String regex) {
+        final PatternMatcher matcher = PatternAnalyser.analyse(Pattern.compile(regex));
+        if (engine == RegexEngine.LINEAR) {
+            final LinearRegex linear = LinearRegex.compile(regex);
+            if (linear != null) {
+                return new PatternMatcher(matcher, linear);
+            }
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Pattern not supported by linear engine, using java: " + regex);
+            }
+        }
+        return matcher;
+    }
+
+    private static RegexEngine readEngine() {
+        final String value = System.getProperty(RegexEngine.PROPERTY);
+        if (value == null || value.trim().isEmpty()) {
+            return RegexEngine.JAVA;
+        }
+        try {
+            return RegexEngine.valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (final IllegalArgumentException e) {
+            LOGGER.warn("Unknown regex engine '" + value + "', using " + RegexEngine.JAVA);
+            return RegexEngine.JAVA;
+        }
     }
 
     private static class CachedPattern {
-        private final Pattern pattern;
+        private final PatternMatcher matcher;
         private final RuntimeException exception;
 
-        CachedPattern(final Pattern pattern) {
-            this.pattern = pattern;
+        CachedPattern(final PatternMatcher matcher) {
+            this.matcher = matcher;
             this.exception = null;
         }
 
         CachedPattern(final RuntimeException exception) {
-            this.pattern = null;
+            this.matcher = null;
             this.exception = exception;
         }
     }
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2019 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.dashboard.expression.v1;
+
+import java.util.regex.Pattern;
+
+/**
+ * Wraps a compiled pattern with the result of {@link PatternAnalyser} so that simple patterns can be tested with
+ * plain string operations rather than a regex matcher.
+ */
+final class PatternMatcher {
+    enum Kind {
+        /**
+         * The whole pattern is a literal, e.g. 'foo' or '^foo$'.
+         */
+        LITERAL,
+        /**
+         * A literal followed by '.*' or '.+', e.g. 'foo.*'.
+         */
+        PREFIX,
+        /**
+         * A literal preceded by '.*' or '.+', e.g. '.*foo'.
+         */
+        SUFFIX,
+        /**
+         * A literal surrounded by '.*', e.g. '.*foo.*'.
+         */
+        CONTAINS,
+        /**
+         * Anything else, which must be tested with the compiled pattern.
+         */
+        GENERAL
+    }
+
+    private final Pattern pattern;
+    private final Kind kind;
+    private final String literal;
+    private final int minExtra;
+    private final boolean anchored;
+    private final LinearRegex linear;
+
+    /**
+     * @param pattern  The compiled pattern.
+     * @param kind     The kind of pattern.
+     * @param literal  The literal for the simple kinds or a literal that any match of a general pattern must
+     *                 contain, which may be null if there is no such literal.
+     * @param minExtra The minimum number of characters that a prefix or suffix pattern needs beyond the literal.
+     * @param anchored True if the pattern started with '^' or ended with '$'.
+     */
+    PatternMatcher(final Pattern pattern,
+                   final Kind kind,
+                   final String literal,
+                   final int minExtra,
+                   final boolean anchored) {
+        this.pattern = pattern;
+        this.kind = kind;
+        this.literal = literal;
+        this.minExtra = minExtra;
+        this.anchored = anchored;
+        this.linear = null;
+    }
+
+    /**
+     * Copy a matcher so that it uses the linear time engine in place of the compiled pattern.
+     */
+    PatternMatcher(final PatternMatcher matcher, final LinearRegex linear) {
+        this.pattern = matcher.pattern;
+        this.kind = matcher.kind;
+        this.literal = matcher.literal;
+        this.minExtra = matcher.minExtra;
+        this.anchored = matcher.anchored;
+        this.linear = linear;
+    }
+
+    /**
+     * Equivalent to {@code pattern.matcher(value).matches()}.
+     */
+    boolean matches(final String value) {
+        switch (kind) {
+            case LITERAL:
+                return literal.equals(value);
+            case PREFIX:
+                return value.length() >= literal.length() + minExtra
+                        && value.startsWith(literal)
+                        && !hasLineTerminator(value, literal.length(), value.length());
+            case SUFFIX:
+                return value.length() >= literal.length() + minExtra
+                        && value.endsWith(literal)
+                        && !hasLineTerminator(value, 0, value.length() - literal.length());
+            case CONTAINS:
+                return value.contains(literal)
+                        && !hasLineTerminator(value, 0, value.length());
+            default:
+                if (literal != null && !value.contains(literal)) {
+                    return false;
+                }
+                if (linear != null) {
+                    return linear.matches(value);
+                }
+                return pattern.matcher(value).matches();
+        }
+    }
+
+    /**
+     * Equivalent to {@code pattern.matcher(value).replaceAll(replacement)}.
+     */
+    String replaceAll(final String value, final String replacement) {
+        // Every match must include the literal so if it isn't present there is nothing to replace.
+        if (literal != null && !value.contains(literal)) {
+            return value;
+        }
+
+        if (kind == Kind.LITERAL && !anchored && replacement.indexOf('$') == -1 && replacement.indexOf('\\') == -1) {
+            return value.replace(literal, replacement);
+        }
+
+        // Named group references are left to the compiled pattern.
+        if (linear != null && !replacement.contains("${")) {
+            return linear.replaceAll(value, replacement);
+        }
+
+        return pattern.matcher(value).replaceAll(replacement);
+    }
+
+    Pattern getPattern() {
+        return pattern;
+    }
+
+    Kind getKind() {
+        return kind;
+    }
+
+    String getLiteral() {
+        return literal;
+    }
+
+    RegexEngine getEngine() {
+        if (linear != null) {
+            return RegexEngine.LINEAR;
+        }
+        return RegexEngine.JAVA;
+    }
+
+    /**
+     * '.' does not match line terminators unless DOTALL is set so we need to check the part of the value that the
+     * wildcard would have consumed.
+     */
+    private static boolean hasLineTerminator(final String value, final int start, final int end) {
+        for (int i = start; i < end; i++) {
+            if (PatternAnalyser.isLineTerminator(value.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return kind + " " + pattern;
+    }
+}
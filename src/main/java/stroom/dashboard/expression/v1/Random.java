@@ -33,6 +33,11 @@ class Random extends AbstractFunction {
         return false;
     }
 
+    @Override
+    public boolean isDeterministic() {
+        return false;
+    }
+
     private static class Gen extends AbstractNoChildGenerator {
         private static final long serialVersionUID = -7551073465232523106L;
 
@@ -47,5 +52,11 @@ class Random extends AbstractFunction {
         public Val eval() {
             return value;
         }
+
+        @Override
+        public void reset() {
+            super.reset();
+            value = null;
+        }
     }
 }
@@ -20,11 +20,17 @@ class Ref extends AbstractFunction {
     private static final NullGen NULL_GEN = new NullGen();
     private final String text;
     private final int fieldIndex;
+    private final FieldType fieldType;
 
     public Ref(final String text, final int fieldIndex) {
+        this(text, fieldIndex, null);
+    }
+
+    public Ref(final String text, final int fieldIndex, final FieldType fieldType) {
         super(text, 0, 0);
         this.text = text;
         this.fieldIndex = fieldIndex;
+        this.fieldType = fieldType;
     }
 
     @Override
@@ -33,11 +39,24 @@ class Ref extends AbstractFunction {
         // get the null generator.
         if (fieldIndex < 0) {
             return NULL_GEN;
+        } else if (fieldType != null) {
+            return new TypedGen(fieldIndex, fieldType);
         } else {
             return new Gen(fieldIndex);
         }
     }
 
+    int getFieldIndex() {
+        return fieldIndex;
+    }
+
+    /**
+     * @return The declared type of the field or null if it isn't known.
+     */
+    FieldType getFieldType() {
+        return fieldType;
+    }
+
     @Override
     public void appendString(final StringBuilder sb) {
         sb.append(text);
@@ -87,5 +106,45 @@ class Ref extends AbstractFunction {
         public Val eval() {
             return current;
         }
+
+        @Override
+        public void reset() {
+            super.reset();
+            current = null;
+        }
+    }
+
+    private static class TypedGen extends AbstractNoChildGenerator {
+        private static final long serialVersionUID = -3407460232410968211L;
+
+        private final int fieldIndex;
+        private final FieldType fieldType;
+        private Val current;
+
+        TypedGen(final int fieldIndex, final FieldType fieldType) {
+            this.fieldIndex = fieldIndex;
+            this.fieldType = fieldType;
+        }
+
+        @Override
+        public void set(final Val[] values) {
+            final Val value = values[fieldIndex];
+            if (value == null) {
+                current = ValNull.INSTANCE;
+            } else {
+                current = fieldType.convert(value);
+            }
+        }
+
+        @Override
+        public Val eval() {
+            return current;
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            current = null;
+        }
     }
 }
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2019 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.dashboard.expression.v1;
+
+/**
+ * The engines that can be used to evaluate regular expressions. The engine is chosen for a deployment with the
+ * system property {@value #PROPERTY}, e.g. {@code -Dstroom.expression.regexEngine=linear}.
+ */
+public enum RegexEngine {
+    /**
+     * The backtracking {@link java.util.regex.Pattern} engine. This supports every construct but some patterns can
+     * take exponential time.
+     */
+    JAVA,
+    /**
+     * An automaton based engine that runs in time linear in the length of the input. Patterns that use constructs it
+     * does not support, e.g. back references or look around, fall back to {@link #JAVA}.
+     */
+    LINEAR;
+
+    public static final String PROPERTY = "stroom.expression.regexEngine";
+}
@@ -18,7 +18,6 @@ package stroom.dashboard.expression.v1;
 
 import java.io.Serializable;
 import java.text.ParseException;
-import java.util.regex.Pattern;
 
 class Replace extends AbstractManyChildFunction implements Serializable {
     static final String NAME = "replace";
@@ -53,8 +52,8 @@ class Replace extends AbstractManyChildFunction implements Serializable {
                 throw new ParseException("An empty regex has been defined for second argument of '" + name + "' function", 0);
             }
 
-            final Pattern pattern = PatternCache.get(regex);
-            final String newValue = pattern.matcher(value).replaceAll(replacement);
+            final PatternMatcher matcher = PatternCache.get(regex);
+            final String newValue = matcher.replaceAll(value, replacement);
             gen = new StaticValueFunction(ValString.create(newValue)).createGenerator();
 
         } else {
@@ -123,8 +122,8 @@ class Replace extends AbstractManyChildFunction implements Serializable {
                 final String value = val.toString();
                 final String regex = valRegex.toString();
                 final String replacement = valReplacement.toString();
-                final Pattern pattern = PatternCache.get(regex);
-                return ValString.create(pattern.matcher(value).replaceAll(replacement));
+                final PatternMatcher matcher = PatternCache.get(regex);
+                return ValString.create(matcher.replaceAll(value, replacement));
 
             } catch (final RuntimeException e) {
                 return ValErr.create(e.getMessage());
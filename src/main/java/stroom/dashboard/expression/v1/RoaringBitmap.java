@@ -0,0 +1,412 @@
+/*
+ * Copyright 2019 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.dashboard.expression.v1;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+/**
+ * A compressed set of longs in the style of a Roaring bitmap. Values are split into the high 48 bits, which select a
+ * container, and the low 16 bits, which are held by the container. Containers with few values hold a sorted array of
+ * them and containers with many values hold a bitmap of all 65536 possible values, so dense runs of values such as
+ * ids or ports cost little more than a bit each.
+ * <p>
+ * Sets are merged container by container. They are serialised, by Java or Hessian serialisation, as a compact byte
+ * form that only holds the values that are present.
+ */
+final class RoaringBitmap implements Serializable {
+    private static final long serialVersionUID = -1883346214658052211L;
+
+    // The largest number of values held in an array container. Beyond this a bitmap is smaller.
+    private static final int ARRAY_MAX = 4096;
+    private static final int BITMAP_WORDS = 1024;
+
+    private static final byte ARRAY = 0;
+    private static final byte BITMAP = 1;
+
+    // The high bits of the values in each container, in ascending order.
+    private long[] keys = new long[4];
+    private Container[] containers = new Container[4];
+    private int size;
+    private long cardinality;
+
+    /**
+     * @return True if the value was not already present.
+     */
+    boolean add(final long value) {
+        final long key = value >>> 16;
+        final char low = (char) value;
+
+        int index = Arrays.binarySearch(keys, 0, size, key);
+        if (index < 0) {
+            index = -index - 1;
+            insert(index, key, new ArrayContainer());
+        }
+
+        final Container container = containers[index];
+        final int before = container.cardinality();
+        containers[index] = container.add(low);
+        if (containers[index].cardinality() != before) {
+            cardinality++;
+            return true;
+        }
+        return false;
+    }
+
+    boolean contains(final long value) {
+        final int index = Arrays.binarySearch(keys, 0, size, value >>> 16);
+        return index >= 0 && containers[index].contains((char) value);
+    }
+
+    long cardinality() {
+        return cardinality;
+    }
+
+    /**
+     * Add all of the values of another set to this one. The other set is not changed.
+     */
+    void or(final RoaringBitmap other) {
+        final long[] newKeys = new long[size + other.size];
+        final Container[] newContainers = new Container[size + other.size];
+        long newCardinality = 0;
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < size || j < other.size) {
+            final Container container;
+            if (j == other.size || (i < size && keys[i] < other.keys[j])) {
+                newKeys[n] = keys[i];
+                container = containers[i++];
+            } else if (i == size || other.keys[j] < keys[i]) {
+                newKeys[n] = other.keys[j];
+                container = other.containers[j++].copy();
+            } else {
+                newKeys[n] = keys[i];
+                container = containers[i++].or(other.containers[j++]);
+            }
+            newContainers[n++] = container;
+            newCardinality += container.cardinality();
+        }
+
+        keys = newKeys;
+        containers = newContainers;
+        size = n;
+        cardinality = newCardinality;
+    }
+
+    void clear() {
+        keys = new long[4];
+        containers = new Container[4];
+        size = 0;
+        cardinality = 0;
+    }
+
+    private void insert(final int index, final long key, final Container container) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            containers = Arrays.copyOf(containers, size * 2);
+        }
+        System.arraycopy(keys, index, keys, index + 1, size - index);
+        System.arraycopy(containers, index, containers, index + 1, size - index);
+        keys[index] = key;
+        containers[index] = container;
+        size++;
+    }
+
+    byte[] toBytes() {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (final DataOutputStream out = new DataOutputStream(baos)) {
+            out.writeInt(size);
+            for (int i = 0; i < size; i++) {
+                out.writeLong(keys[i]);
+                containers[i].write(out);
+            }
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return baos.toByteArray();
+    }
+
+    static RoaringBitmap fromBytes(final byte[] bytes) {
+        final RoaringBitmap bitmap = new RoaringBitmap();
+        try (final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            final int size = in.readInt();
+            bitmap.keys = new long[Math.max(4, size)];
+            bitmap.containers = new Container[bitmap.keys.length];
+            for (int i = 0; i < size; i++) {
+                bitmap.keys[i] = in.readLong();
+                final byte type = in.readByte();
+                final Container container;
+                if (type == ARRAY) {
+                    container = ArrayContainer.read(in);
+                } else if (type == BITMAP) {
+                    container = BitmapContainer.read(in);
+                } else {
+                    throw new IOException("Unknown container type " + type);
+                }
+                bitmap.containers[i] = container;
+                bitmap.cardinality += container.cardinality();
+            }
+            bitmap.size = size;
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bitmap;
+    }
+
+    private Object writeReplace() {
+        return new SerialForm(toBytes());
+    }
+
+    private static final class SerialForm implements Serializable {
+        private static final long serialVersionUID = 5290546733208016826L;
+
+        private final byte[] bytes;
+
+        SerialForm(final byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        private Object readResolve() {
+            return fromBytes(bytes);
+        }
+    }
+
+    private abstract static class Container {
+        abstract int cardinality();
+
+        abstract boolean contains(char value);
+
+        /**
+         * @return This container or, if it has become full, a replacement.
+         */
+        abstract Container add(char value);
+
+        /**
+         * @return The union of this container and another. The other container is not changed.
+         */
+        abstract Container or(Container other);
+
+        abstract Container copy();
+
+        abstract void write(DataOutput out) throws IOException;
+    }
+
+    private static final class ArrayContainer extends Container {
+        private char[] values;
+        private int cardinality;
+
+        ArrayContainer() {
+            this(new char[4], 0);
+        }
+
+        ArrayContainer(final char[] values, final int cardinality) {
+            this.values = values;
+            this.cardinality = cardinality;
+        }
+
+        static ArrayContainer read(final DataInput in) throws IOException {
+            final int cardinality = in.readUnsignedShort() + 1;
+            final char[] values = new char[cardinality];
+            for (int i = 0; i < cardinality; i++) {
+                values[i] = in.readChar();
+            }
+            return new ArrayContainer(values, cardinality);
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        boolean contains(final char value) {
+            return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+        }
+
+        @Override
+        Container add(final char value) {
+            int index = Arrays.binarySearch(values, 0, cardinality, value);
+            if (index >= 0) {
+                return this;
+            }
+            if (cardinality == ARRAY_MAX) {
+                return toBitmap().add(value);
+            }
+
+            index = -index - 1;
+            if (cardinality == values.length) {
+                values = Arrays.copyOf(values, Math.min(ARRAY_MAX, cardinality * 2));
+            }
+            System.arraycopy(values, index, values, index + 1, cardinality - index);
+            values[index] = value;
+            cardinality++;
+            return this;
+        }
+
+        @Override
+        Container or(final Container other) {
+            if (other instanceof BitmapContainer) {
+                return other.or(this);
+            }
+
+            final ArrayContainer array = (ArrayContainer) other;
+            final char[] merged = new char[cardinality + array.cardinality];
+            int i = 0;
+            int j = 0;
+            int n = 0;
+            while (i < cardinality && j < array.cardinality) {
+                final char a = values[i];
+                final char b = array.values[j];
+                if (a < b) {
+                    merged[n++] = a;
+                    i++;
+                } else if (b < a) {
+                    merged[n++] = b;
+                    j++;
+                } else {
+                    merged[n++] = a;
+                    i++;
+                    j++;
+                }
+            }
+            while (i < cardinality) {
+                merged[n++] = values[i++];
+            }
+            while (j < array.cardinality) {
+                merged[n++] = array.values[j++];
+            }
+
+            final ArrayContainer result = new ArrayContainer(merged, n);
+            if (n > ARRAY_MAX) {
+                return result.toBitmap();
+            }
+            return result;
+        }
+
+        @Override
+        Container copy() {
+            return new ArrayContainer(Arrays.copyOf(values, cardinality), cardinality);
+        }
+
+        @Override
+        void write(final DataOutput out) throws IOException {
+            out.writeByte(ARRAY);
+            // Containers are never empty so store one less to fit 65536 values in a short.
+            out.writeShort(cardinality - 1);
+            for (int i = 0; i < cardinality; i++) {
+                out.writeChar(values[i]);
+            }
+        }
+
+        private BitmapContainer toBitmap() {
+            final BitmapContainer bitmap = new BitmapContainer();
+            for (int i = 0; i < cardinality; i++) {
+                bitmap.add(values[i]);
+            }
+            return bitmap;
+        }
+    }
+
+    private static final class BitmapContainer extends Container {
+        private final long[] words;
+        private int cardinality;
+
+        BitmapContainer() {
+            this(new long[BITMAP_WORDS], 0);
+        }
+
+        BitmapContainer(final long[] words, final int cardinality) {
+            this.words = words;
+            this.cardinality = cardinality;
+        }
+
+        static BitmapContainer read(final DataInput in) throws IOException {
+            final long[] words = new long[BITMAP_WORDS];
+            int cardinality = 0;
+            for (int i = 0; i < BITMAP_WORDS; i++) {
+                words[i] = in.readLong();
+                cardinality += Long.bitCount(words[i]);
+            }
+            return new BitmapContainer(words, cardinality);
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        boolean contains(final char value) {
+            return (words[value >>> 6] & (1L << value)) != 0;
+        }
+
+        @Override
+        Container add(final char value) {
+            final int index = value >>> 6;
+            final long before = words[index];
+            final long after = before | (1L << value);
+            if (before != after) {
+                words[index] = after;
+                cardinality++;
+            }
+            return this;
+        }
+
+        @Override
+        Container or(final Container other) {
+            final long[] result = words.clone();
+            int count = 0;
+            if (other instanceof BitmapContainer) {
+                final long[] otherWords = ((BitmapContainer) other).words;
+                for (int i = 0; i < BITMAP_WORDS; i++) {
+                    result[i] |= otherWords[i];
+                    count += Long.bitCount(result[i]);
+                }
+                return new BitmapContainer(result, count);
+            }
+
+            final BitmapContainer bitmap = new BitmapContainer(result, cardinality);
+            final ArrayContainer array = (ArrayContainer) other;
+            for (int i = 0; i < array.cardinality; i++) {
+                bitmap.add(array.values[i]);
+            }
+            return bitmap;
+        }
+
+        @Override
+        Container copy() {
+            return new BitmapContainer(words.clone(), cardinality);
+        }
+
+        @Override
+        void write(final DataOutput out) throws IOException {
+            out.writeByte(BITMAP);
+            for (final long word : words) {
+                out.writeLong(word);
+            }
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2019 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.dashboard.expression.v1;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Aggregates rows at every level of a nested grouping in one pass, e.g. by host, then by host and user. Rows are only
+ * added to the groups of the finest level, which are keyed by the values of all of the key expressions. The groups of
+ * each coarser level are then derived by merging the generators of their child groups, and countGroups() is given the
+ * keys of the child groups, so there is no need to aggregate the rows again for each level.
+ * <p>
+ * Level 0 has a single group that holds every row, level 1 is grouped by the first key expression and so on down to
+ * the finest level, which is grouped by all of them. The coarser levels are derived when they are first asked for
+ * after rows have been added or merged.
+ * <p>
+ * Columns without aggregates, e.g. ${host}, have no state to merge so the generators of a parent group are given the
+ * latest row added to any of its children, as if that row had been added to the parent last. Columns that use field
+ * references outside of an aggregate as well as aggregates, e.g. concat(${host}, count()), only see the merged
+ * aggregates so should be avoided above the finest level.
+ */
+public final class Rollup {
+    private final Generator[] keyGenerators;
+    private final Expression[] columns;
+
+    // The groups of the finest level.
+    private final Map<GroupKey, Group> leaves = new LinkedHashMap<>();
+    // The groups of every level, or null if they need to be derived again.
+    private List<Map<GroupKey, Group>> levels;
+    // Numbers the rows so that the latest row of each group is known.
+    private long sequence;
+
+    /**
+     * @param keyExpressions The expressions to group by, coarsest first. These must not contain aggregates.
+     * @param columns        The expressions for the columns of each group. Null columns have no generator.
+     */
+    public Rollup(final Expression[] keyExpressions, final Expression[] columns) {
+        keyGenerators = new Generator[keyExpressions.length];
+        for (int i = 0; i < keyExpressions.length; i++) {
+            if (keyExpressions[i].hasAggregate()) {
+                throw new IllegalArgumentException("Unable to group by aggregate expression " + keyExpressions[i]);
+            }
+            keyGenerators[i] = keyExpressions[i].createGenerator();
+        }
+        this.columns = columns.clone();
+    }
+
+    /**
+     * @return The number of key expressions, which is also the level of the finest groups.
+     */
+    public int getDepth() {
+        return keyGenerators.length;
+    }
+
+    public void add(final Val[] values) {
+        final Val[] key = new Val[keyGenerators.length];
+        for (int i = 0; i < keyGenerators.length; i++) {
+            keyGenerators[i].set(values);
+            key[i] = keyGenerators[i].eval();
+        }
+
+        final Group group = leaves.computeIfAbsent(new GroupKey(key), this::createGroup);
+        for (final Generator generator : group.generators) {
+            if (generator != null) {
+                generator.set(values);
+            }
+        }
+        group.latestValues = values;
+        group.latestSequence = ++sequence;
+        levels = null;
+    }
+
+    /**
+     * Merge the groups of a rollup made from another shard into this one. The other rollup should not be used
+     * afterwards as its generators may now belong to this one.
+     */
+    public void merge(final Rollup other) {
+        if (other.keyGenerators.length != keyGenerators.length) {
+            throw new IllegalArgumentException("Unable to merge rollups of different depths");
+        }
+
+        for (final Group group : other.leaves.values()) {
+            // Sequence numbers from the other rollup aren't comparable with ours so treat its rows as older.
+            group.latestSequence = 0;
+            final Group existing = leaves.putIfAbsent(group.key, group);
+            if (existing != null) {
+                for (int i = 0; i < existing.generators.length; i++) {
+                    if (existing.generators[i] != null) {
+                        existing.generators[i].merge(group.generators[i]);
+                    }
+                }
+            }
+        }
+        levels = null;
+    }
+
+    /**
+     * @param level The number of key expressions to group by, from 0 for the total of every row to
+     *              {@link #getDepth()} for the finest groups.
+     * @return The groups of the level in the order that they were first seen.
+     */
+    public Collection<Group> getGroups(final int level) {
+        if (level < 0 || level > keyGenerators.length) {
+            throw new IllegalArgumentException("Level must be between 0 and " + keyGenerators.length);
+        }
+        if (levels == null) {
+            levels = deriveLevels();
+        }
+        return Collections.unmodifiableCollection(levels.get(level).values());
+    }
+
+    private List<Map<GroupKey, Group>> deriveLevels() {
+        final List<Map<GroupKey, Group>> result = new ArrayList<>(Collections.nCopies(keyGenerators.length + 1, null));
+        result.set(keyGenerators.length, leaves);
+
+        for (int level = keyGenerators.length - 1; level >= 0; level--) {
+            final Map<GroupKey, Group> parents = new LinkedHashMap<>();
+            for (final Group child : result.get(level + 1).values()) {
+                final Group parent = parents.computeIfAbsent(child.key.prefix(level), this::createGroup);
+                for (int i = 0; i < parent.generators.length; i++) {
+                    if (parent.generators[i] != null) {
+                        parent.generators[i].rollUp(child.generators[i]);
+                        parent.generators[i].addChildKey(child.key);
+                    }
+                }
+                if (parent.latestValues == null || child.latestSequence > parent.latestSequence) {
+                    parent.latestValues = child.latestValues;
+                    parent.latestSequence = child.latestSequence;
+                }
+            }
+
+            for (final Group parent : parents.values()) {
+                for (int i = 0; i < parent.generators.length; i++) {
+                    if (parent.generators[i] != null && !columns[i].hasAggregate()) {
+                        parent.generators[i].set(parent.latestValues);
+                    }
+                }
+            }
+            result.set(level, parents);
+        }
+        return result;
+    }
+
+    private Group createGroup(final GroupKey key) {
+        final Generator[] generators = new Generator[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i] != null) {
+                generators[i] = columns[i].createGenerator();
+            }
+        }
+        return new Group(key, generators);
+    }
+
+    public static final class Group {
+        private final GroupKey key;
+        private final Generator[] generators;
+        private Val[] latestValues;
+        private long latestSequence;
+
+        private Group(final GroupKey key, final Generator[] generators) {
+            this.key = key;
+            this.generators = generators;
+        }
+
+        /**
+         * @return The values of the key expressions that this group is grouped by, one for each level above it.
+         */
+        public Val[] getKey() {
+            return key.values.clone();
+        }
+
+        /**
+         * @return The generator for each column, or null for a column with no expression. These must only be used
+         * to read values.
+         */
+        public Generator[] getGenerators() {
+            return generators.clone();
+        }
+    }
+
+    private static final class GroupKey implements Key {
+        private static final long serialVersionUID = -6135214391683011342L;
+
+        private final Val[] values;
+        private final int hashCode;
+
+        GroupKey(final Val[] values) {
+            this.values = values;
+            this.hashCode = Arrays.hashCode(values);
+        }
+
+        GroupKey prefix(final int length) {
+            return new GroupKey(Arrays.copyOf(values, length));
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            final GroupKey groupKey = (GroupKey) o;
+            return hashCode == groupKey.hashCode && Arrays.equals(values, groupKey.values);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
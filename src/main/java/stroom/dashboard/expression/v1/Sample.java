@@ -0,0 +1,244 @@
+/*
+ * Copyright 2019 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.dashboard.expression.v1;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Picks a uniform random sample of the values of the argument in each group, e.g. sample(${userAgent}, 5), so that
+ * example values can be shown without keeping every value.
+ * <p>
+ * Each value is given a random key and the values with the smallest keys are kept. This is the same as reservoir
+ * sampling, but the sample from several shards can be merged by again keeping the values with the smallest keys,
+ * which weights each shard by the number of values it has seen so the merged sample is still uniform over all of
+ * them.
+ * <p>
+ * The random keys come from a source seeded by the {@value #SEED_PROPERTY} system property, e.g.
+ * {@code -Dstroom.expression.sampleSeed=42}, or from a random seed if it isn't set. Each thread splits its own source
+ * from the seeded one the first time it samples, so a seeded run gives the same samples as long as the same rows are
+ * added on the same threads in the same order.
+ */
+class Sample extends AbstractFunction {
+    static final String NAME = "sample";
+    static final String SEED_PROPERTY = "stroom.expression.sampleSeed";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Sample.class);
+
+    private static final int DEFAULT_SIZE = 10;
+    private static final int MAX_SIZE = 10000;
+
+    // Each thread has its own random source, split from one seeded source, so that sampling doesn't contend.
+    private static SplittableRandom seed = readSeed();
+    private static final ThreadLocal<SplittableRandom> RANDOM = ThreadLocal.withInitial(Sample::split);
+
+    private Function function;
+    private int size = DEFAULT_SIZE;
+
+    public Sample(final String name) {
+        super(name, 1, 2);
+    }
+
+    private static synchronized SplittableRandom split() {
+        return seed.split();
+    }
+
+    /**
+     * Seed the source that threads split their random sources from. Only the calling thread starts again from the new
+     * seed, other threads carry on with the sources they already have, so this is for tests.
+     */
+    static synchronized void setSeed(final long value) {
+        seed = new SplittableRandom(value);
+        RANDOM.remove();
+    }
+
+    private static SplittableRandom readSeed() {
+        final String value = System.getProperty(SEED_PROPERTY);
+        if (value == null || value.trim().isEmpty()) {
+            return new SplittableRandom();
+        }
+        try {
+            return new SplittableRandom(Long.parseLong(value.trim()));
+        } catch (final NumberFormatException e) {
+            LOGGER.warn("Invalid sample seed '" + value + "', using a random seed");
+            return new SplittableRandom();
+        }
+    }
+
+    @Override
+    public void setParams(final Param[] params) throws ParseException {
+        super.setParams(params);
+
+        if (params.length > 1) {
+            final Param param = params[1];
+            final Integer value = param instanceof Val ? ((Val) param).toInteger() : null;
+            if (value == null || value < 1 || value > MAX_SIZE) {
+                throw new ParseException("Number between 1 and " + MAX_SIZE + " expected as second argument of '"
+                        + name + "' function", 0);
+            }
+            size = value;
+        }
+
+        final Param param = params[0];
+        if (param instanceof Function) {
+            function = (Function) param;
+            if (function.hasAggregate()) {
+                throw new ParseException(name + " cannot be applied to aggregating function", 0);
+            }
+        } else {
+            function = new StaticValueFunction((Val) param);
+        }
+    }
+
+    @Override
+    public Generator createGenerator() {
+        return new Gen(function.createGenerator(), size);
+    }
+
+    @Override
+    public boolean isAggregate() {
+        return true;
+    }
+
+    @Override
+    public boolean hasAggregate() {
+        return isAggregate();
+    }
+
+    private static class Gen extends AbstractSingleChildGenerator {
+        private static final long serialVersionUID = -1617846211525307722L;
+        private static final ValComparator COMPARATOR = new ValComparator();
+
+        private final int capacity;
+
+        // A max heap of the sampled values by key so the value to replace is always at the root.
+        private double[] keys;
+        private Val[] values;
+        private int size;
+
+        Gen(final Generator childGenerator, final int capacity) {
+            super(childGenerator);
+            this.capacity = capacity;
+            final int initialCapacity = Math.min(capacity, 16);
+            this.keys = new double[initialCapacity];
+            this.values = new Val[initialCapacity];
+        }
+
+        @Override
+        public void set(final Val[] values) {
+            childGenerator.set(values);
+            final Val value = childGenerator.eval();
+            if (value.type().isValue()) {
+                offer(RANDOM.get().nextDouble(), value);
+            }
+        }
+
+        @Override
+        public Val eval() {
+            if (size == 0) {
+                return ValNull.INSTANCE;
+            }
+
+            // The sample is in no particular order so sort it to make it easier to read.
+            final Val[] sample = Arrays.copyOf(values, size);
+            Arrays.sort(sample, COMPARATOR);
+            final StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < sample.length; i++) {
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                sb.append(sample[i].toString());
+            }
+            return ValString.create(sb.toString());
+        }
+
+        @Override
+        void mergeState(final Generator generator) {
+            final Gen gen = (Gen) generator;
+            for (int i = 0; i < gen.size; i++) {
+                offer(gen.keys[i], gen.values[i]);
+            }
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            Arrays.fill(values, 0, size, null);
+            size = 0;
+        }
+
+        private void offer(final double key, final Val value) {
+            if (size < capacity) {
+                if (size == keys.length) {
+                    final int length = Math.min(capacity, size * 2);
+                    keys = Arrays.copyOf(keys, length);
+                    values = Arrays.copyOf(values, length);
+                }
+                keys[size] = key;
+                values[size] = value;
+                siftUp(size);
+                size++;
+            } else if (key < keys[0]) {
+                keys[0] = key;
+                values[0] = value;
+                siftDown();
+            }
+        }
+
+        private void siftUp(final int position) {
+            int child = position;
+            while (child > 0) {
+                final int parent = (child - 1) / 2;
+                if (keys[parent] >= keys[child]) {
+                    return;
+                }
+                swap(parent, child);
+                child = parent;
+            }
+        }
+
+        private void siftDown() {
+            int parent = 0;
+            while (true) {
+                final int left = parent * 2 + 1;
+                if (left >= size) {
+                    return;
+                }
+                final int right = left + 1;
+                final int child = right < size && keys[right] > keys[left] ? right : left;
+                if (keys[parent] >= keys[child]) {
+                    return;
+                }
+                swap(parent, child);
+                parent = child;
+            }
+        }
+
+        private void swap(final int i, final int j) {
+            final double key = keys[i];
+            keys[i] = keys[j];
+            keys[j] = key;
+            final Val value = values[i];
+            values[i] = values[j];
+            values[j] = value;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2019 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.dashboard.expression.v1;
+
+import java.text.ParseException;
+import java.util.function.Supplier;
+
+/**
+ * A subexpression that occurs more than once in the columns of a {@link TablePlan}. While the generators for a row
+ * are being created every occurrence gets the same {@link SharedGenerator}. Outside of a row each occurrence gets
+ * its own generator as usual.
+ */
+final class SharedFunction implements Function, Appendable {
+    private static final long serialVersionUID = 3957425683129407523L;
+
+    // The row whose generators are being created by the current thread, if any.
+    private static final ThreadLocal<RowContext> ROW = new ThreadLocal<>();
+
+    private final Function function;
+    private final int index;
+    private int uses = 1;
+
+    SharedFunction(final Function function, final int index) {
+        this.function = function;
+        this.index = index;
+    }
+
+    /**
+     * Create generators with any shared subexpressions sharing generators.
+     *
+     * @param generators Creates the generators for the row.
+     * @param size       The number of subexpressions in the plan.
+     * @param epoch      The epoch of the row.
+     */
+    static Generator[] createGenerators(final Supplier<Generator[]> generators,
+                                        final int size,
+                                        final SharedGenerator.Epoch epoch) {
+        final RowContext previous = ROW.get();
+        ROW.set(new RowContext(size, epoch));
+        try {
+            return generators.get();
+        } finally {
+            if (previous == null) {
+                ROW.remove();
+            } else {
+                ROW.set(previous);
+            }
+        }
+    }
+
+    Function getFunction() {
+        return function;
+    }
+
+    void addUse() {
+        uses++;
+    }
+
+    boolean isShared() {
+        return uses > 1;
+    }
+
+    /**
+     * Set the parameters of the wrapped function. Every occurrence of the subexpression is the same function so this
+     * changes all of them.
+     */
+    @Override
+    public void setParams(final Param[] params) throws ParseException {
+        function.setParams(params);
+    }
+
+    @Override
+    public Generator createGenerator() {
+        final RowContext context = ROW.get();
+        if (context == null || !isShared()) {
+            return function.createGenerator();
+        }
+
+        Generator generator = context.generators[index];
+        if (generator == null) {
+            generator = new SharedGenerator(function.createGenerator(), context.epoch);
+            context.generators[index] = generator;
+        }
+        return generator;
+    }
+
+    @Override
+    public boolean isAggregate() {
+        return function.isAggregate();
+    }
+
+    @Override
+    public boolean hasAggregate() {
+        return function.hasAggregate();
+    }
+
+    @Override
+    public boolean isDeterministic() {
+        return function.isDeterministic();
+    }
+
+    @Override
+    public void appendString(final StringBuilder sb) {
+        if (function instanceof Appendable) {
+            ((Appendable) function).appendString(sb);
+        } else {
+            sb.append(function.toString());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return function.toString();
+    }
+
+    private static class RowContext {
+        private final Generator[] generators;
+        private final SharedGenerator.Epoch epoch;
+
+        RowContext(final int size, final SharedGenerator.Epoch epoch) {
+            this.generators = new Generator[size];
+            this.epoch = epoch;
+        }
+    }
+}
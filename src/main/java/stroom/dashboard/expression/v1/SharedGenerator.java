@@ -0,0 +1,118 @@
+/*
+ * Copyright 2019 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.dashboard.expression.v1;
+
+import java.io.Serializable;
+
+/**
+ * The generator for a subexpression that is used in more than one place in a row. Each parent passes on the same
+ * call, so the row moves its epoch on before each operation and the wrapped generator is only called the first time
+ * in each epoch. The value is remembered until the generator changes so that each parent reads the same result
+ * without evaluating it again.
+ */
+final class SharedGenerator extends AbstractGenerator {
+    private static final long serialVersionUID = -2316592378307296484L;
+
+    private final Generator generator;
+    private final Epoch epoch;
+    private long done;
+
+    private transient Val val;
+
+    SharedGenerator(final Generator generator, final Epoch epoch) {
+        this.generator = generator;
+        this.epoch = epoch;
+    }
+
+    @Override
+    public void addChildKey(final Key key) {
+        if (first()) {
+            generator.addChildKey(key);
+            val = null;
+        }
+    }
+
+    @Override
+    public void set(final Val[] values) {
+        if (first()) {
+            generator.set(values);
+            val = null;
+        }
+    }
+
+    @Override
+    public Val eval() {
+        if (val == null) {
+            val = generator.eval();
+        }
+        return val;
+    }
+
+    @Override
+    public void merge(final Generator generator) {
+        if (first()) {
+            if (generator instanceof SharedGenerator) {
+                this.generator.merge(((SharedGenerator) generator).generator);
+            } else {
+                this.generator.merge(generator);
+            }
+            val = null;
+        }
+    }
+
+    @Override
+    public void rollUp(final Generator generator) {
+        if (first()) {
+            if (generator instanceof SharedGenerator) {
+                this.generator.rollUp(((SharedGenerator) generator).generator);
+            } else {
+                this.generator.rollUp(generator);
+            }
+            val = null;
+        }
+    }
+
+    @Override
+    public void reset() {
+        if (first()) {
+            super.reset();
+            generator.reset();
+            val = null;
+        }
+    }
+
+    private boolean first() {
+        if (done == epoch.value) {
+            return false;
+        }
+        done = epoch.value;
+        return true;
+    }
+
+    /**
+     * Counts the operations on a row.
+     */
+    static final class Epoch implements Serializable {
+        private static final long serialVersionUID = 6105126396232411390L;
+
+        private long value;
+
+        void next() {
+            value++;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2019 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.dashboard.expression.v1;
+
+/**
+ * The aggregates of a single argument whose state is simple enough to be shared between columns by
+ * {@link MomentPlan} and split into partial and final aggregates by {@link AggregatePlan}.
+ */
+enum SimpleAggregate {
+    COUNT,
+    SUM,
+    MIN,
+    MAX,
+    AVERAGE,
+    STDEV,
+    VARIANCE;
+
+    /**
+     * @return The kind of aggregate that the function is, or null if it isn't one of the simple aggregates.
+     */
+    static SimpleAggregate of(final Function function) {
+        final Function unwrapped = unwrap(function);
+        if (unwrapped == null || !unwrapped.isAggregate()) {
+            return null;
+        }
+        // Match exact classes so that subclasses with different behaviour aren't treated the same way.
+        final Class<?> type = unwrapped.getClass();
+        if (type == Count.class) {
+            return COUNT;
+        } else if (type == Sum.class) {
+            return SUM;
+        } else if (type == Min.class) {
+            return MIN;
+        } else if (type == Max.class) {
+            return MAX;
+        } else if (type == Average.class) {
+            return AVERAGE;
+        } else if (type == StDev.class) {
+            return STDEV;
+        } else if (type == Variance.class) {
+            return VARIANCE;
+        }
+        return null;
+    }
+
+    /**
+     * @param function A function that {@link #of(Function)} found to be a simple aggregate other than count().
+     * @return The argument of the aggregate.
+     */
+    static Function argumentOf(final Function function) {
+        return ((AbstractManyChildFunction) unwrap(function)).functions[0];
+    }
+
+    /**
+     * Columns parsed by {@link ExpressionParser#parseTable(FieldIndexMap, String[])} wrap their functions to share
+     * subexpressions, so look through the wrapper to find the aggregate.
+     */
+    private static Function unwrap(final Function function) {
+        if (function instanceof SharedFunction) {
+            return ((SharedFunction) function).getFunction();
+        }
+        return function;
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2019 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.dashboard.expression.v1;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * The count, sum, min and max of the values in a sliding time window that ends at the latest time seen. The window is
+ * divided into a fixed number of panes held in a ring buffer. When time moves on, the panes that fall out of the
+ * window are retracted from the running count and sum, and from the front of monotonic deques of panes that give the
+ * min and max, so each value costs O(1) however long the window is.
+ * <p>
+ * Values that arrive late, i.e. for a pane older than the newest, are still added to their pane if it is in the
+ * window but the deques are then rebuilt from the panes before they are next read.
+ */
+final class SlidingWindow implements Serializable {
+    private static final long serialVersionUID = 5273961480567735219L;
+
+    static final int PANES = 60;
+
+    private final long paneWidth;
+
+    // The newest pane seen, as the number of pane widths since the epoch.
+    private long newest = Long.MIN_VALUE;
+
+    // Pane state, indexed by pane number modulo the number of panes.
+    private final long[] counts = new long[PANES];
+    private final double[] sums = new double[PANES];
+    private final double[] mins = new double[PANES];
+    private final double[] maxs = new double[PANES];
+
+    private long count;
+    private double sum;
+
+    // Pane numbers with increasing mins and decreasing maxes respectively, oldest at the front.
+    private final Deque minDeque = new Deque();
+    private final Deque maxDeque = new Deque();
+    private boolean dequesValid = true;
+
+    SlidingWindow(final long window) {
+        paneWidth = Math.max(1, (window + PANES - 1) / PANES);
+    }
+
+    void add(final long time, final double value) {
+        final long pane = Math.floorDiv(time, paneWidth);
+        if (pane > newest) {
+            advance(pane);
+        } else if (pane <= newest - PANES) {
+            // Too old to be in the window.
+            return;
+        }
+
+        final int slot = slot(pane);
+        if (counts[slot] == 0) {
+            mins[slot] = value;
+            maxs[slot] = value;
+        } else {
+            mins[slot] = Math.min(mins[slot], value);
+            maxs[slot] = Math.max(maxs[slot], value);
+        }
+        counts[slot]++;
+        sums[slot] += value;
+        count++;
+        sum += value;
+
+        if (pane == newest) {
+            minDeque.push(pane, mins, false);
+            maxDeque.push(pane, maxs, true);
+        } else {
+            dequesValid = false;
+        }
+    }
+
+    void merge(final SlidingWindow other) {
+        if (other.newest == Long.MIN_VALUE) {
+            return;
+        }
+        if (other.newest > newest) {
+            advance(other.newest);
+        }
+        for (long pane = Math.max(other.newest - PANES + 1, newest - PANES + 1); pane <= other.newest; pane++) {
+            final int slot = slot(pane);
+            if (other.counts[slot] > 0) {
+                if (counts[slot] == 0) {
+                    mins[slot] = other.mins[slot];
+                    maxs[slot] = other.maxs[slot];
+                } else {
+                    mins[slot] = Math.min(mins[slot], other.mins[slot]);
+                    maxs[slot] = Math.max(maxs[slot], other.maxs[slot]);
+                }
+                counts[slot] += other.counts[slot];
+                sums[slot] += other.sums[slot];
+                count += other.counts[slot];
+                sum += other.sums[slot];
+            }
+        }
+        dequesValid = false;
+    }
+
+    void clear() {
+        newest = Long.MIN_VALUE;
+        Arrays.fill(counts, 0);
+        Arrays.fill(sums, 0);
+        count = 0;
+        sum = 0;
+        minDeque.clear();
+        maxDeque.clear();
+        dequesValid = true;
+    }
+
+    long count() {
+        return count;
+    }
+
+    double sum() {
+        return sum;
+    }
+
+    /**
+     * @return The smallest value in the window, which must not be empty.
+     */
+    double min() {
+        validate();
+        return mins[slot(minDeque.first())];
+    }
+
+    /**
+     * @return The largest value in the window, which must not be empty.
+     */
+    double max() {
+        validate();
+        return maxs[slot(maxDeque.first())];
+    }
+
+    /**
+     * Move the end of the window to a newer pane, retracting every pane that falls out of it.
+     */
+    private void advance(final long pane) {
+        if (newest != Long.MIN_VALUE) {
+            final long from = newest - PANES + 1;
+            final long to = Math.min(pane - PANES, newest);
+            for (long expired = from; expired <= to; expired++) {
+                final int slot = slot(expired);
+                count -= counts[slot];
+                sum -= sums[slot];
+                counts[slot] = 0;
+                sums[slot] = 0;
+            }
+            if (count == 0) {
+                // Don't leave rounding errors behind once the window is empty.
+                sum = 0;
+            }
+        }
+        newest = pane;
+        minDeque.expire(pane - PANES);
+        maxDeque.expire(pane - PANES);
+    }
+
+    private void validate() {
+        if (!dequesValid) {
+            minDeque.clear();
+            maxDeque.clear();
+            for (long pane = newest - PANES + 1; pane <= newest; pane++) {
+                if (counts[slot(pane)] > 0) {
+                    minDeque.push(pane, mins, false);
+                    maxDeque.push(pane, maxs, true);
+                }
+            }
+            dequesValid = true;
+        }
+    }
+
+    private static int slot(final long pane) {
+        return Math.floorMod(pane, PANES);
+    }
+
+    /**
+     * A double ended queue of pane numbers held in a ring. It never holds more than one entry per pane in the window.
+     */
+    private static final class Deque implements Serializable {
+        private static final long serialVersionUID = -4624386622307549211L;
+
+        private final long[] panes = new long[PANES];
+        private int head;
+        private int size;
+
+        /**
+         * Add the newest pane at the back, first removing every pane whose value it beats as they can no longer be
+         * the min or max.
+         */
+        void push(final long pane, final double[] values, final boolean max) {
+            final double value = values[slot(pane)];
+            while (size > 0) {
+                final long last = panes[(head + size - 1) % PANES];
+                final double lastValue = values[slot(last)];
+                if (last == pane || (max ? lastValue <= value : lastValue >= value)) {
+                    size--;
+                } else {
+                    break;
+                }
+            }
+            panes[(head + size) % PANES] = pane;
+            size++;
+        }
+
+        /**
+         * Remove panes from the front up to and including the given pane.
+         */
+        void expire(final long pane) {
+            while (size > 0 && panes[head] <= pane) {
+                head = (head + 1) % PANES;
+                size--;
+            }
+        }
+
+        long first() {
+            return panes[head];
+        }
+
+        void clear() {
+            head = 0;
+            size = 0;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2019 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.dashboard.expression.v1;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A normalised form of a value that sorts with a plain unsigned byte comparison. Deriving the key once per value is
+ * much cheaper than converting both values on every comparison as {@link ValComparator} does.
+ * <p>
+ * Anything that can be converted to a number sorts first, in numeric order. Other values sort next by their string
+ * value ignoring case, as {@link String#compareToIgnoreCase(String)} would. Null and error values sort last. Unlike
+ * {@link ValComparator} a number and a non numeric string are never compared as strings so that the order is always
+ * consistent.
+ */
+public final class SortKey implements Comparable<SortKey>, Serializable {
+    private static final long serialVersionUID = -2437017425012413584L;
+
+    private static final byte NUMBER = 0;
+    private static final byte STRING = 1;
+    private static final byte NULL_OR_ERROR = 2;
+    private static final byte MISSING = 3;
+
+    private static final SortKey NULL_OR_ERROR_KEY = new SortKey(new byte[]{NULL_OR_ERROR});
+    private static final SortKey MISSING_KEY = new SortKey(new byte[]{MISSING});
+
+    private final byte[] bytes;
+
+    private SortKey(final byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    public static SortKey create(final Val val) {
+        if (val == null) {
+            return MISSING_KEY;
+        }
+
+        final Double d = val.toDouble();
+        if (d != null) {
+            final long exact;
+            if (val instanceof ValLong || val instanceof ValInteger) {
+                // Large longs can't be represented exactly as doubles so keep the exact value to break ties.
+                exact = val.toLong();
+            } else {
+                exact = d.longValue();
+            }
+
+            final byte[] bytes = new byte[17];
+            bytes[0] = NUMBER;
+            putLong(bytes, 1, sortableBits(d));
+            putLong(bytes, 9, exact ^ Long.MIN_VALUE);
+            return new SortKey(bytes);
+        }
+
+        final String string = val.toString();
+        if (string == null) {
+            return NULL_OR_ERROR_KEY;
+        }
+
+        final byte[] bytes = new byte[1 + string.length() * 2];
+        bytes[0] = STRING;
+        for (int i = 0; i < string.length(); i++) {
+            final char c = Character.toLowerCase(Character.toUpperCase(string.charAt(i)));
+            bytes[1 + i * 2] = (byte) (c >>> 8);
+            bytes[2 + i * 2] = (byte) c;
+        }
+        return new SortKey(bytes);
+    }
+
+    /**
+     * Flip the bits of a double so that the result orders the same way as {@link Double#compare(double, double)}
+     * when compared as unsigned bytes.
+     */
+    private static long sortableBits(final double d) {
+        final long bits = Double.doubleToLongBits(d);
+        if (bits < 0) {
+            return ~bits;
+        }
+        return bits ^ Long.MIN_VALUE;
+    }
+
+    private static void putLong(final byte[] bytes, final int offset, final long value) {
+        for (int i = 0; i < 8; i++) {
+            bytes[offset + i] = (byte) (value >>> (56 - i * 8));
+        }
+    }
+
+    /**
+     * Recreate a key from the bytes returned by {@link #getBytes()}.
+     */
+    static SortKey fromBytes(final byte[] bytes) {
+        return new SortKey(bytes);
+    }
+
+    byte[] getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public int compareTo(final SortKey o) {
+        return Arrays.compareUnsigned(bytes, o.bytes);
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        final SortKey sortKey = (SortKey) o;
+        return Arrays.equals(bytes, sortKey.bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(bytes);
+    }
+}
@@ -96,10 +96,15 @@ class StDev extends AbstractManyChildFunction implements AggregateFunction {
         }
 
         @Override
-        public void merge(final Generator generator) {
+        void mergeState(final Generator generator) {
             final AggregateGen aggregateGen = (AggregateGen) generator;
             list.addAll(aggregateGen.list);
-            super.merge(generator);
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            list.clear();
         }
     }
 
@@ -30,12 +30,17 @@ class Subtract extends NumericFunction {
         return CALC;
     }
 
-    static class Calc extends Calculator {
+    static class Calc extends LongCalculator {
         private static final long serialVersionUID = 1099553839843710283L;
 
         @Override
         protected double op(final double cur, final double val) {
             return cur - val;
         }
+
+        @Override
+        long opLong(final long cur, final long val) {
+            return Math.subtractExact(cur, val);
+        }
     }
 }
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2019 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.dashboard.expression.v1;
+
+import java.io.Serializable;
+
+/**
+ * The expressions for all of the columns of a table, parsed together by
+ * {@link ExpressionParser#parseTable(FieldIndexMap, String[])} so that a subexpression used more than once, e.g.
+ * roundDay(${EventTime}) in several columns, is only evaluated once per row. Columns that are simple aggregates of
+ * the same argument also share one accumulator as they would with {@link MomentPlan}.
+ * <p>
+ * The generators of a {@link Row} share the generators of these subexpressions, so rows must be changed through
+ * the methods of {@link Row} rather than through the column generators.
+ */
+public final class TablePlan {
+    private final Expression[] expressions;
+    private final int size;
+    private final int sharedCount;
+    private final MomentPlan momentPlan;
+
+    TablePlan(final Expression[] expressions, final int size, final int sharedCount) {
+        this.expressions = expressions;
+        this.size = size;
+        this.sharedCount = sharedCount;
+        this.momentPlan = MomentPlan.create(expressions);
+    }
+
+    /**
+     * @return The expression for each column. Each expression can still be used alone, in which case it will not
+     * share anything.
+     */
+    public Expression[] getExpressions() {
+        return expressions.clone();
+    }
+
+    public Row createRow() {
+        final SharedGenerator.Epoch epoch = new SharedGenerator.Epoch();
+        return new Row(SharedFunction.createGenerators(momentPlan::createGenerators, size, epoch), epoch);
+    }
+
+    /**
+     * @return The number of distinct subexpressions that are shared.
+     */
+    int getSharedCount() {
+        return sharedCount;
+    }
+
+    /**
+     * @return The number of accumulators that are shared between simple aggregate columns.
+     */
+    int getSharedMomentCount() {
+        return momentPlan.getSharedCount();
+    }
+
+    public static final class Row implements Serializable {
+        private static final long serialVersionUID = -2906413402452683937L;
+
+        private final Generator[] generators;
+        private final SharedGenerator.Epoch epoch;
+
+        private Row(final Generator[] generators, final SharedGenerator.Epoch epoch) {
+            this.generators = generators;
+            this.epoch = epoch;
+        }
+
+        /**
+         * @return The generator for each column, or null for a column with no expression. These must only be used
+         * to read values.
+         */
+        public Generator[] getGenerators() {
+            return generators.clone();
+        }
+
+        public void addChildKey(final Key key) {
+            epoch.next();
+            for (final Generator generator : generators) {
+                if (generator != null) {
+                    generator.addChildKey(key);
+                }
+            }
+        }
+
+        public void set(final Val[] values) {
+            epoch.next();
+            for (final Generator generator : generators) {
+                if (generator != null) {
+                    generator.set(values);
+                }
+            }
+        }
+
+        public void merge(final Row row) {
+            epoch.next();
+            for (int i = 0; i < generators.length; i++) {
+                if (generators[i] != null) {
+                    generators[i].merge(row.generators[i]);
+                }
+            }
+        }
+
+        public void reset() {
+            epoch.next();
+            for (final Generator generator : generators) {
+                if (generator != null) {
+                    generator.reset();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2019 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.dashboard.expression.v1;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Selects the first N rows of a result by one or more sort columns without sorting every row. Columns are ordered
+ * the same way as {@link Generator#compareTo(Object)}, i.e. by {@link SortKey}.
+ * <p>
+ * In bounded mode only the best N rows are kept in a heap. Rows that tie on every sort column are ordered by their
+ * key, using {@link Comparable#compareTo(Object)} where the key is comparable and its serialised form otherwise, so
+ * the heap never holds more than N rows and merging the selections from several shards gives exactly the same rows
+ * as selecting from all of the rows at once. Bounded mode assumes that each key is only ever added once.
+ * <p>
+ * Where the sort columns are aggregates the same key can be added many times and the sort values change as the
+ * generators are merged, so a partial selection could drop a row that ends up in the first N. Exact mode keeps every
+ * row, merging the generators of rows with the same key, and only selects when {@link #getRows()} is called. Keys
+ * must implement equals and hash code for exact mode.
+ */
+public final class TopNSelector {
+    private final int limit;
+    private final int[] sortColumns;
+    private final boolean[] descending;
+    private final boolean exact;
+    private final Comparator<Row> comparator;
+
+    // Bounded mode, with the worst row at the head.
+    private final PriorityQueue<Row> heap;
+    // Exact mode.
+    private final Map<Key, Row> rows;
+
+    /**
+     * @param limit       The number of rows to select.
+     * @param sortColumns The indexes of the generators to sort by in order of precedence.
+     * @param descending  Whether each sort column is sorted in descending order.
+     * @param exact       True if every row must be kept until the end because the sort columns are aggregates.
+     */
+    public TopNSelector(final int limit, final int[] sortColumns, final boolean[] descending, final boolean exact) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Limit must not be negative");
+        }
+        if (sortColumns.length != descending.length) {
+            throw new IllegalArgumentException("A sort direction is required for each sort column");
+        }
+
+        this.limit = limit;
+        this.sortColumns = sortColumns.clone();
+        this.descending = descending.clone();
+        this.exact = exact;
+        this.comparator = this::compare;
+
+        if (exact) {
+            heap = null;
+            rows = new HashMap<>();
+        } else {
+            heap = new PriorityQueue<>(Math.max(1, limit + 1), comparator.reversed());
+            rows = null;
+        }
+    }
+
+    /**
+     * Create a selector that uses exact mode if any of the sort column expressions contain aggregates.
+     */
+    public static TopNSelector create(final int limit,
+                                      final Expression[] expressions,
+                                      final int[] sortColumns,
+                                      final boolean[] descending) {
+        boolean exact = false;
+        for (final int column : sortColumns) {
+            exact = exact || expressions[column].hasAggregate();
+        }
+        return new TopNSelector(limit, sortColumns, descending, exact);
+    }
+
+    public void add(final Key key, final Generator[] generators) {
+        if (exact) {
+            final Row existing = rows.get(key);
+            if (existing == null) {
+                rows.put(key, new Row(key, generators));
+            } else {
+                for (int i = 0; i < generators.length; i++) {
+                    existing.generators[i].merge(generators[i]);
+                }
+            }
+        } else {
+            offer(new Row(key, generators, sortKeys(generators)));
+        }
+    }
+
+    /**
+     * Merge a selection made from another shard into this one. The other selection should not be used afterwards as
+     * its generators may now belong to this one.
+     */
+    public void merge(final TopNSelector other) {
+        if (exact != other.exact) {
+            throw new IllegalArgumentException("Unable to merge exact and bounded selections");
+        }
+
+        if (exact) {
+            for (final Row row : other.rows.values()) {
+                add(row.key, row.generators);
+            }
+        } else {
+            for (final Row row : other.heap) {
+                offer(row);
+            }
+        }
+    }
+
+    /**
+     * @return The selected rows in sort order.
+     */
+    public List<Row> getRows() {
+        final List<Row> list;
+        if (exact) {
+            final TopNSelector bounded = new TopNSelector(limit, sortColumns, descending, false);
+            for (final Row row : rows.values()) {
+                bounded.add(row.key, row.generators);
+            }
+            list = new ArrayList<>(bounded.heap);
+        } else {
+            list = new ArrayList<>(heap);
+        }
+        list.sort(comparator);
+        return Collections.unmodifiableList(list);
+    }
+
+    private void offer(final Row row) {
+        if (limit == 0) {
+            return;
+        }
+
+        if (heap.size() >= limit) {
+            if (compare(row, heap.peek()) > 0) {
+                // Worse than everything selected so far.
+                return;
+            }
+            heap.poll();
+        }
+        heap.add(row);
+    }
+
+    private SortKey[] sortKeys(final Generator[] generators) {
+        final SortKey[] keys = new SortKey[sortColumns.length];
+        for (int i = 0; i < sortColumns.length; i++) {
+            keys[i] = SortKey.create(generators[sortColumns[i]].eval());
+        }
+        return keys;
+    }
+
+    private int compare(final Row r1, final Row r2) {
+        for (int i = 0; i < sortColumns.length; i++) {
+            int diff = r1.sortKeys[i].compareTo(r2.sortKeys[i]);
+            if (diff != 0) {
+                if (descending[i]) {
+                    diff = -diff;
+                }
+                return diff;
+            }
+        }
+        return compareKeys(r1, r2);
+    }
+
+    @SuppressWarnings("unchecked")
+    private int compareKeys(final Row r1, final Row r2) {
+        if (r1.key == r2.key) {
+            return 0;
+        }
+        if (r1.key instanceof Comparable && r1.key.getClass() == r2.key.getClass()) {
+            return ((Comparable<Object>) r1.key).compareTo(r2.key);
+        }
+        return Arrays.compareUnsigned(r1.keyBytes(), r2.keyBytes());
+    }
+
+    public static final class Row {
+        private final Key key;
+        private final Generator[] generators;
+        private final SortKey[] sortKeys;
+        // The serialised key, only created if the row ties with another on every sort column.
+        private byte[] keyBytes;
+
+        private Row(final Key key, final Generator[] generators) {
+            this(key, generators, null);
+        }
+
+        private Row(final Key key, final Generator[] generators, final SortKey[] sortKeys) {
+            this.key = key;
+            this.generators = generators;
+            this.sortKeys = sortKeys;
+        }
+
+        public Key getKey() {
+            return key;
+        }
+
+        public Generator[] getGenerators() {
+            return generators;
+        }
+
+        private byte[] keyBytes() {
+            if (keyBytes == null) {
+                final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                try (final ObjectOutputStream oos = new ObjectOutputStream(baos)) {
+                    oos.writeObject(key);
+                } catch (final IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                keyBytes = baos.toByteArray();
+            }
+            return keyBytes;
+        }
+    }
+}
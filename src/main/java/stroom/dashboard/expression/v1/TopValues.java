@@ -0,0 +1,310 @@
+/*
+ * Copyright 2019 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.dashboard.expression.v1;
+
+import java.io.Serializable;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds the most frequent values of the argument in each group, e.g. topValues(${userAgent}, 10), using a
+ * Space-Saving sketch so that each group holds a fixed number of counters rather than one per distinct value.
+ * <p>
+ * The sketch holds {@link #COUNTERS_PER_VALUE} counters for each value asked for. When it is full a new value takes
+ * over the counter with the lowest count and inherits that count as its error, so counts are never underestimated
+ * and are overestimated by at most the error. Any value that occurs in more than 1/m of rows, where m is the number
+ * of counters, is guaranteed to be held. Sketches from different shards are merged as described by Agarwal et al.
+ * (Mergeable Summaries), which keeps the same guarantee.
+ * <p>
+ * The result is a string listing the values with their counts, most frequent first, e.g. "Firefox (120), Chrome
+ * (88..95)". Exact counts are shown as a single number and estimated counts as the range that the true count lies in.
+ */
+class TopValues extends AbstractFunction {
+    static final String NAME = "topValues";
+
+    private static final int DEFAULT_LIMIT = 10;
+    private static final int MAX_LIMIT = 10000;
+    private static final int COUNTERS_PER_VALUE = 4;
+
+    private Function function;
+    private int limit = DEFAULT_LIMIT;
+
+    public TopValues(final String name) {
+        super(name, 1, 2);
+    }
+
+    @Override
+    public void setParams(final Param[] params) throws ParseException {
+        super.setParams(params);
+
+        if (params.length > 1) {
+            final Param param = params[1];
+            final Integer value = param instanceof Val ? ((Val) param).toInteger() : null;
+            if (value == null || value < 1 || value > MAX_LIMIT) {
+                throw new ParseException("Number between 1 and " + MAX_LIMIT + " expected as second argument of '"
+                        + name + "' function", 0);
+            }
+            limit = value;
+        }
+
+        final Param param = params[0];
+        if (param instanceof Function) {
+            function = (Function) param;
+            if (function.hasAggregate()) {
+                throw new ParseException(name + " cannot be applied to aggregating function", 0);
+            }
+        } else {
+            function = new StaticValueFunction((Val) param);
+        }
+    }
+
+    @Override
+    public Generator createGenerator() {
+        return new Gen(function.createGenerator(), limit);
+    }
+
+    @Override
+    public boolean isAggregate() {
+        return true;
+    }
+
+    @Override
+    public boolean hasAggregate() {
+        return isAggregate();
+    }
+
+    private static class Gen extends AbstractSingleChildGenerator {
+        private static final long serialVersionUID = 3562618834962364367L;
+        private static final ValComparator COMPARATOR = new ValComparator();
+
+        private final int limit;
+        private final int capacity;
+
+        // A min heap of counters by count so the counter to replace is always at the root.
+        private Counter[] heap;
+        private int size;
+        // The counter for each value, rebuilt from the heap after deserialisation.
+        private transient Map<Val, Counter> index;
+
+        Gen(final Generator childGenerator, final int limit) {
+            super(childGenerator);
+            this.limit = limit;
+            this.capacity = limit * COUNTERS_PER_VALUE;
+            this.heap = new Counter[Math.min(capacity, 16)];
+        }
+
+        @Override
+        public void set(final Val[] values) {
+            childGenerator.set(values);
+            final Val value = childGenerator.eval();
+            if (value.type().isValue()) {
+                add(value);
+            }
+        }
+
+        private void add(final Val value) {
+            final Map<Val, Counter> index = index();
+            final Counter counter = index.get(value);
+            if (counter != null) {
+                counter.count++;
+                siftDown(counter.position);
+            } else if (size < capacity) {
+                final Counter added = new Counter(value, 1, 0);
+                index.put(value, added);
+                push(added);
+            } else {
+                // Replace the least frequent value, which the new value may have displaced at any time.
+                final Counter min = heap[0];
+                index.remove(min.value);
+                min.value = value;
+                min.error = min.count;
+                min.count++;
+                index.put(value, min);
+                siftDown(0);
+            }
+        }
+
+        @Override
+        public Val eval() {
+            final List<Counter> counters = sorted();
+            if (counters.isEmpty()) {
+                return ValNull.INSTANCE;
+            }
+
+            final StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < counters.size() && i < limit; i++) {
+                final Counter counter = counters.get(i);
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                sb.append(counter.value.toString());
+                sb.append(" (");
+                if (counter.error > 0) {
+                    sb.append(counter.count - counter.error);
+                    sb.append("..");
+                }
+                sb.append(counter.count);
+                sb.append(")");
+            }
+            return ValString.create(sb.toString());
+        }
+
+        @Override
+        void mergeState(final Generator generator) {
+            final Gen gen = (Gen) generator;
+            // A value missing from a full sketch may have occurred up to as many times as its smallest count.
+            final long missing = size < capacity ? 0 : heap[0].count;
+            final long otherMissing = gen.size < gen.capacity ? 0 : gen.heap[0].count;
+
+            final Map<Val, Counter> merged = new HashMap<>();
+            for (int i = 0; i < size; i++) {
+                final Counter counter = heap[i];
+                merged.put(counter.value, new Counter(counter.value,
+                        counter.count + otherMissing,
+                        counter.error + otherMissing));
+            }
+            for (int i = 0; i < gen.size; i++) {
+                final Counter counter = gen.heap[i];
+                final Counter existing = merged.get(counter.value);
+                if (existing == null) {
+                    merged.put(counter.value, new Counter(counter.value,
+                            counter.count + missing,
+                            counter.error + missing));
+                } else {
+                    existing.count += counter.count - otherMissing;
+                    existing.error += counter.error - otherMissing;
+                }
+            }
+
+            final List<Counter> counters = new ArrayList<>(merged.values());
+            counters.sort(Gen::compare);
+            clear();
+            for (int i = 0; i < counters.size() && i < capacity; i++) {
+                final Counter counter = counters.get(i);
+                index.put(counter.value, counter);
+                push(counter);
+            }
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            clear();
+        }
+
+        private void clear() {
+            Arrays.fill(heap, 0, size, null);
+            size = 0;
+            index = new HashMap<>();
+        }
+
+        private List<Counter> sorted() {
+            final List<Counter> counters = new ArrayList<>(size);
+            counters.addAll(Arrays.asList(heap).subList(0, size));
+            counters.sort(Gen::compare);
+            return counters;
+        }
+
+        /**
+         * Most frequent first, then by value so that the order doesn't depend on the order rows were added in.
+         */
+        private static int compare(final Counter c1, final Counter c2) {
+            final int diff = Long.compare(c2.count, c1.count);
+            if (diff != 0) {
+                return diff;
+            }
+            return COMPARATOR.compare(c1.value, c2.value);
+        }
+
+        private Map<Val, Counter> index() {
+            if (index == null) {
+                index = new HashMap<>();
+                for (int i = 0; i < size; i++) {
+                    index.put(heap[i].value, heap[i]);
+                }
+            }
+            return index;
+        }
+
+        private void push(final Counter counter) {
+            if (size == heap.length) {
+                heap = Arrays.copyOf(heap, Math.min(capacity, size * 2));
+            }
+            heap[size] = counter;
+            counter.position = size;
+            size++;
+            siftUp(size - 1);
+        }
+
+        private void siftUp(final int position) {
+            int child = position;
+            while (child > 0) {
+                final int parent = (child - 1) / 2;
+                if (heap[parent].count <= heap[child].count) {
+                    return;
+                }
+                swap(parent, child);
+                child = parent;
+            }
+        }
+
+        private void siftDown(final int position) {
+            int parent = position;
+            while (true) {
+                final int left = parent * 2 + 1;
+                if (left >= size) {
+                    return;
+                }
+                final int right = left + 1;
+                final int child = right < size && heap[right].count < heap[left].count ? right : left;
+                if (heap[parent].count <= heap[child].count) {
+                    return;
+                }
+                swap(parent, child);
+                parent = child;
+            }
+        }
+
+        private void swap(final int i, final int j) {
+            final Counter counter = heap[i];
+            heap[i] = heap[j];
+            heap[j] = counter;
+            heap[i].position = i;
+            heap[j].position = j;
+        }
+    }
+
+    private static class Counter implements Serializable {
+        private static final long serialVersionUID = -2307612853472305870L;
+
+        private Val value;
+        private long count;
+        // How much the count may be overestimated by.
+        private long error;
+        private int position;
+
+        Counter(final Val value, final long count, final long error) {
+            this.value = value;
+            this.count = count;
+            this.error = error;
+        }
+    }
+}
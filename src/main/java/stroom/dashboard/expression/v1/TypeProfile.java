@@ -0,0 +1,82 @@
+/*
+ * Copyright 2019 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.dashboard.expression.v1;
+
+/**
+ * Records the types of value that a function has been given across all of the generators it has created so that
+ * generators can switch to a primitive long path once the function has only seen integral values for a warm-up
+ * period. A generator that is then given anything else switches back to the generic path and marks the profile so
+ * that no more generators specialise.
+ * <p>
+ * The counts are not synchronised as an approximate warm-up is good enough. Adaptive specialisation can be turned off
+ * by setting the {@value #PROPERTY} system property to false.
+ */
+final class TypeProfile {
+    static final String PROPERTY = "stroom.expression.adaptive";
+    static final int DEFAULT_WARM_UP = 10000;
+
+    private static final boolean ENABLED = !"false".equalsIgnoreCase(System.getProperty(PROPERTY));
+
+    private final int warmUp;
+    private int observed;
+    private volatile boolean integral;
+    private volatile boolean generic;
+
+    TypeProfile(final int warmUp) {
+        this.warmUp = warmUp;
+    }
+
+    /**
+     * @return A new profile or null if adaptive specialisation is turned off.
+     */
+    static TypeProfile create() {
+        if (!ENABLED) {
+            return null;
+        }
+        return new TypeProfile(DEFAULT_WARM_UP);
+    }
+
+    /**
+     * Record a value. Nulls and errors don't say anything about the type of a value so they are ignored.
+     */
+    void observe(final Val val) {
+        if (integral || generic || !val.type().isValue()) {
+            return;
+        }
+        if (val instanceof ValLong || val instanceof ValInteger) {
+            if (++observed >= warmUp) {
+                integral = true;
+            }
+        } else {
+            generic = true;
+        }
+    }
+
+    /**
+     * @return True if only integral values have been seen for the warm-up period.
+     */
+    boolean isIntegral() {
+        return integral && !generic;
+    }
+
+    /**
+     * Called when a specialised generator is given a value that isn't integral.
+     */
+    void deoptimise() {
+        generic = true;
+    }
+}
@@ -0,0 +1,384 @@
+/*
+ * Copyright 2019 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.dashboard.expression.v1;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+
+/**
+ * Finds the offsets of the components of a URI in a single pass over the value and gives the same answers as
+ * {@link URI}. Values that contain escapes, IPv6 addresses, non ASCII characters or anything else that this class
+ * isn't sure about are handed to {@link URI} instead.
+ * <p>
+ * The last value sliced is remembered for each thread so that several extract*FromUri functions that are given the
+ * same value for a row only parse it once.
+ */
+final class UriSlicer {
+    private static final Logger LOGGER = LoggerFactory.getLogger(UriSlicer.class);
+
+    private static final ThreadLocal<UriSlicer> LAST = ThreadLocal.withInitial(UriSlicer::new);
+
+    private static final boolean[] SCHEME = chars(alphaNum() + "+-.");
+    private static final boolean[] URIC = chars(alphaNum() + "-_.!~*'()" + ";/?:@&=+$,");
+    private static final boolean[] PATH = chars(alphaNum() + "-_.!~*'()" + ":@&=+$," + ";/");
+    private static final boolean[] USER_INFO = chars(alphaNum() + "-_.!~*'()" + ";:&=+$,");
+
+    private String value;
+    private boolean valid;
+    private URI uri;
+
+    private boolean opaque;
+    private int schemeEnd;
+    private int sspStart;
+    private int sspEnd;
+    private int authorityStart;
+    private int authorityEnd;
+    private int userInfoEnd;
+    private int hostStart;
+    private int hostEnd;
+    private int port;
+    private int pathStart;
+    private int pathEnd;
+    private int queryStart;
+    private int queryEnd;
+    private int fragmentStart;
+
+    private UriSlicer() {
+    }
+
+    /**
+     * Slice a value, reusing the previous result on this thread if the value is the same.
+     *
+     * @return A slicer that is only valid until the next call on this thread.
+     */
+    static UriSlicer slice(final String value) {
+        final UriSlicer slicer = LAST.get();
+        if (value == null || value != slicer.value && !value.equals(slicer.value)) {
+            slicer.parse(value);
+        }
+        return slicer;
+    }
+
+    /**
+     * @return False if the value is not a valid URI.
+     */
+    boolean isValid() {
+        return valid;
+    }
+
+    String getScheme() {
+        if (uri != null) {
+            return uri.getScheme();
+        }
+        if (!valid || schemeEnd == -1) {
+            return null;
+        }
+        return value.substring(0, schemeEnd);
+    }
+
+    String getSchemeSpecificPart() {
+        if (uri != null) {
+            return uri.getSchemeSpecificPart();
+        }
+        if (!valid) {
+            return null;
+        }
+        return value.substring(sspStart, sspEnd);
+    }
+
+    String getAuthority() {
+        if (uri != null) {
+            return uri.getAuthority();
+        }
+        if (!valid || authorityStart == -1) {
+            return null;
+        }
+        return value.substring(authorityStart, authorityEnd);
+    }
+
+    String getUserInfo() {
+        if (uri != null) {
+            return uri.getUserInfo();
+        }
+        if (!valid || userInfoEnd == -1) {
+            return null;
+        }
+        return value.substring(authorityStart, userInfoEnd);
+    }
+
+    String getHost() {
+        if (uri != null) {
+            return uri.getHost();
+        }
+        if (!valid || hostStart == -1) {
+            return null;
+        }
+        return value.substring(hostStart, hostEnd);
+    }
+
+    int getPort() {
+        if (uri != null) {
+            return uri.getPort();
+        }
+        return port;
+    }
+
+    String getPath() {
+        if (uri != null) {
+            return uri.getPath();
+        }
+        if (!valid || opaque) {
+            return null;
+        }
+        return value.substring(pathStart, pathEnd);
+    }
+
+    String getQuery() {
+        if (uri != null) {
+            return uri.getQuery();
+        }
+        if (!valid || queryStart == -1) {
+            return null;
+        }
+        return value.substring(queryStart, queryEnd);
+    }
+
+    String getFragment() {
+        if (uri != null) {
+            return uri.getFragment();
+        }
+        if (!valid || fragmentStart == -1) {
+            return null;
+        }
+        return value.substring(fragmentStart);
+    }
+
+    private void parse(final String value) {
+        this.value = value;
+        valid = true;
+        uri = null;
+        opaque = false;
+        schemeEnd = -1;
+        sspStart = 0;
+        sspEnd = 0;
+        authorityStart = -1;
+        authorityEnd = -1;
+        userInfoEnd = -1;
+        hostStart = -1;
+        hostEnd = -1;
+        port = -1;
+        pathStart = 0;
+        pathEnd = 0;
+        queryStart = -1;
+        queryEnd = -1;
+        fragmentStart = -1;
+
+        if (value == null || !slice()) {
+            fallback();
+        }
+    }
+
+    /**
+     * @return False if the value must be parsed by {@link URI}.
+     */
+    private boolean slice() {
+        final int n = value.length();
+
+        int colon = -1;
+        for (int i = 0; i < n && colon == -1; i++) {
+            final char c = value.charAt(i);
+            if (c == '/' || c == '?' || c == '#') {
+                break;
+            } else if (c == ':') {
+                colon = i;
+            }
+        }
+
+        int p = 0;
+        if (colon != -1) {
+            if (colon == 0 || !isAlpha(value.charAt(0)) || !check(SCHEME, 1, colon)) {
+                return false;
+            }
+            schemeEnd = colon;
+            p = colon + 1;
+
+            if (p == n || value.charAt(p) != '/') {
+                // Opaque, e.g. 'mailto:a@example.com'.
+                opaque = true;
+                final int hash = value.indexOf('#', p);
+                sspStart = p;
+                sspEnd = hash == -1 ? n : hash;
+                if (sspEnd == sspStart || !check(URIC, sspStart, sspEnd)) {
+                    return false;
+                }
+                return sliceFragment(hash);
+            }
+        }
+
+        sspStart = p;
+        if (value.startsWith("//", p)) {
+            final int start = p + 2;
+            int end = start;
+            while (end < n && value.charAt(end) != '/' && value.charAt(end) != '?' && value.charAt(end) != '#') {
+                end++;
+            }
+            if (end == start || !sliceServer(start, end)) {
+                return false;
+            }
+            authorityStart = start;
+            authorityEnd = end;
+            p = end;
+        }
+
+        pathStart = p;
+        while (p < n && value.charAt(p) != '?' && value.charAt(p) != '#') {
+            p++;
+        }
+        pathEnd = p;
+        if (!check(PATH, pathStart, pathEnd)) {
+            return false;
+        }
+
+        if (p < n && value.charAt(p) == '?') {
+            queryStart = p + 1;
+            p = queryStart;
+            while (p < n && value.charAt(p) != '#') {
+                p++;
+            }
+            queryEnd = p;
+            if (!check(URIC, queryStart, queryEnd)) {
+                return false;
+            }
+        }
+
+        sspEnd = p;
+        return sliceFragment(p < n ? p : -1);
+    }
+
+    private boolean sliceFragment(final int hash) {
+        if (hash == -1) {
+            return true;
+        }
+        fragmentStart = hash + 1;
+        return check(URIC, fragmentStart, value.length());
+    }
+
+    /**
+     * Slice a server based authority of the form [user-info@]host[:port]. Only host names whose labels are made of
+     * letters, digits and '-' and whose last label starts with a letter are accepted. Anything else, e.g. an IP
+     * address or a registry based authority, is left to {@link URI}.
+     */
+    private boolean sliceServer(final int start, final int end) {
+        int p = start;
+        final int at = value.indexOf('@', start);
+        if (at != -1 && at < end) {
+            if (value.indexOf('@', at + 1) != -1 && value.indexOf('@', at + 1) < end) {
+                return false;
+            }
+            if (!check(USER_INFO, start, at)) {
+                return false;
+            }
+            userInfoEnd = at;
+            p = at + 1;
+        }
+
+        hostStart = p;
+        int labelStart = p;
+        while (p < end && value.charAt(p) != ':') {
+            final char c = value.charAt(p);
+            if (c == '.') {
+                if (!isLabel(labelStart, p)) {
+                    return false;
+                }
+                labelStart = p + 1;
+            } else if (!isAlphaNum(c) && c != '-') {
+                return false;
+            }
+            p++;
+        }
+        if (!isLabel(labelStart, p) || !isAlpha(value.charAt(labelStart))) {
+            return false;
+        }
+        hostEnd = p;
+
+        if (p < end) {
+            // Skip the ':'. An empty port is allowed and means there is no port.
+            p++;
+            if (end - p > 9) {
+                return false;
+            }
+            if (p < end) {
+                int number = 0;
+                for (; p < end; p++) {
+                    final char c = value.charAt(p);
+                    if (c < '0' || c > '9') {
+                        return false;
+                    }
+                    number = number * 10 + (c - '0');
+                }
+                port = number;
+            }
+        }
+        return true;
+    }
+
+    private boolean isLabel(final int start, final int end) {
+        return end > start && isAlphaNum(value.charAt(start)) && isAlphaNum(value.charAt(end - 1));
+    }
+
+    private boolean check(final boolean[] allowed, final int start, final int end) {
+        for (int i = start; i < end; i++) {
+            final char c = value.charAt(i);
+            if (c >= allowed.length || !allowed[c]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void fallback() {
+        try {
+            uri = new URI(value);
+        } catch (final URISyntaxException | RuntimeException e) {
+            LOGGER.debug(e.getMessage(), e);
+            valid = false;
+        }
+    }
+
+    private static boolean isAlpha(final char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isAlphaNum(final char c) {
+        return isAlpha(c) || (c >= '0' && c <= '9');
+    }
+
+    private static String alphaNum() {
+        return "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+    }
+
+    private static boolean[] chars(final String chars) {
+        final boolean[] allowed = new boolean[128];
+        for (int i = 0; i < chars.length(); i++) {
+            allowed[chars.charAt(i)] = true;
+        }
+        return allowed;
+    }
+}
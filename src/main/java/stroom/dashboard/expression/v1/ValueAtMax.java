@@ -0,0 +1,34 @@
+/*
+ * Copyright 2019 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.dashboard.expression.v1;
+
+/**
+ * Selects the value of the first argument from the row of each group with the highest value of the second, e.g.
+ * valueAtMax(${status}, ${EventTime}) for the latest status.
+ */
+class ValueAtMax extends AbstractSelectorFunction {
+    static final String NAME = "valueAtMax";
+
+    public ValueAtMax(final String name) {
+        super(name, 2);
+    }
+
+    @Override
+    Generator createGenerator(final Generator[] childGenerators) {
+        return new OrderedGen(childGenerators, true);
+    }
+}
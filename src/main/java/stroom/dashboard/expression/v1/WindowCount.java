@@ -0,0 +1,28 @@
+/*
+ * Copyright 2019 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.dashboard.expression.v1;
+
+/**
+ * The number of rows in a sliding time window, e.g. windowCount(${EventTime}, 900000).
+ */
+class WindowCount extends AbstractWindowFunction {
+    static final String NAME = "windowCount";
+
+    public WindowCount(final String name) {
+        super(name, Statistic.COUNT);
+    }
+}
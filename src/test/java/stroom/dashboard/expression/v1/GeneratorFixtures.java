@@ -0,0 +1,52 @@
+/*
+ * Copyright 2019 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.dashboard.expression.v1;
+
+import java.text.ParseException;
+
+/**
+ * Builds the field maps and generators that the table, aggregate and roll up tests compare against.
+ */
+final class GeneratorFixtures {
+    private GeneratorFixtures() {
+        // Utility class.
+    }
+
+    static FieldIndexMap createFieldIndexMap(final String... fieldNames) {
+        final FieldIndexMap fieldIndexMap = new FieldIndexMap();
+        for (final String fieldName : fieldNames) {
+            fieldIndexMap.create(fieldName, true);
+        }
+        return fieldIndexMap;
+    }
+
+    /**
+     * Parse each expression on its own and create a generator for it, leaving null columns null.
+     */
+    static Generator[] createGenerators(final ExpressionParser parser,
+                                        final FieldIndexMap fieldIndexMap,
+                                        final String[] expressions) throws ParseException {
+        final Generator[] generators = new Generator[expressions.length];
+        for (int i = 0; i < expressions.length; i++) {
+            final Expression expression = parser.parse(fieldIndexMap, expressions[i]);
+            if (expression != null) {
+                generators[i] = expression.createGenerator();
+            }
+        }
+        return generators;
+    }
+}
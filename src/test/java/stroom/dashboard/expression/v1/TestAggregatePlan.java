@@ -0,0 +1,159 @@
+/*
+ * Copyright 2019 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.dashboard.expression.v1;
+
+import org.assertj.core.data.Offset;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.text.ParseException;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static stroom.dashboard.expression.v1.GeneratorFixtures.createFieldIndexMap;
+import static stroom.dashboard.expression.v1.GeneratorFixtures.createGenerators;
+
+class TestAggregatePlan {
+    private static final String[] COLUMNS = {
+            "${a}",
+            "sum(${b})/count()",
+            "average(${b})*100",
+            "concat(${a}, ':', max(${b}))",
+            "min(${b})",
+            "sum(${b})",
+            "stDev(${b})",
+            "variance(${b}+1)",
+            "count()",
+            "sum(${c})+1",
+            null
+    };
+
+    private final ExpressionParser parser = new ExpressionParser(new FunctionFactory(), new ParamFactory());
+
+    @Test
+    void testMatchesGenerators() throws ParseException, IOException, ClassNotFoundException {
+        final FieldIndexMap fieldIndexMap = createFieldIndexMap("a", "b", "c");
+        final AggregatePlan plan = parser.parsePlan(fieldIndexMap, COLUMNS);
+        // sum(${b}), count(), average(${b}), max(${b}), min(${b}), stDev(${b}), variance(${b}+1) and sum(${c}).
+        assertThat(plan.getAggregateCount()).isEqualTo(8);
+
+        final Generator[] generators = createGenerators(parser, fieldIndexMap, COLUMNS);
+        final AggregatePlan.Partial[] partials = new AggregatePlan.Partial[3];
+        for (int i = 0; i < partials.length; i++) {
+            partials[i] = plan.createPartial();
+        }
+
+        final Random random = new Random(19);
+        for (int i = 0; i < 300; i++) {
+            final Val b;
+            if (i % 40 == 7) {
+                b = ValNull.INSTANCE;
+            } else {
+                b = ValLong.create(random.nextInt(1000));
+            }
+            final Val[] values = {ValString.create("host" + (i % 3)), b, ValLong.create(i)};
+            plan.add(partials[i % partials.length], values);
+            for (final Generator generator : generators) {
+                if (generator != null) {
+                    generator.set(values);
+                }
+            }
+        }
+
+        // Partials are sent between nodes as plain values.
+        for (int i = 1; i < partials.length; i++) {
+            plan.merge(partials[0], roundTrip(partials[i]));
+        }
+
+        final Val[] result = plan.eval(partials[0]);
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (generators[i] == null) {
+                assertThat(result[i]).isNull();
+                continue;
+            }
+            final Val expected = generators[i].eval();
+            if (COLUMNS[i].startsWith("stDev") || COLUMNS[i].startsWith("variance")) {
+                assertThat(result[i].toDouble()).isEqualTo(expected.toDouble(), Offset.offset(1E-6));
+            } else if (i == 0 || i == 3) {
+                // Field references take the latest row of the partial that was merged into rather than of all rows.
+                assertThat(result[i].toString()).isEqualTo(expected.toString().replace("host2", "host0"));
+            } else {
+                assertThat(result[i]).as(COLUMNS[i]).isEqualTo(expected);
+            }
+        }
+    }
+
+    @Test
+    void testTypedFields() throws ParseException {
+        final FieldIndexMap fieldIndexMap = new FieldIndexMap();
+        fieldIndexMap.create("a", FieldType.LONG);
+        final String[] columns = {"sum(${a})", "sum(${a})+1", "max(${a})*2", "average(${a})"};
+        final AggregatePlan plan = parser.parsePlan(fieldIndexMap, columns);
+        final AggregatePlan.Partial partial = plan.createPartial();
+        final Generator[] generators = new Generator[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            generators[i] = parser.parse(fieldIndexMap, columns[i]).createGenerator();
+        }
+
+        for (final long value : new long[]{Long.MAX_VALUE - 10, 5, -3}) {
+            final Val[] values = {ValLong.create(value)};
+            plan.add(partial, values);
+            for (final Generator generator : generators) {
+                generator.set(values);
+            }
+        }
+
+        final Val[] result = plan.eval(partial);
+        // The sum is exact and the results have the same types as the columns evaluated directly.
+        assertThat(result[0]).isEqualTo(ValLong.create(Long.MAX_VALUE - 8));
+        for (int i = 0; i < columns.length; i++) {
+            assertThat(result[i]).as(columns[i]).isEqualTo(generators[i].eval());
+        }
+    }
+
+    @Test
+    void testEmptyPartial() throws ParseException {
+        final AggregatePlan plan = parser.parsePlan(createFieldIndexMap("a", "b", "c"),
+                new String[]{"sum(${b})", "count()"});
+        final Val[] result = plan.eval(plan.createPartial());
+        assertThat(result[0]).isEqualTo(ValNull.INSTANCE);
+        assertThat(result[1]).isEqualTo(ValLong.create(0));
+    }
+
+    @Test
+    void testUnsplittableAggregate() {
+        assertThatThrownBy(() -> parser.parsePlan(createFieldIndexMap("a", "b", "c"),
+                new String[]{"countUnique(${a})"}))
+                .isInstanceOf(ParseException.class);
+    }
+
+    private AggregatePlan.Partial roundTrip(final AggregatePlan.Partial partial)
+            throws IOException, ClassNotFoundException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (final ObjectOutputStream out = new ObjectOutputStream(baos)) {
+            out.writeObject(partial);
+        }
+        try (final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray()))) {
+            return (AggregatePlan.Partial) in.readObject();
+        }
+    }
+}
@@ -33,6 +33,7 @@ import java.util.Map;
 import java.util.Set;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 class TestExpressionParser {
     private final ExpressionParser parser = new ExpressionParser(new FunctionFactory(), new ParamFactory());
@@ -293,6 +294,24 @@ class TestExpressionParser {
         assertThat(out.toDouble()).isEqualTo(4D, Offset.offset(0D));
     }
 
+    @Test
+    void testAverageMemoised() throws ParseException {
+        final Generator gen = createGenerator("average(${val})");
+        final Generator other = createGenerator("average(${val})");
+
+        gen.set(getVal(3D));
+        gen.set(getVal(4D));
+        final Val out = gen.eval();
+        assertThat(gen.eval() == out).isTrue();
+
+        gen.set(getVal(8D));
+        assertThat(gen.eval().toDouble()).isEqualTo(5D, Offset.offset(0D));
+
+        other.set(getVal(1D));
+        gen.merge(other);
+        assertThat(gen.eval().toDouble()).isEqualTo(4D, Offset.offset(0D));
+    }
+
     @Test
     void testMatch1() throws ParseException {
         final Generator gen = createGenerator("match('this', 'this')");
@@ -814,6 +833,20 @@ class TestExpressionParser {
         assertThat(out.toString()).isEqualTo("hello");
     }
 
+    @Test
+    void testDecode3() throws ParseException {
+        final Generator gen = createGenerator("decode(${val}, 'h.*', 'first', '.*o', 'second', 'hullo', 'third', 'goodbye')");
+
+        gen.set(getVal("hullo"));
+        assertThat(gen.eval().toString()).isEqualTo("first");
+
+        gen.set(getVal("jello"));
+        assertThat(gen.eval().toString()).isEqualTo("second");
+
+        gen.set(getVal("other"));
+        assertThat(gen.eval().toString()).isEqualTo("goodbye");
+    }
+
     @Test
     void testInclude1() throws ParseException {
         final Generator gen = createGenerator("include(${val}, 'this', 'that')");
@@ -1453,6 +1486,52 @@ class TestExpressionParser {
         assertThat(out.toString()).isEqualTo("af2910d4d8acf3fcf9683d3ca4425327cb1b4b48bc690f566e27b0e0144c17af82066cf6af14d3a30312ed9df671e0e24b1c66ed3973d1a7836899d75c4d6bb8");
     }
 
+    @Test
+    void testHash4() throws ParseException {
+        final Generator gen = createGenerator("hash(${val})");
+
+        // Leading zeros are dropped.
+        gen.set(getVal("39"));
+        assertThat(gen.eval().toString()).isEqualTo("b918943df0962bc7a1824c0555a389347b4febdc7cf9d1254406d80ce44e3f9");
+
+        gen.set(getVal("test"));
+        assertThat(gen.eval().toString()).isEqualTo("9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08");
+    }
+
+    @Test
+    void testHashMurmur3() throws ParseException {
+        final Generator gen = createGenerator("hash(${val}, 'murmur3')");
+
+        gen.set(getVal("hello"));
+        assertThat(gen.eval().toString()).isEqualTo("248bfa47");
+
+        gen.set(getVal("The quick brown fox jumps over the lazy dog"));
+        assertThat(gen.eval().toString()).isEqualTo("2e4ff723");
+
+        // Leading zeros are kept so that every hash has the same width.
+        gen.set(getVal("v11"));
+        assertThat(gen.eval().toString()).isEqualTo("0151f5a6");
+    }
+
+    @Test
+    void testHashXxHash64() throws ParseException {
+        final Generator gen = createGenerator("hash(${val}, 'xxhash64')");
+
+        gen.set(getVal("abc"));
+        assertThat(gen.eval().toString()).isEqualTo("44bc2cf5ad770999");
+
+        gen.set(getVal("Nobody inspects the spammish repetition"));
+        assertThat(gen.eval().toString()).isEqualTo("fbcea83c8a378bf1");
+
+        gen.set(getVal("v26"));
+        assertThat(gen.eval().toString()).isEqualTo("034240c2036c42f6");
+
+        // The salt is hashed before the value.
+        final Generator salted = createGenerator("hash(${val}, 'xxhash64', 'ab')");
+        salted.set(getVal("c"));
+        assertThat(salted.eval().toString()).isEqualTo("44bc2cf5ad770999");
+    }
+
     @Test
     void testCount() throws ParseException {
         final Generator gen = createGenerator("count()");
@@ -1487,6 +1566,41 @@ class TestExpressionParser {
         assertThat(out.toDouble()).isEqualTo(3D, Offset.offset(0D));
     }
 
+    @Test
+    void testCountUniqueMixedTypes() throws ParseException {
+        final Generator gen1 = createGenerator("countUnique(${val})");
+        final Generator gen2 = createGenerator("countUnique(${val})");
+
+        // Values of different types are never equal so each of these is unique.
+        gen1.set(new Val[]{ValInteger.create(1)});
+        gen1.set(new Val[]{ValLong.create(1)});
+        gen1.set(new Val[]{ValDouble.create(1)});
+        gen1.set(new Val[]{ValString.create("1")});
+        gen1.set(new Val[]{ValDouble.create(0D)});
+        gen1.set(new Val[]{ValDouble.create(-0D)});
+        gen1.set(new Val[]{ValDouble.create(1.5D)});
+        gen1.set(new Val[]{ValLong.create(Long.MIN_VALUE)});
+        gen1.set(new Val[]{ValDouble.create(1E300)});
+        gen1.set(new Val[]{ValLong.create(1)});
+        gen1.set(new Val[]{ValDouble.create(1)});
+        assertThat(gen1.eval().toInteger()).isEqualTo(9);
+
+        for (int i = 0; i < 10000; i++) {
+            gen2.set(new Val[]{ValLong.create(i * 3L)});
+        }
+        gen2.set(new Val[]{ValString.create("1")});
+        gen2.set(new Val[]{ValDouble.create(1.5D)});
+        gen2.set(new Val[]{ValDouble.create(2D)});
+        assertThat(gen2.eval().toInteger()).isEqualTo(10003);
+
+        gen1.merge(gen2);
+        // Only the longs and 2.0 are new as "1" and 1.5 are already in the first set.
+        assertThat(gen1.eval().toInteger()).isEqualTo(9 + 10000 + 1);
+
+        gen1.reset();
+        assertThat(gen1.eval().toInteger()).isEqualTo(0);
+    }
+
     @Test
     void testCountUniqueStaticValue() throws ParseException {
         final Generator gen = createGenerator("countUnique('test')");
@@ -1504,6 +1618,625 @@ class TestExpressionParser {
         assertThat(out.toDouble()).isEqualTo(1D, Offset.offset(0D));
     }
 
+    @Test
+    void testTopValues() throws ParseException {
+        final Generator gen = createGenerator("topValues(${val}, 2)");
+        assertThat(gen.eval()).isEqualTo(ValNull.INSTANCE);
+
+        for (final String value : new String[]{"b", "a", "c", "a", "b", "a", "d"}) {
+            gen.set(getVal(value));
+        }
+        assertThat(gen.eval().toString()).isEqualTo("a (3), b (2)");
+
+        gen.reset();
+        gen.set(getVal("x"));
+        assertThat(gen.eval().toString()).isEqualTo("x (1)");
+    }
+
+    @Test
+    void testTopValuesHeavyHitters() throws ParseException {
+        final Generator gen1 = createGenerator("topValues(${val}, 3)");
+        final Generator gen2 = createGenerator("topValues(${val}, 3)");
+
+        // Far more distinct values than counters, with three values that are much more frequent than the rest.
+        final java.util.Random random = new java.util.Random(11);
+        for (int i = 0; i < 20000; i++) {
+            final Generator gen = i % 2 == 0 ? gen1 : gen2;
+            final int r = random.nextInt(10);
+            if (r < 3) {
+                gen.set(getVal("heavy" + r));
+            } else {
+                gen.set(getVal("noise" + random.nextInt(5000)));
+            }
+        }
+        gen1.merge(gen2);
+
+        final String[] top = gen1.eval().toString().split(", ");
+        assertThat(top.length).isEqualTo(3);
+        final Set<String> values = new HashSet<>();
+        for (final String value : top) {
+            values.add(value.substring(0, value.indexOf(' ')));
+            // Estimated counts show the range that the true count, about 2000, lies in.
+            final String[] range = value.substring(value.indexOf('(') + 1, value.length() - 1).split("\\.\\.");
+            assertThat(Long.parseLong(range[0])).isLessThanOrEqualTo(2200L);
+            assertThat(Long.parseLong(range[range.length - 1])).isGreaterThanOrEqualTo(1800L);
+        }
+        assertThat(values).containsExactlyInAnyOrder("heavy0", "heavy1", "heavy2");
+    }
+
+    @Test
+    void testTopValuesLimit() {
+        assertThatThrownBy(() -> createExpression("topValues(${val}, 0)")).isInstanceOf(ParseException.class);
+        assertThatThrownBy(() -> createExpression("topValues(${val}, ${val})")).isInstanceOf(ParseException.class);
+    }
+
+    @Test
+    void testSample() throws ParseException {
+        final Generator gen = createGenerator("sample(${val}, 3)");
+        assertThat(gen.eval()).isEqualTo(ValNull.INSTANCE);
+
+        // All values are kept until the sample is full.
+        gen.set(getVal("c"));
+        gen.set(getVal("a"));
+        gen.set(new Val[]{ValNull.INSTANCE});
+        assertThat(gen.eval().toString()).isEqualTo("a, c");
+
+        for (int i = 0; i < 100; i++) {
+            gen.set(getVal("x" + i));
+        }
+        assertThat(gen.eval().toString().split(", ").length).isEqualTo(3);
+
+        gen.reset();
+        gen.set(getVal("z"));
+        assertThat(gen.eval().toString()).isEqualTo("z");
+    }
+
+    @Test
+    void testSampleSeed() throws ParseException {
+        final Expression expression = createExpression("sample(${val}, 3)");
+        final String[] samples = new String[2];
+        for (int run = 0; run < samples.length; run++) {
+            Sample.setSeed(42);
+            final Generator gen = expression.createGenerator();
+            for (int i = 0; i < 100; i++) {
+                gen.set(getVal("x" + i));
+            }
+            samples[run] = gen.eval().toString();
+        }
+        assertThat(samples[1]).isEqualTo(samples[0]);
+    }
+
+    @Test
+    void testSampleMergeIsUniform() throws ParseException {
+        final Expression expression = createExpression("sample(${val}, 1)");
+        final int[] counts = new int[10];
+        final int trials = 20000;
+        for (int trial = 0; trial < trials; trial++) {
+            // One shard sees 2 values and the other sees 8 so each shard must be weighted by what it has seen.
+            final Generator gen1 = expression.createGenerator();
+            final Generator gen2 = expression.createGenerator();
+            for (int i = 0; i < 10; i++) {
+                (i < 2 ? gen1 : gen2).set(getVal(i));
+            }
+            gen1.merge(gen2);
+            counts[gen1.eval().toInteger()]++;
+        }
+        for (final int count : counts) {
+            assertThat(count / (double) trials).isEqualTo(0.1D, Offset.offset(0.015D));
+        }
+    }
+
+    @Test
+    void testFirstAndLast() throws ParseException {
+        final Generator first1 = createGenerator("first(${val})");
+        final Generator first2 = createGenerator("first(${val})");
+        final Generator last1 = createGenerator("last(${val})");
+        final Generator last2 = createGenerator("last(${val})");
+        assertThat(first1.eval()).isEqualTo(ValNull.INSTANCE);
+
+        for (final String value : new String[]{"a", "b", "c"}) {
+            first1.set(getVal(value));
+            last1.set(getVal(value));
+        }
+        for (final String value : new String[]{"d", "e"}) {
+            first2.set(getVal(value));
+            last2.set(getVal(value));
+        }
+        assertThat(first1.eval()).isEqualTo(ValString.create("a"));
+        assertThat(last1.eval()).isEqualTo(ValString.create("c"));
+
+        first1.merge(first2);
+        last1.merge(last2);
+        assertThat(first1.eval()).isEqualTo(ValString.create("a"));
+        assertThat(last1.eval()).isEqualTo(ValString.create("e"));
+
+        first1.reset();
+        first2.merge(first1);
+        assertThat(first2.eval()).isEqualTo(ValString.create("d"));
+    }
+
+    @Test
+    void testValueAtMaxAndMin() throws ParseException {
+        final Generator max1 = createGenerator2("valueAtMax(${val1}, ${val2})");
+        final Generator max2 = createGenerator2("valueAtMax(${val1}, ${val2})");
+        final Generator min1 = createGenerator2("valueAtMin(${val1}, ${val2})");
+        final Generator min2 = createGenerator2("valueAtMin(${val1}, ${val2})");
+        assertThat(max1.eval()).isEqualTo(ValNull.INSTANCE);
+
+        final Val[][] rows1 = {
+                {ValString.create("up"), ValString.create("2019-01-01T00:00:00.000Z")},
+                {ValString.create("down"), ValString.create("2019-01-03T00:00:00.000Z")},
+                {ValString.create("ignored"), ValNull.INSTANCE},
+                {ValString.create("up"), ValString.create("2019-01-02T00:00:00.000Z")}};
+        final Val[][] rows2 = {
+                {ValString.create("starting"), ValString.create("2018-12-31T00:00:00.000Z")},
+                {ValString.create("restarting"), ValString.create("2019-01-03T00:00:00.000Z")}};
+        for (final Val[] row : rows1) {
+            max1.set(row);
+            min1.set(row);
+        }
+        for (final Val[] row : rows2) {
+            max2.set(row);
+            min2.set(row);
+        }
+        assertThat(max1.eval()).isEqualTo(ValString.create("down"));
+        assertThat(min1.eval()).isEqualTo(ValString.create("up"));
+
+        // The latest rows tie so the value that sorts first wins whichever way round the shards are merged.
+        max1.merge(max2);
+        min1.merge(min2);
+        assertThat(max1.eval()).isEqualTo(ValString.create("down"));
+        assertThat(min1.eval()).isEqualTo(ValString.create("starting"));
+
+        final Generator max3 = createGenerator2("valueAtMax(${val1}, ${val2})");
+        for (final Val[] row : rows2) {
+            max3.set(row);
+        }
+        final Generator max4 = createGenerator2("valueAtMax(${val1}, ${val2})");
+        for (final Val[] row : rows1) {
+            max4.set(row);
+        }
+        max3.merge(max4);
+        assertThat(max3.eval()).isEqualTo(ValString.create("down"));
+    }
+
+    @Test
+    void testHistogram() throws ParseException {
+        final Generator gen1 = createGenerator("histogram(${val}, 0, 100, 4)");
+        final Generator gen2 = createGenerator("histogram(${val}, 0, 100, 4)");
+        assertThat(gen1.eval().toString()).isEqualTo("0,0,0,0");
+
+        for (final double d : new double[]{0, 10, 24.9, 25, 99.99}) {
+            gen1.set(getVal(d));
+        }
+        gen1.set(getVal("not a number"));
+        assertThat(gen1.eval().toString()).isEqualTo("3,1,0,1");
+
+        gen2.set(getVal(-1));
+        gen2.set(getVal(60));
+        gen2.set(getVal(100));
+        gen2.set(getVal(1000));
+        gen1.merge(gen2);
+        assertThat(gen1.eval().toString()).isEqualTo("3,1,1,1 (1 below, 2 above)");
+
+        gen1.reset();
+        assertThat(gen1.eval().toString()).isEqualTo("0,0,0,0");
+    }
+
+    @Test
+    void testLogHistogram() throws ParseException {
+        final Generator gen = createGenerator("logHistogram(${val}, 1, 10000, 4)");
+        for (final double d : new double[]{0.5, 1, 5, 50, 99, 500, 5000, 9999, 10000}) {
+            gen.set(getVal(d));
+        }
+        assertThat(gen.eval().toString()).isEqualTo("2,2,1,2 (1 below, 1 above)");
+
+        assertThatThrownBy(() -> createExpression("logHistogram(${val}, 0, 10000, 4)"))
+                .isInstanceOf(ParseException.class);
+        assertThatThrownBy(() -> createExpression("histogram(${val}, 10, 10, 4)"))
+                .isInstanceOf(ParseException.class);
+        assertThatThrownBy(() -> createExpression("histogram(${val}, 0, 10, 0)"))
+                .isInstanceOf(ParseException.class);
+    }
+
+    @Test
+    void testWindowAggregates() throws ParseException {
+        final String[] expressions = {
+                "windowSum(${val1}, ${val2}, 60000)",
+                "windowCount(${val2}, 60000)",
+                "windowMin(${val1}, ${val2}, 60000)",
+                "windowMax(${val1}, ${val2}, 60000)",
+                "windowAverage(${val1}, ${val2}, 60000)"
+        };
+        final Generator[] gens = new Generator[expressions.length];
+        for (int i = 0; i < expressions.length; i++) {
+            gens[i] = createGenerator2(expressions[i]);
+        }
+        assertThat(gens[0].eval()).isEqualTo(ValNull.INSTANCE);
+        assertThat(gens[1].eval()).isEqualTo(ValLong.create(0));
+
+        // One value every 10 seconds so the last 6 are in the window.
+        for (int i = 1; i <= 10; i++) {
+            for (final Generator gen : gens) {
+                gen.set(new Val[]{ValDouble.create(i), ValLong.create(i * 10000L)});
+            }
+        }
+        assertThat(gens[0].eval()).isEqualTo(ValDouble.create(5 + 6 + 7 + 8 + 9 + 10));
+        assertThat(gens[1].eval()).isEqualTo(ValLong.create(6));
+        assertThat(gens[2].eval()).isEqualTo(ValDouble.create(5));
+        assertThat(gens[3].eval()).isEqualTo(ValDouble.create(10));
+        assertThat(gens[4].eval()).isEqualTo(ValDouble.create(7.5));
+
+        // A null time is ignored and a much later time empties the window of everything else.
+        for (final Generator gen : gens) {
+            gen.set(new Val[]{ValDouble.create(100), ValNull.INSTANCE});
+            gen.set(new Val[]{ValDouble.create(1), ValString.create("1970-01-01T01:00:00.000Z")});
+        }
+        assertThat(gens[0].eval()).isEqualTo(ValDouble.create(1));
+        assertThat(gens[1].eval()).isEqualTo(ValLong.create(1));
+
+        assertThatThrownBy(() -> createExpression2("windowSum(${val1}, ${val2}, 0)"))
+                .isInstanceOf(ParseException.class);
+    }
+
+    @Test
+    void testEwma() throws ParseException {
+        final Generator gen = createGenerator2("ewma(${val1}, ${val2}, 1000)");
+        assertThat(gen.eval()).isEqualTo(ValNull.INSTANCE);
+
+        gen.set(new Val[]{ValDouble.create(10), ValLong.create(5000)});
+        gen.set(new Val[]{ValDouble.create(20), ValLong.create(5000)});
+        assertThat(gen.eval().toDouble()).isEqualTo(15D, Offset.offset(1E-9));
+
+        // A value one half life later has twice the weight of the earlier ones.
+        gen.set(new Val[]{ValDouble.create(30), ValLong.create(6000)});
+        assertThat(gen.eval().toDouble()).isEqualTo((5D + 10D + 30D) / 2D, Offset.offset(1E-9));
+
+        gen.reset();
+        assertThat(gen.eval()).isEqualTo(ValNull.INSTANCE);
+    }
+
+    @Test
+    void testEwmaMergeOrder() throws ParseException {
+        final Generator[] gens = new Generator[4];
+        for (int i = 0; i < gens.length; i++) {
+            gens[i] = createGenerator2("ewma(${val1}, ${val2}, 60000)");
+        }
+        final java.util.Random random = new java.util.Random(13);
+        for (int i = 0; i < 1000; i++) {
+            final Val[] values = {ValDouble.create(random.nextInt(100)), ValLong.create(random.nextInt(600000))};
+            // The first pair sees the rows in two partials merged one way and the second pair the other way.
+            gens[i % 2].set(values);
+            gens[2 + (i + 1) % 2].set(values);
+        }
+        gens[0].merge(gens[1]);
+        gens[3].merge(gens[2]);
+        assertThat(gens[0].eval().toDouble()).isEqualTo(gens[3].eval().toDouble(), Offset.offset(1E-9));
+    }
+
+    @Test
+    void testDecayedRate() throws ParseException {
+        final Generator gen1 = createGenerator("decayedRate(${val}, 10000)");
+        final Generator gen2 = createGenerator("decayedRate(${val}, 10000)");
+        assertThat(gen1.eval()).isEqualTo(ValDouble.create(0));
+
+        // Ten rows a second for ten minutes split between two shards.
+        for (int i = 0; i < 6000; i++) {
+            (i % 2 == 0 ? gen1 : gen2).set(getVal(i * 100));
+        }
+        gen1.merge(gen2);
+        assertThat(gen1.eval().toDouble()).isEqualTo(10D, Offset.offset(0.1D));
+    }
+
+    @Test
+    void testJoining() throws ParseException {
+        final Generator gen1 = createGenerator("joining(${val}, '|', 3)");
+        final Generator gen2 = createGenerator("joining(${val}, '|', 3)");
+        assertThat(gen1.eval()).isEqualTo(ValNull.INSTANCE);
+
+        for (final String value : new String[]{"b", "a", "b", "c", "a"}) {
+            gen1.set(getVal(value));
+        }
+        gen1.set(new Val[]{ValNull.INSTANCE});
+        assertThat(gen1.eval().toString()).isEqualTo("b|a|c");
+
+        gen1.set(getVal("d"));
+        gen1.set(getVal("a"));
+        assertThat(gen1.eval().toString()).isEqualTo("b|a|c (+1 more rows)");
+
+        gen2.set(getVal("c"));
+        gen2.set(getVal("e"));
+        gen2.set(getVal("f"));
+        gen2.set(getVal("g"));
+        gen1.merge(gen2);
+        // d from this shard and e, f and g from the other don't fit.
+        assertThat(gen1.eval().toString()).isEqualTo("b|a|c (+4 more rows)");
+
+        gen1.reset();
+        assertThat(gen1.eval()).isEqualTo(ValNull.INSTANCE);
+    }
+
+    @Test
+    void testDistinctValues() throws ParseException {
+        final Generator gen = createGenerator("distinctValues(${val})");
+        for (int i = 0; i < 20; i++) {
+            gen.set(getVal("v" + (i % 12)));
+        }
+        assertThat(gen.eval().toString()).isEqualTo("v0, v1, v2, v3, v4, v5, v6, v7, v8, v9 (+2 more rows)");
+    }
+
+    @Test
+    void testJoiningRepeatedOverflow() throws ParseException {
+        final Generator gen = createGenerator("joining(${val}, ', ', 2)");
+        gen.set(getVal("a"));
+        gen.set(getVal("b"));
+        for (int i = 0; i < 1000; i++) {
+            gen.set(getVal("c"));
+            gen.set(getVal("a"));
+        }
+        // Every row of c is counted but rows of values that were kept are not.
+        assertThat(gen.eval().toString()).isEqualTo("a, b (+1000 more rows)");
+    }
+
+    @Test
+    void testJoiningMergeCountsDroppedRows() throws ParseException {
+        final Generator gen1 = createGenerator("joining(${val}, ',', 2)");
+        final Generator gen2 = createGenerator("joining(${val}, ',', 2)");
+        gen1.set(getVal("a"));
+        gen1.set(getVal("b"));
+        for (final String value : new String[]{"d", "d", "d", "d", "e", "a"}) {
+            gen2.set(getVal(value));
+        }
+        assertThat(gen2.eval().toString()).isEqualTo("d,e (+1 more rows)");
+
+        // Every row of d and e is dropped by the merge and the row of a counted by the other shard stays counted.
+        gen1.merge(gen2);
+        assertThat(gen1.eval().toString()).isEqualTo("a,b (+6 more rows)");
+    }
+
+    @Test
+    void testReset() throws ParseException {
+        final String[] expressions = {
+                "count()",
+                "countUnique(${val})",
+                "sum(${val})",
+                "average(${val})",
+                "stDev(${val})",
+                "variance(${val})",
+                "max(${val})+min(${val})"
+        };
+        for (final String expression : expressions) {
+            final Generator gen = createGenerator(expression);
+            gen.set(getVal(3D));
+            gen.set(getVal(5D));
+            final String first = String.valueOf(gen.eval());
+
+            gen.reset();
+            gen.set(getVal(7D));
+            final Generator fresh = createGenerator(expression);
+            fresh.set(getVal(7D));
+            assertThat(String.valueOf(gen.eval())).as(expression).isEqualTo(String.valueOf(fresh.eval()));
+            assertThat(String.valueOf(gen.eval())).as(expression).isNotEqualTo(first);
+        }
+
+        final Generator gen = createGenerator("countGroups()");
+        gen.addChildKey(null);
+        gen.addChildKey(new Key() {
+        });
+        assertThat(gen.eval().toInteger()).isEqualTo(2);
+        gen.reset();
+        assertThat(gen.eval()).isEqualTo(ValNull.INSTANCE);
+    }
+
+    @Test
+    void testGeneratorPool() throws ParseException {
+        final Expression exp = createExpression("sum(${val})");
+
+        final Generator gen = exp.borrowGenerator();
+        gen.set(getVal(3D));
+        assertThat(gen.eval().toDouble()).isEqualTo(3D, Offset.offset(0D));
+        exp.releaseGenerator(gen);
+
+        final Generator reused = exp.borrowGenerator();
+        assertThat(reused == gen).isTrue();
+        reused.set(getVal(4D));
+        assertThat(reused.eval().toDouble()).isEqualTo(4D, Offset.offset(0D));
+
+        final Generator other = exp.borrowGenerator();
+        assertThat(other == gen).isFalse();
+    }
+
+    @Test
+    void testGeneratorPoolDropsGeneratorsThatCantBeReset() {
+        final GeneratorPool pool = new GeneratorPool(FixedGenerator::new, 10);
+        final Generator gen = pool.borrow();
+        assertThatThrownBy(gen::reset).isInstanceOf(UnsupportedOperationException.class);
+
+        pool.release(gen);
+        assertThat(pool.size()).isEqualTo(0);
+        assertThat(pool.borrow() == gen).isFalse();
+    }
+
+    /**
+     * A generator from outside of this library that doesn't implement reset().
+     */
+    private static class FixedGenerator implements Generator {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public void addChildKey(final Key key) {
+        }
+
+        @Override
+        public void set(final Val[] values) {
+        }
+
+        @Override
+        public Val eval() {
+            return ValLong.create(1);
+        }
+
+        @Override
+        public void merge(final Generator generator) {
+        }
+
+        @Override
+        public int compareTo(final Generator o) {
+            return 0;
+        }
+    }
+
+    @Test
+    void testSumLong() throws ParseException {
+        final Generator gen = createGenerator("sum(toLong(${val}))");
+
+        final long big = 1L << 53;
+        gen.set(new Val[]{ValLong.create(big)});
+        gen.set(new Val[]{ValLong.create(1)});
+        gen.set(new Val[]{ValLong.create(1)});
+        gen.set(new Val[]{ValNull.INSTANCE});
+
+        assertThat(gen.eval()).isEqualTo(ValLong.create(big + 2));
+    }
+
+    @Test
+    void testAddLong() throws ParseException {
+        final Generator gen = createGenerator("toLong(${val})+count()");
+
+        gen.set(new Val[]{ValLong.create(Long.MAX_VALUE - 1)});
+        assertThat(gen.eval()).isEqualTo(ValLong.create(Long.MAX_VALUE));
+
+        // Overflow widens to double.
+        gen.set(new Val[]{ValLong.create(Long.MAX_VALUE - 1)});
+        assertThat(gen.eval()).isInstanceOf(ValDouble.class);
+        assertThat(gen.eval().toDouble()).isEqualTo((double) Long.MAX_VALUE + 1, Offset.offset(0D));
+    }
+
+    @Test
+    void testInferredType() throws ParseException {
+        assertThat(InferredType.of(createExpression("toLong(${val})*toInteger(${val})-count()")))
+                .isEqualTo(InferredType.LONG);
+        assertThat(InferredType.of(createExpression("max(stringLength(${val}))"))).isEqualTo(InferredType.LONG);
+        assertThat(InferredType.of(createExpression("toLong(${val})+1"))).isEqualTo(InferredType.UNKNOWN);
+        assertThat(InferredType.of(createExpression("toLong(${val})/count()"))).isEqualTo(InferredType.UNKNOWN);
+        assertThat(InferredType.of(createExpression("sum(${val})"))).isEqualTo(InferredType.UNKNOWN);
+        assertThat(InferredType.of(createExpression("toString(${val})"))).isEqualTo(InferredType.STRING);
+
+        // Unknown types keep the double arithmetic.
+        final Generator gen = createGenerator("sum(${val})");
+        gen.set(new Val[]{ValLong.create(1)});
+        gen.set(new Val[]{ValLong.create(2)});
+        assertThat(gen.eval()).isEqualTo(ValDouble.create(3));
+    }
+
+    @Test
+    void testTypedFields() throws ParseException {
+        final FieldIndexMap fieldIndexMap = new FieldIndexMap();
+        fieldIndexMap.create("bytes", FieldType.LONG);
+        fieldIndexMap.create("time", FieldType.TIMESTAMP);
+        fieldIndexMap.create("name", FieldType.STRING);
+        assertThat(fieldIndexMap.getType("bytes")).isEqualTo(FieldType.LONG);
+
+        final Expression sum = parser.parse(fieldIndexMap, "sum(${bytes})");
+        assertThat(InferredType.of(sum)).isEqualTo(InferredType.LONG);
+        final Generator gen = sum.createGenerator();
+        gen.set(new Val[]{ValString.create("9007199254740992"), null, null});
+        gen.set(new Val[]{ValString.create("1"), null, null});
+        gen.set(new Val[]{ValInteger.create(1), null, null});
+        assertThat(gen.eval()).isEqualTo(ValLong.create(9007199254740994L));
+
+        // Numbers with a fractional part aren't truncated whether they are strings or doubles.
+        final Generator bytes = parser.parse(fieldIndexMap, "${bytes}").createGenerator();
+        bytes.set(new Val[]{ValDouble.create(12.7), null, null});
+        assertThat(bytes.eval()).isInstanceOf(ValErr.class);
+        bytes.set(new Val[]{ValString.create("12.7"), null, null});
+        assertThat(bytes.eval()).isInstanceOf(ValErr.class);
+        bytes.set(new Val[]{ValDouble.create(12), null, null});
+        assertThat(bytes.eval()).isEqualTo(ValLong.create(12L));
+        bytes.set(new Val[]{ValString.create("12.0"), null, null});
+        assertThat(bytes.eval()).isEqualTo(ValLong.create(12L));
+
+        final Generator time = parser.parse(fieldIndexMap, "${time}").createGenerator();
+        time.set(new Val[]{null, ValString.create("2014-02-22T12:12:12.888Z"), null});
+        assertThat(time.eval()).isEqualTo(ValLong.create(DateUtil.parseNormalDateTimeString("2014-02-22T12:12:12.888Z")));
+        time.set(new Val[]{null, ValString.create("not a date"), null});
+        assertThat(time.eval()).isInstanceOf(ValErr.class);
+
+        final Generator name = parser.parse(fieldIndexMap, "${name}+${bytes}").createGenerator();
+        name.set(new Val[]{ValLong.create(2), null, ValLong.create(1)});
+        assertThat(name.eval()).isEqualTo(ValString.create("12"));
+
+        assertThatThrownBy(() -> parser.parse(fieldIndexMap, "${name}*2"))
+                .isInstanceOf(ParseException.class)
+                .hasMessageContaining("string");
+
+        fieldIndexMap.create("flag", FieldType.BOOLEAN);
+        assertThatThrownBy(() -> parser.parse(fieldIndexMap, "(${flag}) + 1"))
+                .isInstanceOf(ParseException.class)
+                .hasMessageContaining("boolean");
+        assertThatThrownBy(() -> parser.parse(fieldIndexMap, "toString(${bytes})*2"))
+                .isInstanceOf(ParseException.class)
+                .hasMessageContaining("string");
+    }
+
+    @Test
+    void testTypeProfile() {
+        final TypeProfile profile = new TypeProfile(2);
+        profile.observe(ValLong.create(1));
+        profile.observe(ValNull.INSTANCE);
+        assertThat(profile.isIntegral()).isFalse();
+        profile.observe(ValInteger.create(2));
+        assertThat(profile.isIntegral()).isTrue();
+        profile.deoptimise();
+        assertThat(profile.isIntegral()).isFalse();
+
+        final TypeProfile mixed = new TypeProfile(2);
+        mixed.observe(ValLong.create(1));
+        mixed.observe(ValDouble.create(1.5));
+        mixed.observe(ValLong.create(1));
+        assertThat(mixed.isIntegral()).isFalse();
+    }
+
+    @Test
+    void testAdaptiveAggregates() throws ParseException {
+        final Expression sum = createExpression("sum(${val})");
+        final Expression max = createExpression("max(${val})");
+        final Generator sumGen = sum.createGenerator();
+        final Generator maxGen = max.createGenerator();
+        final Generator otherSumGen = sum.createGenerator();
+
+        long total = 0;
+        final int count = TypeProfile.DEFAULT_WARM_UP + 100;
+        for (int i = 1; i <= count; i++) {
+            final Val[] values = {ValLong.create(i)};
+            sumGen.set(values);
+            maxGen.set(values);
+            total += i;
+            if (i % 1000 == 0) {
+                // Reading the result part way through doesn't change it.
+                assertThat(sumGen.eval()).isEqualTo(ValDouble.create(total));
+            }
+        }
+        sumGen.set(new Val[]{ValNull.INSTANCE});
+        assertThat(sumGen.eval()).isEqualTo(ValDouble.create(total));
+        assertThat(maxGen.eval()).isEqualTo(ValDouble.create(count));
+
+        otherSumGen.set(new Val[]{ValLong.create(5)});
+        otherSumGen.set(new Val[]{ValLong.create(5)});
+        sumGen.merge(otherSumGen);
+        total += 10;
+        assertThat(sumGen.eval()).isEqualTo(ValDouble.create(total));
+
+        // A value that isn't integral goes back to the generic path.
+        sumGen.set(new Val[]{ValDouble.create(0.5)});
+        assertThat(sumGen.eval()).isEqualTo(ValDouble.create(total + 0.5));
+        sumGen.set(new Val[]{ValErr.create("bad")});
+        assertThat(sumGen.eval()).isInstanceOf(ValErr.class);
+
+        maxGen.set(new Val[]{ValString.create("100000")});
+        assertThat(maxGen.eval()).isEqualTo(ValDouble.create(100000));
+    }
+
     @Test
     void testAdd1() throws ParseException {
         final Generator gen = createGenerator("3+4");
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2019 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.dashboard.expression.v1;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TestExternalSorter {
+    private final ExpressionParser parser = new ExpressionParser(new FunctionFactory(), new ParamFactory());
+
+    @Test
+    void testSortAcrossRuns() throws ParseException, IOException {
+        testSort(100, 64, 10);
+    }
+
+    @Test
+    void testSortAcrossMoreRunsThanFanIn() throws ParseException, IOException {
+        testSort(10, 4, 105);
+    }
+
+    private void testSort(final int maxRowsInMemory, final int mergeFanIn, final int runCount)
+            throws ParseException, IOException {
+        final FieldIndexMap fieldIndexMap = new FieldIndexMap();
+        fieldIndexMap.create("name", true);
+        fieldIndexMap.create("value", true);
+        final Expression name = parser.parse(fieldIndexMap, "${name}");
+        final Expression total = parser.parse(fieldIndexMap, "sum(${value})");
+
+        final Path tempDir = Files.createTempDirectory("stroom-sort");
+        try {
+            final Random random = new Random(7);
+            final List<Double> expected = new ArrayList<>();
+            try (final ExternalSorter sorter = new ExternalSorter(tempDir, new int[]{1, 0}, new boolean[]{true, false},
+                    maxRowsInMemory, mergeFanIn)) {
+                for (int i = 0; i < 1050; i++) {
+                    final Val[] values = {ValString.create("row" + i), ValDouble.create(random.nextInt(200))};
+                    final Generator nameGen = name.createGenerator();
+                    final Generator totalGen = total.createGenerator();
+                    nameGen.set(values);
+                    totalGen.set(values);
+                    expected.add(totalGen.eval().toDouble());
+                    sorter.add(new TestKey(i), new Generator[]{nameGen, totalGen});
+                }
+                assertThat(sorter.getRunCount()).isEqualTo(runCount);
+                expected.sort((d1, d2) -> Double.compare(d2, d1));
+
+                final Iterator<List<ExternalSorter.Row>> pages = sorter.pages(100);
+                assertThat(sorter.getRunCount() <= mergeFanIn).isTrue();
+                final List<ExternalSorter.Row> rows = new ArrayList<>();
+                int pageCount = 0;
+                while (pages.hasNext()) {
+                    final List<ExternalSorter.Row> page = pages.next();
+                    assertThat(page.size() <= 100).isTrue();
+                    rows.addAll(page);
+                    pageCount++;
+                }
+                assertThat(pageCount).isEqualTo(11);
+                assertThat(rows.size()).isEqualTo(1050);
+
+                for (int i = 0; i < rows.size(); i++) {
+                    final ExternalSorter.Row row = rows.get(i);
+                    assertThat(row.getGenerators()[1].eval().toDouble()).isEqualTo(expected.get(i));
+                    if (i > 0) {
+                        final ExternalSorter.Row previous = rows.get(i - 1);
+                        if (previous.getGenerators()[1].eval().toDouble().equals(row.getGenerators()[1].eval().toDouble())) {
+                            final String s1 = previous.getGenerators()[0].eval().toString();
+                            final String s2 = row.getGenerators()[0].eval().toString();
+                            assertThat(s1.compareToIgnoreCase(s2) <= 0).isTrue();
+                        }
+                    }
+                }
+
+                // Restored generators still work.
+                final Generator restored = rows.get(0).getGenerators()[1];
+                restored.set(new Val[]{ValString.create("x"), ValDouble.create(1)});
+                assertThat(restored.eval().toDouble()).isEqualTo(expected.get(0) + 1);
+            }
+
+            try (final Stream<Path> files = Files.list(tempDir)) {
+                assertThat(files.count()).isEqualTo(0L);
+            }
+        } finally {
+            Files.deleteIfExists(tempDir);
+        }
+    }
+
+    private static class TestKey implements Key {
+        private static final long serialVersionUID = 1L;
+
+        private final int id;
+
+        TestKey(final int id) {
+            this.id = id;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2019 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.dashboard.expression.v1;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.regex.Pattern;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TestLinearRegex {
+    private static final String[] PATTERNS = {
+            "foo",
+            "^foo$",
+            "foo.*",
+            ".*foo.*",
+            "a|ab",
+            "(a|ab)(c|bcd)(d*)",
+            "(a+)(b+)?",
+            "(a*?)(a*)",
+            "a{2,3}",
+            "a{2,}?b",
+            "x*",
+            "[a-c]+",
+            "[^a-c]+",
+            "[]a]+",
+            "[\\d.]+",
+            "\\w+@\\w+\\.com",
+            "\\s*(\\S+)\\s*",
+            "(\\d{4})-(\\d{2})-(\\d{2})",
+            "\\Qa.b\\E",
+            "a$",
+            "^$",
+            "(a|b)*c",
+            "(?:ab)+",
+            "(a)|b",
+            "(x+x+)+y"
+    };
+
+    private static final String[] VALUES = {
+            "",
+            "foo",
+            "xfooy",
+            "foo\n",
+            "a",
+            "ab",
+            "abcd",
+            "abbcd",
+            "aaab",
+            "aaaa",
+            "abcabc",
+            "]a]",
+            "1.5",
+            "me@here.com",
+            "  word  ",
+            "2019-01-02",
+            "a.b",
+            "a\r\n",
+            "a\n",
+            "\n",
+            "ababc",
+            "b",
+            "xxxxxxxxxxxxxxxxxxxxxxxx",
+            "caf\u00e9 \ud83d\ude00 a"
+    };
+
+    @Test
+    void testMatchesAgreesWithPattern() {
+        for (final String regex : PATTERNS) {
+            final Pattern pattern = Pattern.compile(regex);
+            final LinearRegex linear = LinearRegex.compile(regex);
+            assertThat(linear).as("'" + regex + "' is supported").isNotNull();
+            for (final String value : VALUES) {
+                assertThat(linear.matches(value))
+                        .as("'" + regex + "' matches '" + value + "'")
+                        .isEqualTo(pattern.matcher(value).matches());
+            }
+        }
+    }
+
+    @Test
+    void testReplaceAllAgreesWithPattern() {
+        for (final String regex : PATTERNS) {
+            final Pattern pattern = Pattern.compile(regex);
+            final LinearRegex linear = LinearRegex.compile(regex);
+            for (final String value : VALUES) {
+                for (final String replacement : new String[]{"", "X", "<$0>", "[$1]", "\\$"}) {
+                    String expected;
+                    try {
+                        expected = pattern.matcher(value).replaceAll(replacement);
+                    } catch (final IndexOutOfBoundsException e) {
+                        expected = e.getMessage();
+                    }
+                    String actual;
+                    try {
+                        actual = linear.replaceAll(value, replacement);
+                    } catch (final IndexOutOfBoundsException e) {
+                        actual = e.getMessage();
+                    }
+                    assertThat(actual)
+                            .as("'" + regex + "' replace '" + value + "' with '" + replacement + "'")
+                            .isEqualTo(expected);
+                }
+            }
+        }
+    }
+
+    @Test
+    void testUnsupported() {
+        assertThat(LinearRegex.compile("(a)\\1")).isNull();
+        assertThat(LinearRegex.compile("a(?=b)")).isNull();
+        assertThat(LinearRegex.compile("(?i)a")).isNull();
+        assertThat(LinearRegex.compile("a++")).isNull();
+        assertThat(LinearRegex.compile("\\bfoo")).isNull();
+        assertThat(LinearRegex.compile("\\p{Alpha}")).isNull();
+        assertThat(LinearRegex.compile("[a[b]]")).isNull();
+        assertThat(LinearRegex.compile("(a*)*")).isNull();
+    }
+
+    @Test
+    void testEngineSelection() {
+        try {
+            PatternCache.setEngine(RegexEngine.LINEAR);
+            assertThat(PatternCache.getEngine("(x+x+)+y")).isEqualTo(RegexEngine.LINEAR);
+            assertThat(PatternCache.getEngine("(a)\\1")).isEqualTo(RegexEngine.JAVA);
+            assertThat(PatternCache.get("(x+x+)+y").matches("xxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxx")).isFalse();
+            assertThat(PatternCache.get("(a)\\1").matches("aa")).isTrue();
+
+            PatternCache.setEngine(RegexEngine.JAVA);
+            assertThat(PatternCache.getEngine("(x+x+)+y")).isEqualTo(RegexEngine.JAVA);
+        } finally {
+            PatternCache.setEngine(RegexEngine.JAVA);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2019 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.dashboard.expression.v1;
+
+import org.assertj.core.data.Offset;
+import org.junit.jupiter.api.Test;
+
+import java.text.ParseException;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TestMomentPlan {
+    private final ExpressionParser parser = new ExpressionParser(new FunctionFactory(), new ParamFactory());
+
+    @Test
+    void testGroups() throws ParseException {
+        final MomentPlan plan = MomentPlan.create(createExpressions(
+                "${a}", "sum(${b})", "average(${b})", "count()", "max(${a})", "stDev(${b})", "sum(${b}+1)"));
+        // Only ${b} is used by more than one column.
+        assertThat(plan.getSharedCount()).isEqualTo(1);
+
+        final MomentPlan none = MomentPlan.create(createExpressions("${a}", "sum(${a})", "count()"));
+        // A single aggregate and a count still share.
+        assertThat(none.getSharedCount()).isEqualTo(1);
+
+        assertThat(MomentPlan.create(createExpressions("${a}", "count()")).getSharedCount()).isEqualTo(0);
+    }
+
+    @Test
+    void testMatchesSeparateColumns() throws ParseException {
+        final Expression[] expressions = createExpressions(
+                "${a}",
+                "sum(${b})",
+                "min(${b})",
+                "max(${b})",
+                "average(${b})",
+                "stDev(${b})",
+                "variance(${b})",
+                "count()",
+                "sum(${a})");
+        final MomentPlan plan = MomentPlan.create(expressions);
+        assertThat(plan.getSharedCount()).isEqualTo(1);
+
+        final Random random = new Random(3);
+        final Generator[] shared1 = plan.createGenerators();
+        final Generator[] shared2 = plan.createGenerators();
+        final Generator[] separate1 = createGenerators(expressions);
+        final Generator[] separate2 = createGenerators(expressions);
+        for (int i = 0; i < 500; i++) {
+            final Val b;
+            if (i % 50 == 7) {
+                b = ValNull.INSTANCE;
+            } else if (i % 50 == 13) {
+                b = ValString.create("not a number");
+            } else {
+                b = ValLong.create(random.nextInt(10000));
+            }
+            final Val[] values = {ValString.create("x"), b};
+            if (i % 2 == 0) {
+                set(shared1, values);
+                set(separate1, values);
+            } else {
+                set(shared2, values);
+                set(separate2, values);
+            }
+        }
+        assertSame(shared1, separate1);
+
+        merge(shared1, shared2);
+        merge(separate1, separate2);
+        assertSame(shared1, separate1);
+
+        for (final Generator generator : shared1) {
+            generator.reset();
+        }
+        set(shared1, new Val[]{ValString.create("x"), ValLong.create(4)});
+        assertThat(shared1[1].eval().toDouble()).isEqualTo(4D);
+        assertThat(shared1[7].eval().toLong()).isEqualTo(1L);
+        assertThat(shared1[5].eval().toDouble()).isEqualTo(0D);
+    }
+
+    @Test
+    void testErrors() throws ParseException {
+        final Expression[] expressions = createExpressions("sum(${b})", "average(${b})", "max(${b})", "count()");
+        final Generator[] shared = MomentPlan.create(expressions).createGenerators();
+        final Generator[] separate = createGenerators(expressions);
+        for (final Val val : new Val[]{ValLong.create(1), ValErr.create("bad"), ValLong.create(2)}) {
+            final Val[] values = {ValNull.INSTANCE, val};
+            set(shared, values);
+            set(separate, values);
+            for (int i = 0; i < shared.length; i++) {
+                assertThat(shared[i].eval()).isEqualTo(separate[i].eval());
+            }
+        }
+    }
+
+    private void assertSame(final Generator[] shared, final Generator[] separate) {
+        for (int i = 0; i < shared.length; i++) {
+            final Val expected = separate[i].eval();
+            final Val actual = shared[i].eval();
+            if (expected instanceof ValDouble) {
+                assertThat(actual.toDouble()).isEqualTo(expected.toDouble(), Offset.offset(1E-6));
+            } else {
+                assertThat(actual).isEqualTo(expected);
+            }
+        }
+    }
+
+    private void set(final Generator[] generators, final Val[] values) {
+        for (final Generator generator : generators) {
+            generator.set(values);
+        }
+    }
+
+    private void merge(final Generator[] generators, final Generator[] others) {
+        for (int i = 0; i < generators.length; i++) {
+            generators[i].merge(others[i]);
+        }
+    }
+
+    private Generator[] createGenerators(final Expression[] expressions) {
+        final Generator[] generators = new Generator[expressions.length];
+        for (int i = 0; i < expressions.length; i++) {
+            generators[i] = expressions[i].createGenerator();
+        }
+        return generators;
+    }
+
+    private Expression[] createExpressions(final String... expressions) throws ParseException {
+        final FieldIndexMap fieldIndexMap = new FieldIndexMap();
+        fieldIndexMap.create("a", true);
+        fieldIndexMap.create("b", true);
+
+        final Expression[] result = new Expression[expressions.length];
+        for (int i = 0; i < expressions.length; i++) {
+            result[i] = parser.parse(fieldIndexMap, expressions[i]);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2019 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.dashboard.expression.v1;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.regex.Pattern;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TestPatternAnalyser {
+    private static final String[] PATTERNS = {
+            "foo",
+            "^foo$",
+            "foo.*",
+            "foo.+",
+            "foo.*?",
+            ".*foo",
+            ".+foo",
+            ".*foo.*",
+            ".*",
+            ".+",
+            "^",
+            "f\\.o",
+            "\\Qf.o\\E",
+            "\\Qf.o",
+            "foo\\n",
+            "fo+",
+            "fo*bar",
+            "fo?bar",
+            "f[aeiou]o",
+            "f[]a]o",
+            "(?i)foo",
+            "(?i:f)oo",
+            "foo|bar",
+            "(foo|bar)baz",
+            "a{2}foo",
+            "a\\d+bar",
+            "foo\\bbar",
+            ".*+foo",
+            "foo$bar",
+            "a]b",
+            "a}b",
+            "ba\\.nana.*"
+    };
+
+    private static final String[] VALUES = {
+            "",
+            "foo",
+            "Foo",
+            "fooo",
+            "foobar",
+            "bazfoo",
+            "xfooy",
+            "foo\n",
+            "foo\nbar",
+            "\nfoo",
+            "fo",
+            "f.o",
+            "fxo",
+            "fbar",
+            "fooobar",
+            "fobar",
+            "fabar",
+            "fao",
+            "f]o",
+            "foobaz",
+            "barbaz",
+            "aafoo",
+            "a1bar",
+            "foo bar",
+            "a]b",
+            "a}b",
+            "ba.nana split",
+            "banana"
+    };
+
+    @Test
+    void testKinds() {
+        assertKind("foo", PatternMatcher.Kind.LITERAL, "foo");
+        assertKind("^foo$", PatternMatcher.Kind.LITERAL, "foo");
+        assertKind("f\\.o", PatternMatcher.Kind.LITERAL, "f.o");
+        assertKind("\\Qf.o\\E", PatternMatcher.Kind.LITERAL, "f.o");
+        assertKind("foo.*", PatternMatcher.Kind.PREFIX, "foo");
+        assertKind("foo.+", PatternMatcher.Kind.PREFIX, "foo");
+        assertKind(".*foo", PatternMatcher.Kind.SUFFIX, "foo");
+        assertKind(".*foo.*", PatternMatcher.Kind.CONTAINS, "foo");
+        assertKind("fo*bar", PatternMatcher.Kind.GENERAL, "bar");
+        assertKind("a\\d+bar", PatternMatcher.Kind.GENERAL, "bar");
+        assertKind("foo|bar", PatternMatcher.Kind.GENERAL, null);
+        assertKind("(?i)foo", PatternMatcher.Kind.GENERAL, null);
+        assertKind("foo\\p{Alpha}", PatternMatcher.Kind.GENERAL, null);
+    }
+
+    @Test
+    void testMatchesAgreesWithPattern() {
+        for (final String regex : PATTERNS) {
+            final Pattern pattern = Pattern.compile(regex);
+            final PatternMatcher matcher = PatternAnalyser.analyse(pattern);
+            for (final String value : VALUES) {
+                assertThat(matcher.matches(value))
+                        .as("'" + regex + "' matches '" + value + "'")
+                        .isEqualTo(pattern.matcher(value).matches());
+            }
+        }
+    }
+
+    @Test
+    void testReplaceAllAgreesWithPattern() {
+        for (final String regex : PATTERNS) {
+            final Pattern pattern = Pattern.compile(regex);
+            final PatternMatcher matcher = PatternAnalyser.analyse(pattern);
+            for (final String value : VALUES) {
+                for (final String replacement : new String[]{"", "X", "<$0>"}) {
+                    assertThat(matcher.replaceAll(value, replacement))
+                            .as("'" + regex + "' replace '" + value + "' with '" + replacement + "'")
+                            .isEqualTo(pattern.matcher(value).replaceAll(replacement));
+                }
+            }
+        }
+    }
+
+    @Test
+    void testMultiPatternMatcherFindsFirstMatch() {
+        final PatternMatcher[] matchers = new PatternMatcher[PATTERNS.length];
+        for (int i = 0; i < PATTERNS.length; i++) {
+            matchers[i] = PatternAnalyser.analyse(Pattern.compile(PATTERNS[i]));
+        }
+        final MultiPatternMatcher multiPatternMatcher = new MultiPatternMatcher(matchers);
+
+        for (final String value : VALUES) {
+            int expected = -1;
+            for (int i = 0; i < PATTERNS.length && expected == -1; i++) {
+                if (Pattern.compile(PATTERNS[i]).matcher(value).matches()) {
+                    expected = i;
+                }
+            }
+            assertThat(multiPatternMatcher.firstMatch(value)).as("first match of '" + value + "'").isEqualTo(expected);
+        }
+    }
+
+    @Test
+    void testMultiPatternMatcherWithOverlappingLiterals() {
+        final String[] regexes = {"she.*", ".*hers", "\\d+his", ".*he.*", "his"};
+        final PatternMatcher[] matchers = new PatternMatcher[regexes.length];
+        for (int i = 0; i < regexes.length; i++) {
+            matchers[i] = PatternAnalyser.analyse(Pattern.compile(regexes[i]));
+        }
+        final MultiPatternMatcher multiPatternMatcher = new MultiPatternMatcher(matchers);
+
+        assertThat(multiPatternMatcher.firstMatch("ushers")).isEqualTo(1);
+        assertThat(multiPatternMatcher.firstMatch("shells")).isEqualTo(0);
+        assertThat(multiPatternMatcher.firstMatch("123his")).isEqualTo(2);
+        assertThat(multiPatternMatcher.firstMatch("his")).isEqualTo(4);
+        assertThat(multiPatternMatcher.firstMatch("theme")).isEqualTo(3);
+        assertThat(multiPatternMatcher.firstMatch("xyz")).isEqualTo(-1);
+    }
+
+    private void assertKind(final String regex, final PatternMatcher.Kind kind, final String literal) {
+        final PatternMatcher matcher = PatternAnalyser.analyse(Pattern.compile(regex));
+        assertThat(matcher.getKind()).isEqualTo(kind);
+        assertThat(matcher.getLiteral()).isEqualTo(literal);
+    }
+}
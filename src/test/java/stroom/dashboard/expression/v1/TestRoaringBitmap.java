@@ -0,0 +1,124 @@
+/*
+ * Copyright 2019 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.dashboard.expression.v1;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TestRoaringBitmap {
+    @Test
+    void testMatchesHashSet() {
+        final Random random = new Random(5);
+        final RoaringBitmap bitmap = new RoaringBitmap();
+        final Set<Long> set = new HashSet<>();
+        for (int i = 0; i < 100000; i++) {
+            final long value;
+            switch (i % 3) {
+                case 0:
+                    value = random.nextInt(200000);
+                    break;
+                case 1:
+                    value = -random.nextInt(1000);
+                    break;
+                default:
+                    value = random.nextLong();
+                    break;
+            }
+            assertThat(bitmap.add(value)).isEqualTo(set.add(value));
+        }
+        assertThat(bitmap.cardinality()).isEqualTo((long) set.size());
+        for (final long value : set) {
+            assertThat(bitmap.contains(value)).isTrue();
+        }
+        assertThat(bitmap.contains(200001)).isFalse();
+    }
+
+    @Test
+    void testArrayToBitmap() {
+        final RoaringBitmap bitmap = new RoaringBitmap();
+        for (int i = 0; i < 65536; i += 2) {
+            bitmap.add(i);
+        }
+        assertThat(bitmap.cardinality()).isEqualTo(32768L);
+        assertThat(bitmap.contains(4096)).isTrue();
+        assertThat(bitmap.contains(4097)).isFalse();
+        assertThat(bitmap.add(4096)).isFalse();
+
+        // A dense set is held as a bitmap so costs about a bit per possible value.
+        assertThat(bitmap.toBytes().length).isLessThan(9000);
+
+        final RoaringBitmap copy = RoaringBitmap.fromBytes(bitmap.toBytes());
+        assertThat(copy.cardinality()).isEqualTo(32768L);
+        assertThat(copy.contains(65534)).isTrue();
+        assertThat(copy.contains(65535)).isFalse();
+    }
+
+    @Test
+    void testOr() {
+        final RoaringBitmap a = new RoaringBitmap();
+        final RoaringBitmap b = new RoaringBitmap();
+        for (int i = 0; i < 10000; i++) {
+            a.add(i);
+            b.add(i + 5000);
+            b.add(i * 100000L);
+        }
+        a.or(b);
+        assertThat(a.cardinality()).isEqualTo(15000L + 9999L);
+        assertThat(b.cardinality()).isEqualTo(20000L);
+        assertThat(a.contains(14999)).isTrue();
+        assertThat(a.contains(15000)).isFalse();
+        assertThat(a.contains(999900000L)).isTrue();
+
+        a.clear();
+        assertThat(a.cardinality()).isEqualTo(0L);
+        assertThat(a.contains(1)).isFalse();
+    }
+
+    @Test
+    void testSerialisation() throws IOException, ClassNotFoundException {
+        final RoaringBitmap bitmap = new RoaringBitmap();
+        for (int i = 0; i < 1000; i++) {
+            bitmap.add(i * 7L);
+        }
+        bitmap.add(Long.MAX_VALUE);
+        bitmap.add(Long.MIN_VALUE);
+
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (final ObjectOutputStream out = new ObjectOutputStream(baos)) {
+            out.writeObject(bitmap);
+        }
+        final RoaringBitmap copy;
+        try (final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray()))) {
+            copy = (RoaringBitmap) in.readObject();
+        }
+        assertThat(copy.cardinality()).isEqualTo(1002L);
+        assertThat(copy.contains(6993)).isTrue();
+        assertThat(copy.contains(6994)).isFalse();
+        assertThat(copy.contains(Long.MAX_VALUE)).isTrue();
+        assertThat(copy.contains(Long.MIN_VALUE)).isTrue();
+    }
+}
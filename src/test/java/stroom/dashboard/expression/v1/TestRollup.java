@@ -0,0 +1,183 @@
+/*
+ * Copyright 2019 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.dashboard.expression.v1;
+
+import org.junit.jupiter.api.Test;
+
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static stroom.dashboard.expression.v1.GeneratorFixtures.createFieldIndexMap;
+
+class TestRollup {
+    private static final String[] COLUMNS = {
+            "${host}",
+            "count()",
+            "sum(${bytes})",
+            "max(${bytes})",
+            "countGroups()",
+            "countUnique(${user})",
+            "countGroups()*10",
+            null
+    };
+
+    private final ExpressionParser parser = new ExpressionParser(new FunctionFactory(), new ParamFactory());
+    private final FieldIndexMap fieldIndexMap = createFieldIndexMap("host", "user", "bytes");
+
+    @Test
+    void testMatchesSeparateLevels() throws ParseException {
+        final Expression[] keys = parse("${host}", "${user}");
+        final Expression[] columns = parse(COLUMNS);
+        final Rollup rollup = new Rollup(keys, columns);
+        final Rollup other = new Rollup(keys, columns);
+        assertThat(rollup.getDepth()).isEqualTo(2);
+        assertThat(rollup.getGroups(0).size()).isEqualTo(0);
+
+        final Random random = new Random(17);
+        final Val[][] rows = new Val[500][];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = new Val[]{
+                    ValString.create("host" + random.nextInt(5)),
+                    ValString.create("user" + random.nextInt(8)),
+                    ValLong.create(random.nextInt(1000))};
+            (i % 3 == 0 ? other : rollup).add(rows[i]);
+        }
+        rollup.merge(other);
+
+        for (int level = 0; level <= 2; level++) {
+            final Map<List<Val>, Generator[]> expected = aggregate(keys, columns, rows, level);
+            assertThat(rollup.getGroups(level).size()).isEqualTo(expected.size());
+            for (final Rollup.Group group : rollup.getGroups(level)) {
+                assertThat(group.getKey().length).isEqualTo(level);
+                final Generator[] expectedGenerators = expected.get(Arrays.asList(group.getKey()));
+                final Generator[] generators = group.getGenerators();
+                for (int i = 0; i < generators.length; i++) {
+                    if (expectedGenerators[i] == null) {
+                        assertThat(generators[i]).isNull();
+                    } else {
+                        assertThat(generators[i].eval()).isEqualTo(expectedGenerators[i].eval());
+                    }
+                }
+            }
+        }
+
+        // The total has a group for each host and each host has a group for each of its users.
+        final Rollup.Group total = rollup.getGroups(0).iterator().next();
+        assertThat(total.getGenerators()[4].eval()).isEqualTo(ValLong.create(5));
+        assertThat(total.getGenerators()[6].eval().toLong()).isEqualTo(50L);
+        assertThat(total.getGenerators()[1].eval()).isEqualTo(ValLong.create(500));
+    }
+
+    @Test
+    void testAddAfterRead() throws ParseException {
+        final Rollup rollup = new Rollup(parse("${host}"), parse("count()", "countGroups()"));
+        rollup.add(new Val[]{ValString.create("a"), ValNull.INSTANCE, ValLong.create(1)});
+        assertThat(rollup.getGroups(0).iterator().next().getGenerators()[0].eval()).isEqualTo(ValLong.create(1));
+
+        rollup.add(new Val[]{ValString.create("b"), ValNull.INSTANCE, ValLong.create(1)});
+        final Generator[] total = rollup.getGroups(0).iterator().next().getGenerators();
+        assertThat(total[0].eval()).isEqualTo(ValLong.create(2));
+        assertThat(total[1].eval()).isEqualTo(ValLong.create(2));
+        assertThat(rollup.getGroups(1).size()).isEqualTo(2);
+    }
+
+    @Test
+    void testMergeStillTakesChildKeys() throws ParseException {
+        final Expression expression = parser.parse(fieldIndexMap, "countGroups()+1");
+        final Generator generator = expression.createGenerator();
+        final Generator other = expression.createGenerator();
+        generator.addChildKey(new TestKey(Arrays.asList(ValString.create("a"))));
+        other.addChildKey(new TestKey(Arrays.asList(ValString.create("b"))));
+
+        final Generator rolledUp = expression.createGenerator();
+        rolledUp.rollUp(other);
+        assertThat(rolledUp.eval()).isEqualTo(ValNull.INSTANCE);
+
+        generator.merge(other);
+        assertThat(generator.eval().toLong()).isEqualTo(3L);
+    }
+
+    /**
+     * Aggregate the rows for one level the way nested tables do, i.e. separately for each level with the key of the
+     * child group added for every row.
+     */
+    private Map<List<Val>, Generator[]> aggregate(final Expression[] keys,
+                                                  final Expression[] columns,
+                                                  final Val[][] rows,
+                                                  final int level) {
+        final Map<List<Val>, Generator[]> groups = new HashMap<>();
+        for (final Val[] row : rows) {
+            final Val[] key = new Val[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                final Generator generator = keys[i].createGenerator();
+                generator.set(row);
+                key[i] = generator.eval();
+            }
+            final Generator[] generators = groups.computeIfAbsent(Arrays.asList(key).subList(0, level), k -> {
+                final Generator[] created = new Generator[columns.length];
+                for (int i = 0; i < columns.length; i++) {
+                    if (columns[i] != null) {
+                        created[i] = columns[i].createGenerator();
+                    }
+                }
+                return created;
+            });
+            for (final Generator generator : generators) {
+                if (generator != null) {
+                    generator.set(row);
+                    if (level < keys.length) {
+                        generator.addChildKey(new TestKey(Arrays.asList(key).subList(0, level + 1)));
+                    }
+                }
+            }
+        }
+        return groups;
+    }
+
+    private Expression[] parse(final String... expressions) throws ParseException {
+        final Expression[] result = new Expression[expressions.length];
+        for (int i = 0; i < expressions.length; i++) {
+            result[i] = parser.parse(fieldIndexMap, expressions[i]);
+        }
+        return result;
+    }
+
+    private static class TestKey implements Key {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Val> values;
+
+        TestKey(final List<Val> values) {
+            this.values = values;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            return o instanceof TestKey && ((TestKey) o).values.equals(values);
+        }
+
+        @Override
+        public int hashCode() {
+            return values.hashCode();
+        }
+    }
+}
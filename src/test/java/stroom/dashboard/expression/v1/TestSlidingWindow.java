@@ -0,0 +1,105 @@
+/*
+ * Copyright 2019 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.dashboard.expression.v1;
+
+import org.assertj.core.data.Offset;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TestSlidingWindow {
+    // One pane per second.
+    private static final long WINDOW = SlidingWindow.PANES * 1000L;
+
+    @Test
+    void testMatchesRecomputing() {
+        final Random random = new Random(7);
+        final SlidingWindow window = new SlidingWindow(WINDOW);
+        final List<long[]> values = new ArrayList<>();
+        long time = 1000000;
+        for (int i = 0; i < 5000; i++) {
+            // Mostly moving forwards but with some late values.
+            time += random.nextInt(400) - 50;
+            final long value = random.nextInt(1000) - 500;
+            window.add(time, value);
+            values.add(new long[]{time, value});
+            assertSame(window, values);
+        }
+    }
+
+    @Test
+    void testMerge() {
+        final Random random = new Random(9);
+        final SlidingWindow window1 = new SlidingWindow(WINDOW);
+        final SlidingWindow window2 = new SlidingWindow(WINDOW);
+        final List<long[]> values = new ArrayList<>();
+        long time = 0;
+        for (int i = 0; i < 1000; i++) {
+            time += random.nextInt(200);
+            final long value = random.nextInt(1000);
+            // The second window lags behind the first.
+            if (i % 3 == 0) {
+                window2.add(time - 30000, value);
+                values.add(new long[]{time - 30000, value});
+            } else {
+                window1.add(time, value);
+                values.add(new long[]{time, value});
+            }
+        }
+        window1.merge(window2);
+        assertSame(window1, values);
+
+        window1.add(time + WINDOW * 2, 3);
+        assertThat(window1.count()).isEqualTo(1L);
+        assertThat(window1.sum()).isEqualTo(3D);
+        assertThat(window1.min()).isEqualTo(3D);
+
+        window1.clear();
+        assertThat(window1.count()).isEqualTo(0L);
+        window2.merge(window1);
+        assertThat(window2.count()).isGreaterThan(0L);
+    }
+
+    private void assertSame(final SlidingWindow window, final List<long[]> values) {
+        long newest = Long.MIN_VALUE;
+        for (final long[] value : values) {
+            newest = Math.max(newest, Math.floorDiv(value[0], 1000L));
+        }
+
+        long count = 0;
+        long sum = 0;
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (final long[] value : values) {
+            if (Math.floorDiv(value[0], 1000L) > newest - SlidingWindow.PANES) {
+                count++;
+                sum += value[1];
+                min = Math.min(min, value[1]);
+                max = Math.max(max, value[1]);
+            }
+        }
+
+        assertThat(window.count()).isEqualTo(count);
+        assertThat(window.sum()).isEqualTo((double) sum, Offset.offset(1E-6));
+        assertThat(window.min()).isEqualTo((double) min);
+        assertThat(window.max()).isEqualTo((double) max);
+    }
+}
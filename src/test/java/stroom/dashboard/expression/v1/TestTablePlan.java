@@ -0,0 +1,218 @@
+/*
+ * Copyright 2019 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.dashboard.expression.v1;
+
+import org.junit.jupiter.api.Test;
+
+import java.text.ParseException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static stroom.dashboard.expression.v1.GeneratorFixtures.createFieldIndexMap;
+import static stroom.dashboard.expression.v1.GeneratorFixtures.createGenerators;
+
+class TestTablePlan {
+    private static final String[] COLUMNS = {
+            "roundDay(${t})",
+            "formatDate(roundDay(${t}))",
+            "roundDay(${t})+1",
+            "sum(${v})",
+            "sum(${v})/count()",
+            "sum(${v})+sum(${v})",
+            "countGroups()",
+            null
+    };
+
+    private final ExpressionParser parser = new ExpressionParser(new FunctionFactory(), new ParamFactory());
+
+    @Test
+    void testSharedCount() throws ParseException {
+        final TablePlan plan = parser.parseTable(createFieldIndexMap("t", "v"), COLUMNS);
+        // roundDay(${t}) and sum(${v}).
+        assertThat(plan.getSharedCount()).isEqualTo(2);
+
+        final Expression[] expressions = plan.getExpressions();
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (COLUMNS[i] == null) {
+                assertThat(expressions[i]).isNull();
+            } else {
+                assertThat(expressions[i].toString()).isEqualTo(COLUMNS[i]);
+            }
+        }
+    }
+
+    @Test
+    void testMatchesSeparateColumns() throws ParseException {
+        final FieldIndexMap fieldIndexMap = createFieldIndexMap("t", "v");
+        final TablePlan plan = parser.parseTable(fieldIndexMap, COLUMNS);
+        final TablePlan.Row row1 = plan.createRow();
+        final TablePlan.Row row2 = plan.createRow();
+        final Generator[] separate1 = createGenerators(parser, fieldIndexMap, COLUMNS);
+        final Generator[] separate2 = createGenerators(parser, fieldIndexMap, COLUMNS);
+
+        for (int i = 0; i < 10; i++) {
+            final Val[] values = {ValString.create("2014-02-22T12:12:12.888Z"), ValLong.create(i)};
+            if (i % 2 == 0) {
+                row1.set(values);
+                set(separate1, values);
+            } else {
+                row2.set(values);
+                set(separate2, values);
+            }
+        }
+        row1.addChildKey(new TestKey(1));
+        row1.addChildKey(new TestKey(2));
+        separate1[6].addChildKey(new TestKey(1));
+        separate1[6].addChildKey(new TestKey(2));
+        assertSame(row1.getGenerators(), separate1);
+        assertThat(row1.getGenerators()[3].eval().toDouble()).isEqualTo(20D);
+        assertThat(row1.getGenerators()[5].eval().toDouble()).isEqualTo(40D);
+
+        row1.merge(row2);
+        for (int i = 0; i < separate1.length; i++) {
+            if (separate1[i] != null) {
+                separate1[i].merge(separate2[i]);
+            }
+        }
+        assertSame(row1.getGenerators(), separate1);
+        assertThat(row1.getGenerators()[3].eval().toDouble()).isEqualTo(45D);
+        assertThat(row1.getGenerators()[4].eval().toDouble()).isEqualTo(4.5D);
+        assertThat(row1.getGenerators()[6].eval().toLong()).isEqualTo(2L);
+
+        row1.reset();
+        row1.set(new Val[]{ValString.create("2014-02-22T12:12:12.888Z"), ValLong.create(3)});
+        assertThat(row1.getGenerators()[4].eval().toDouble()).isEqualTo(3D);
+        assertThat(row1.getGenerators()[5].eval().toDouble()).isEqualTo(6D);
+    }
+
+    @Test
+    void testSharedMoments() throws ParseException {
+        final String[] columns = {
+                "sum(${v})",
+                "average(${v})",
+                "stDev(${v})",
+                "count()",
+                "roundDay(${t})",
+                "formatDate(roundDay(${t}))"
+        };
+        final FieldIndexMap fieldIndexMap = createFieldIndexMap("t", "v");
+        final TablePlan plan = parser.parseTable(fieldIndexMap, columns);
+        assertThat(plan.getSharedCount()).isEqualTo(1);
+        assertThat(plan.getSharedMomentCount()).isEqualTo(1);
+        assertThat(MomentPlan.create(plan.getExpressions()).getSharedCount()).isEqualTo(1);
+
+        final TablePlan.Row row1 = plan.createRow();
+        final TablePlan.Row row2 = plan.createRow();
+        final Generator[] separate1 = new Generator[columns.length];
+        final Generator[] separate2 = new Generator[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            separate1[i] = parser.parse(fieldIndexMap, columns[i]).createGenerator();
+            separate2[i] = parser.parse(fieldIndexMap, columns[i]).createGenerator();
+        }
+
+        for (int i = 0; i < 10; i++) {
+            final Val[] values = {ValString.create("2014-02-22T12:12:12.888Z"), ValLong.create(i * i)};
+            if (i % 3 == 0) {
+                row1.set(values);
+                set(separate1, values);
+            } else {
+                row2.set(values);
+                set(separate2, values);
+            }
+        }
+        assertSame(row1.getGenerators(), separate1);
+
+        row1.merge(row2);
+        for (int i = 0; i < columns.length; i++) {
+            separate1[i].merge(separate2[i]);
+        }
+        assertSame(row1.getGenerators(), separate1);
+        assertThat(row1.getGenerators()[0].eval().toDouble()).isEqualTo(285D);
+        assertThat(row1.getGenerators()[3].eval().toLong()).isEqualTo(10L);
+    }
+
+    @Test
+    void testRandomIsNotShared() throws ParseException {
+        final TablePlan plan = parser.parseTable(createFieldIndexMap("t", "v"),
+                new String[]{"random()*10", "random()*10"});
+        assertThat(plan.getSharedCount()).isEqualTo(0);
+        assertThat(plan.getExpressions()[0].isDeterministic()).isFalse();
+
+        // Only the functions used matter, not the text of the expression.
+        final TablePlan literal = parser.parseTable(createFieldIndexMap("t", "v"),
+                new String[]{"concat('random(', ${v})", "concat('random(', ${v})"});
+        assertThat(literal.getSharedCount()).isEqualTo(1);
+    }
+
+    @Test
+    void testExpressionsStillWorkAlone() throws ParseException {
+        final TablePlan plan = parser.parseTable(createFieldIndexMap("t", "v"), COLUMNS);
+        final Generator gen = plan.getExpressions()[5].createGenerator();
+        gen.set(new Val[]{ValNull.INSTANCE, ValLong.create(2)});
+        gen.set(new Val[]{ValNull.INSTANCE, ValLong.create(3)});
+        assertThat(gen.eval().toDouble()).isEqualTo(10D);
+    }
+
+    @Test
+    void testSetParamsOnSharedFunction() throws ParseException {
+        final TablePlan plan = parser.parseTable(createFieldIndexMap("t", "v"), new String[]{"${v}*2", "${v}*2"});
+        final Function shared = plan.getExpressions()[0].getFunction();
+        shared.setParams(new Param[]{ValLong.create(3), ValLong.create(4)});
+
+        final TablePlan.Row row = plan.createRow();
+        row.set(new Val[]{ValNull.INSTANCE, ValLong.create(5)});
+        assertThat(row.getGenerators()[0].eval().toLong()).isEqualTo(12L);
+        assertThat(row.getGenerators()[1].eval().toLong()).isEqualTo(12L);
+    }
+
+    private void assertSame(final Generator[] shared, final Generator[] separate) {
+        for (int i = 0; i < shared.length; i++) {
+            if (separate[i] == null) {
+                assertThat(shared[i]).isNull();
+            } else {
+                assertThat(shared[i].eval()).isEqualTo(separate[i].eval());
+            }
+        }
+    }
+
+    private void set(final Generator[] generators, final Val[] values) {
+        for (final Generator generator : generators) {
+            if (generator != null) {
+                generator.set(values);
+            }
+        }
+    }
+
+    private static class TestKey implements Key {
+        private static final long serialVersionUID = 1L;
+
+        private final int id;
+
+        TestKey(final int id) {
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            return o instanceof TestKey && ((TestKey) o).id == id;
+        }
+
+        @Override
+        public int hashCode() {
+            return id;
+        }
+    }
+}
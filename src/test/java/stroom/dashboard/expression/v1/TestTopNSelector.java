@@ -0,0 +1,196 @@
+/*
+ * Copyright 2019 Crown Copyright
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package stroom.dashboard.expression.v1;
+
+import org.junit.jupiter.api.Test;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TestTopNSelector {
+    private final ExpressionParser parser = new ExpressionParser(new FunctionFactory(), new ParamFactory());
+
+    @Test
+    void testMatchesFullSort() throws ParseException {
+        final Expression[] expressions = createExpressions("${a}", "${b}");
+        final Random random = new Random(42);
+
+        final List<Generator[]> all = new ArrayList<>();
+        final TopNSelector selector = new TopNSelector(10, new int[]{0, 1}, new boolean[]{true, false}, false);
+        for (int i = 0; i < 1000; i++) {
+            final Generator[] generators = createRow(expressions, random.nextInt(50), random.nextInt(1000));
+            all.add(generators);
+            selector.add(new TestKey(i), generators);
+        }
+
+        all.sort(Comparator.<Generator[], Double>comparing(g -> g[0].eval().toDouble()).reversed()
+                .thenComparing(g -> g[1].eval().toDouble()));
+
+        final List<TopNSelector.Row> rows = selector.getRows();
+        assertThat(rows.size()).isEqualTo(10);
+        for (int i = 0; i < 10; i++) {
+            assertThat(rows.get(i).getGenerators()[0].eval()).isEqualTo(all.get(i)[0].eval());
+            assertThat(rows.get(i).getGenerators()[1].eval()).isEqualTo(all.get(i)[1].eval());
+        }
+    }
+
+    @Test
+    void testTiesAcrossShards() throws ParseException {
+        final Expression[] expressions = createExpressions("${a}");
+        final TopNSelector shard1 = new TopNSelector(2, new int[]{0}, new boolean[]{false}, false);
+        final TopNSelector shard2 = new TopNSelector(2, new int[]{0}, new boolean[]{false}, false);
+
+        shard1.add(new TestKey(1), createRow(expressions, 1));
+        shard1.add(new TestKey(3), createRow(expressions, 5));
+        shard1.add(new TestKey(2), createRow(expressions, 5));
+        shard1.add(new TestKey(4), createRow(expressions, 9));
+        assertThat(shard1.getRows().size()).isEqualTo(2);
+        assertThat(shard1.getRows().get(1).getKey()).isEqualTo(new TestKey(2));
+
+        shard2.add(new TestKey(0), createRow(expressions, 5));
+        shard2.add(new TestKey(6), createRow(expressions, 7));
+
+        shard1.merge(shard2);
+        final List<TopNSelector.Row> rows = shard1.getRows();
+        assertThat(rows.size()).isEqualTo(2);
+        assertThat(rows.get(0).getKey()).isEqualTo(new TestKey(1));
+        assertThat(rows.get(1).getKey()).isEqualTo(new TestKey(0));
+
+        final TopNSelector shard3 = new TopNSelector(2, new int[]{0}, new boolean[]{false}, false);
+        shard3.add(new TestKey(7), createRow(expressions, 0));
+        shard3.add(new TestKey(8), createRow(expressions, 2));
+        shard1.merge(shard3);
+        assertThat(shard1.getRows().size()).isEqualTo(2);
+        assertThat(shard1.getRows().get(1).getKey()).isEqualTo(new TestKey(1));
+    }
+
+    @Test
+    void testLowCardinalityStaysBounded() throws ParseException {
+        final Expression[] expressions = createExpressions("${a}");
+        final TopNSelector all = new TopNSelector(100, new int[]{0}, new boolean[]{true}, false);
+        final TopNSelector[] shards = new TopNSelector[4];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new TopNSelector(100, new int[]{0}, new boolean[]{true}, false);
+        }
+
+        // Almost every row has the same value so nearly all of them tie with the last selected row.
+        final Random random = new Random(7);
+        for (int i = 0; i < 20000; i++) {
+            final int value = i % 1000 == 0 ? 2 : 1;
+            final int shard = random.nextInt(shards.length);
+            all.add(new TestKey(i), createRow(expressions, value));
+            shards[shard].add(new TestKey(i), createRow(expressions, value));
+            assertThat(shards[shard].getRows().size() <= 100).isTrue();
+        }
+        for (int i = 1; i < shards.length; i++) {
+            shards[0].merge(shards[i]);
+        }
+
+        final List<TopNSelector.Row> expected = all.getRows();
+        final List<TopNSelector.Row> actual = shards[0].getRows();
+        assertThat(expected.size()).isEqualTo(100);
+        assertThat(actual.size()).isEqualTo(100);
+        for (int i = 0; i < 100; i++) {
+            assertThat(actual.get(i).getKey()).isEqualTo(expected.get(i).getKey());
+        }
+        assertThat(actual.get(19).getGenerators()[0].eval().toDouble()).isEqualTo(2D);
+        assertThat(actual.get(20).getGenerators()[0].eval().toDouble()).isEqualTo(1D);
+    }
+
+    @Test
+    void testExactModeForAggregates() throws ParseException {
+        final Expression[] expressions = createExpressions("${a}", "sum(${b})");
+        final TopNSelector selector = TopNSelector.create(1, expressions, new int[]{1}, new boolean[]{true});
+        final TopNSelector shard = TopNSelector.create(1, expressions, new int[]{1}, new boolean[]{true});
+
+        // Key 1 looks best in each shard alone but key 2 has the largest total.
+        selector.add(new TestKey(1), createRow(expressions, 1, 10));
+        selector.add(new TestKey(2), createRow(expressions, 2, 8));
+        shard.add(new TestKey(3), createRow(expressions, 3, 9));
+        shard.add(new TestKey(2), createRow(expressions, 2, 8));
+
+        selector.merge(shard);
+        final List<TopNSelector.Row> rows = selector.getRows();
+        assertThat(rows.size()).isEqualTo(1);
+        assertThat(rows.get(0).getKey()).isEqualTo(new TestKey(2));
+        assertThat(rows.get(0).getGenerators()[1].eval().toDouble()).isEqualTo(16D);
+    }
+
+    private Expression[] createExpressions(final String... expressions) throws ParseException {
+        final FieldIndexMap fieldIndexMap = new FieldIndexMap();
+        fieldIndexMap.create("a", true);
+        fieldIndexMap.create("b", true);
+
+        final Expression[] result = new Expression[expressions.length];
+        for (int i = 0; i < expressions.length; i++) {
+            result[i] = parser.parse(fieldIndexMap, expressions[i]);
+        }
+        return result;
+    }
+
+    private Generator[] createRow(final Expression[] expressions, final double... values) {
+        final Val[] vals = new Val[values.length];
+        for (int i = 0; i < values.length; i++) {
+            vals[i] = ValDouble.create(values[i]);
+        }
+
+        final Generator[] generators = new Generator[expressions.length];
+        for (int i = 0; i < expressions.length; i++) {
+            generators[i] = expressions[i].createGenerator();
+            generators[i].set(vals);
+        }
+        return generators;
+    }
+
+    private static class TestKey implements Key {
+        private static final long serialVersionUID = 1L;
+
+        private final int id;
+
+        TestKey(final int id) {
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            final TestKey testKey = (TestKey) o;
+            return id == testKey.id;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(id);
+        }
+
+        @Override
+        public String toString() {
+            return String.valueOf(id);
+        }
+    }
+}